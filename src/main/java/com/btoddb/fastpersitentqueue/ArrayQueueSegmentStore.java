@@ -0,0 +1,301 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Entries on the heap in a FIFO queue of fixed size array chunks.  Pops always take the oldest entry, so there is
+ * no reason to keep entries sorted - an append and a poll are a slot write and a slot read.
+ *
+ * Pushers and poppers use separate locks (two-lock queue) so they don't contend with each other.  A pusher fills
+ * the slots of a batch under the push lock, and a slot becomes visible to poppers when it is set.  Poppers stop at
+ * the first empty slot.
+ *
+ * There is no id to slot index.  Lookups walk the chunks in place - journal replay builds one {@link EntryIdIndex}
+ * for all segments instead of looking up entries one at a time.  While entries have been added in id order, which
+ * is the usual case (a rolled back pop puts older entries at the tail), the min and max id are the head and tail.
+ */
+class ArrayQueueSegmentStore implements SegmentStore {
+    static final int CHUNK_SIZE = 1024;
+
+    private final ReentrantLock pushLock = new ReentrantLock();
+    private final ReentrantLock popLock = new ReentrantLock();
+    private final AtomicInteger size = new AtomicInteger();
+
+    // guarded by pushLock
+    private Chunk tailChunk;
+    private int tailIndex;
+    private long lastAddedId = -1;
+    private volatile boolean inIdOrder = true;
+
+    // guarded by popLock
+    private Chunk headChunk;
+    private int headIndex;
+
+    ArrayQueueSegmentStore() {
+        tailChunk = new Chunk();
+        headChunk = tailChunk;
+    }
+
+    @Override
+    public void add(Collection<FpqEntry> entries) {
+        pushLock.lock();
+        try {
+            for (FpqEntry entry : entries) {
+                if (CHUNK_SIZE == tailIndex) {
+                    // link before use - a popper that reaches the end of the chunk follows 'next'
+                    Chunk chunk = new Chunk();
+                    tailChunk.next = chunk;
+                    tailChunk = chunk;
+                    tailIndex = 0;
+                }
+                tailChunk.slots.set(tailIndex++, entry);
+                if (entry.getId() < lastAddedId) {
+                    inIdOrder = false;
+                }
+                lastAddedId = Math.max(lastAddedId, entry.getId());
+            }
+            size.addAndGet(entries.size());
+        }
+        finally {
+            pushLock.unlock();
+        }
+    }
+
+    @Override
+    public List<FpqEntry> poll(int max) {
+        ArrayList<FpqEntry> entryList = new ArrayList<FpqEntry>(max);
+        popLock.lock();
+        try {
+            FpqEntry entry;
+            while (entryList.size() < max && null != (entry=peek())) {
+                // clear the slot so the chunk doesn't hold on to popped entries
+                headChunk.slots.set(headIndex++, null);
+                entryList.add(entry);
+            }
+            size.addAndGet(-entryList.size());
+        }
+        finally {
+            popLock.unlock();
+        }
+        return entryList;
+    }
+
+    // must hold popLock
+    private FpqEntry peek() {
+        if (CHUNK_SIZE == headIndex) {
+            Chunk next = headChunk.next;
+            if (null == next) {
+                return null;
+            }
+            headChunk = next;
+            headIndex = 0;
+        }
+        return headChunk.slots.get(headIndex);
+    }
+
+    @Override
+    public boolean contains(final long entryId) {
+        final boolean[] found = new boolean[1];
+        walk(new EntryVisitor() {
+            @Override
+            boolean visit(FpqEntry entry) {
+                found[0] = entryId == entry.getId();
+                return !found[0];
+            }
+        });
+        return found[0];
+    }
+
+    @Override
+    public void addIdsTo(final EntryIdIndex index) {
+        walk(new EntryVisitor() {
+            @Override
+            boolean visit(FpqEntry entry) {
+                index.add(entry.getId());
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public long getMinId() {
+        if (inIdOrder) {
+            popLock.lock();
+            try {
+                FpqEntry head = peek();
+                return null != head ? head.getId() : 0;
+            }
+            finally {
+                popLock.unlock();
+            }
+        }
+
+        final long[] min = {Long.MAX_VALUE};
+        walk(new EntryVisitor() {
+            @Override
+            boolean visit(FpqEntry entry) {
+                min[0] = Math.min(min[0], entry.getId());
+                return true;
+            }
+        });
+        return Long.MAX_VALUE != min[0] ? min[0] : 0;
+    }
+
+    @Override
+    public long getMaxId() {
+        if (inIdOrder) {
+            pushLock.lock();
+            try {
+                // the tail is the last to be popped, so its slot is only cleared once the store is empty
+                FpqEntry tail = 0 < tailIndex ? tailChunk.slots.get(tailIndex - 1) : null;
+                return null != tail ? tail.getId() : -1;
+            }
+            finally {
+                pushLock.unlock();
+            }
+        }
+
+        final long[] max = {-1};
+        walk(new EntryVisitor() {
+            @Override
+            boolean visit(FpqEntry entry) {
+                max[0] = Math.max(max[0], entry.getId());
+                return true;
+            }
+        });
+        return max[0];
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return 0 == size.get();
+    }
+
+    @Override
+    public void clear() {
+        pushLock.lock();
+        popLock.lock();
+        try {
+            tailChunk = new Chunk();
+            tailIndex = 0;
+            headChunk = tailChunk;
+            headIndex = 0;
+            lastAddedId = -1;
+            inIdOrder = true;
+            size.set(0);
+        }
+        finally {
+            popLock.unlock();
+            pushLock.unlock();
+        }
+    }
+
+    @Override
+    public void writeTo(RandomAccessFile raFile, JournalIdResolver resolver) throws IOException {
+        // not walked in place, writing to disk must not hold up poppers
+        for (FpqEntry entry : getEntries()) {
+            entry.writeToPaging(raFile, resolver);
+        }
+    }
+
+    @Override
+    public void readFrom(RandomAccessFile raFile, JournalIdResolver resolver, long numberOfEntries) throws IOException {
+        ArrayList<FpqEntry> entries = new ArrayList<FpqEntry>();
+        for (long i=0;i < numberOfEntries;i++) {
+            FpqEntry entry = new FpqEntry();
+            entry.readFromPaging(raFile, resolver);
+            entries.add(entry);
+        }
+        add(entries);
+    }
+
+    @Override
+    public List<FpqEntry> getEntries() {
+        final ArrayList<FpqEntry> entryList = new ArrayList<FpqEntry>(size.get());
+        walk(new EntryVisitor() {
+            @Override
+            boolean visit(FpqEntry entry) {
+                entryList.add(entry);
+                return true;
+            }
+        });
+        return entryList;
+    }
+
+    // visits the queued entries oldest first, under popLock, until the visitor returns false
+    private void walk(EntryVisitor visitor) {
+        popLock.lock();
+        try {
+            Chunk chunk = headChunk;
+            int index = headIndex;
+            while (null != chunk) {
+                FpqEntry entry = CHUNK_SIZE > index ? chunk.slots.get(index) : null;
+                if (null != entry) {
+                    if (!visitor.visit(entry)) {
+                        return;
+                    }
+                    index++;
+                }
+                else if (CHUNK_SIZE == index) {
+                    chunk = chunk.next;
+                    index = 0;
+                }
+                else {
+                    break;
+                }
+            }
+        }
+        finally {
+            popLock.unlock();
+        }
+    }
+
+    private static abstract class EntryVisitor {
+        abstract boolean visit(FpqEntry entry);
+    }
+
+    private static class Chunk {
+        final AtomicReferenceArray<FpqEntry> slots = new AtomicReferenceArray<FpqEntry>(CHUNK_SIZE);
+        volatile Chunk next;
+    }
+}
@@ -0,0 +1,462 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.btoddb.fastpersitentqueue.exceptions.FpqException;
+import com.btoddb.fastpersitentqueue.exceptions.FpqQueueFull;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Keeps the queue within its entry and byte limits, and keeps pushes from filling the disk.
+ * <p/>
+ * Pushes reserve capacity before they are journaled and pops give it back when committed, so entries in a pop
+ * transaction still count.  Sizes are measured with {@link FpqEntry#getMemorySize()}, the same as the memory segments.
+ * <p/>
+ * A reserve file of diskReservationInBytes is written to each journal and paging directory at startup.  When a
+ * directory's usable space falls below minFreeDiskSpaceInBytes the queue is treated as full and the reserve is
+ * released, so the writes already accepted (journal headers, paging out segments) have room to finish.  The reserve
+ * stays held back from pushes until the disk recovers, then it is written again.
+ */
+public class CapacityMgr {
+    private static final Logger logger = LoggerFactory.getLogger(CapacityMgr.class);
+
+    public static final String RESERVE_FILE_NAME = "reserved-space";
+
+    private static final int MAX_DROP_BATCH_SIZE = 1000;
+    private static final int RESERVE_WRITE_SIZE = 1024 * 1024;
+
+    private long maxQueueSizeInEntries;
+    private long maxQueueSizeInBytes;
+    private CapacityPolicy policy = CapacityPolicy.BLOCK;
+    private long blockTimeoutInMs = 10000;
+    private long diskReservationInBytes;
+    private long minFreeDiskSpaceInBytes;
+    private long diskCheckPeriodInMs = 1000;
+    private List<File> directories = new ArrayList<File>();
+
+    private InMemorySegmentMgr memoryMgr;
+    private JournalMgr journalMgr;
+    private final JmxMetrics jmxMetrics;
+
+    // guarded by 'this'
+    private long numberOfEntries;
+    private long sizeInBytes;
+    private long lastDiskCheck;
+    private boolean diskLow;
+    private boolean reserveReleased;
+    private boolean dropInProgress;
+    private boolean shutdownRequested;
+
+    private AtomicLong entriesDropped = new AtomicLong();
+    private AtomicLong pushesRejected = new AtomicLong();
+
+    public CapacityMgr(JmxMetrics jmxMetrics) {
+        this.jmxMetrics = jmxMetrics;
+    }
+
+    public void init() throws IOException {
+        if (0 > maxQueueSizeInEntries || 0 > maxQueueSizeInBytes) {
+            Utils.logAndThrow(logger, "properties, maxQueueSizeInEntries and maxQueueSizeInBytes, must be zero (unlimited) or greater");
+        }
+        if (0 > diskReservationInBytes || 0 > minFreeDiskSpaceInBytes) {
+            Utils.logAndThrow(logger, "properties, diskReservationInBytes and minFreeDiskSpaceInBytes, must be zero (disabled) or greater");
+        }
+        if (null == policy) {
+            Utils.logAndThrow(logger, "property, capacityPolicy, must be set");
+        }
+
+        // journal and paging directories may be the same, so only reserve once per directory
+        Set<File> uniqueDirs = new LinkedHashSet<File>();
+        for (File dir : directories) {
+            uniqueDirs.add(dir.getAbsoluteFile());
+        }
+        directories = new ArrayList<File>(uniqueDirs);
+
+        for (File dir : directories) {
+            FileUtils.forceMkdir(dir);
+            File reserveFile = new File(dir, RESERVE_FILE_NAME);
+            if (0 < diskReservationInBytes) {
+                reserveDiskSpace(reserveFile);
+            }
+            else {
+                // reservation turned off since last run
+                FileUtils.deleteQuietly(reserveFile);
+            }
+        }
+    }
+
+    /**
+     * Sets the usage of the entries already in the queue at startup (replayed from journals or paged to disk).
+     */
+    public synchronized void setInitialUsage(long numberOfEntries, long sizeInBytes) {
+        this.numberOfEntries = numberOfEntries;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * Claim capacity for entries about to be pushed, applying the {@link CapacityPolicy} if there isn't room.
+     *
+     * @param entries
+     * @throws FpqQueueFull if room could not be made
+     * @throws FpqException if the queue is shutting down
+     */
+    public void reserve(Collection<FpqEntry> entries) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+
+        int count = entries.size();
+        long bytes = sizeOf(entries);
+        if ((0 < maxQueueSizeInEntries && count > maxQueueSizeInEntries) || (0 < maxQueueSizeInBytes && bytes > maxQueueSizeInBytes)) {
+            pushesRejected.incrementAndGet();
+            throw new FpqQueueFull(String.format("push of %d entries (%d bytes) can never fit in queue - maxQueueSizeInEntries = %d, maxQueueSizeInBytes = %d", count, bytes, maxQueueSizeInEntries, maxQueueSizeInBytes));
+        }
+
+        long endTime = System.currentTimeMillis() + blockTimeoutInMs;
+        boolean tryDrop = true;
+        while (true) {
+            int dropBatchSize = 0;
+            synchronized (this) {
+                while (!hasRoom(count, bytes)) {
+                    if (shutdownRequested) {
+                        pushesRejected.incrementAndGet();
+                        throw new FpqException("FPQ shutting down - can't perform operation");
+                    }
+                    if (CapacityPolicy.REJECT == policy) {
+                        pushesRejected.incrementAndGet();
+                        throw new FpqQueueFull(fullMessage(count, bytes));
+                    }
+                    // one dropper at a time, the others wait for it to finish
+                    if (CapacityPolicy.DROP_OLDEST == policy && !diskLow && tryDrop && !dropInProgress
+                            && null != memoryMgr && null != journalMgr) {
+                        dropInProgress = true;
+                        dropBatchSize = dropBatchSize(count);
+                        break;
+                    }
+
+                    long waitTime = endTime - System.currentTimeMillis();
+                    if (0 >= waitTime) {
+                        pushesRejected.incrementAndGet();
+                        throw new FpqQueueFull(fullMessage(count, bytes) + " - timed out after " + blockTimeoutInMs + "ms");
+                    }
+                    try {
+                        // wake up periodically, disk space isn't signalled
+                        wait(Math.min(waitTime, diskCheckPeriodInMs));
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        pushesRejected.incrementAndGet();
+                        throw new FpqQueueFull(fullMessage(count, bytes) + " - interrupted while waiting for room");
+                    }
+                    tryDrop = true;
+                }
+
+                if (0 == dropBatchSize) {
+                    numberOfEntries += count;
+                    sizeInBytes += bytes;
+                    return;
+                }
+            }
+
+            // outside the monitor - the pop may load a paged out segment and the take writes to the journal, which
+            // must not hold up every other push and pop commit
+            try {
+                tryDrop = dropOldest(dropBatchSize);
+            }
+            finally {
+                synchronized (this) {
+                    dropInProgress = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fail pushes waiting for room, and any that arrive later, so shutdown isn't held up by them.
+     */
+    public synchronized void shutdown() {
+        shutdownRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Give back capacity for entries that are no longer in the queue (committed pops, or pushes that failed).
+     *
+     * @param entries
+     */
+    public void release(Collection<FpqEntry> entries) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        long bytes = sizeOf(entries);
+        synchronized (this) {
+            numberOfEntries -= entries.size();
+            sizeInBytes -= bytes;
+            notifyAll();
+        }
+    }
+
+    public boolean isEnabled() {
+        return 0 < maxQueueSizeInEntries || 0 < maxQueueSizeInBytes || 0 < minFreeDiskSpaceInBytes;
+    }
+
+    // must hold monitor
+    private boolean hasRoom(int count, long bytes) throws IOException {
+        if (isDiskLow()) {
+            return false;
+        }
+        return (0 == maxQueueSizeInEntries || numberOfEntries + count <= maxQueueSizeInEntries)
+                && (0 == maxQueueSizeInBytes || sizeInBytes + bytes <= maxQueueSizeInBytes);
+    }
+
+    // must hold monitor
+    private String fullMessage(int count, long bytes) {
+        if (diskLow) {
+            return String.format("cannot push %d entries - usable disk space is below minFreeDiskSpaceInBytes (%d)", count, minFreeDiskSpaceInBytes);
+        }
+        return String.format("cannot push %d entries (%d bytes) - queue has %d entries (%d bytes), maxQueueSizeInEntries = %d, maxQueueSizeInBytes = %d",
+                             count, bytes, numberOfEntries, sizeInBytes, maxQueueSizeInEntries, maxQueueSizeInBytes);
+    }
+
+    // must hold monitor
+    private int dropBatchSize(int count) {
+        long entriesOver = 0 < maxQueueSizeInEntries ? numberOfEntries + count - maxQueueSizeInEntries : 0;
+        return (int) Math.min(Math.max(entriesOver, 1), MAX_DROP_BATCH_SIZE);
+    }
+
+    // must not hold monitor.  returns true if anything was dropped
+    private boolean dropOldest(int batchSize) throws IOException {
+        Collection<FpqEntry> dropped = memoryMgr.pop(batchSize);
+        if (null == dropped || dropped.isEmpty()) {
+            return false;
+        }
+
+        journalMgr.reportTake(dropped);
+        long bytes = sizeOf(dropped);
+        synchronized (this) {
+            numberOfEntries -= dropped.size();
+            sizeInBytes -= bytes;
+        }
+        entriesDropped.addAndGet(dropped.size());
+        jmxMetrics.size.dec(dropped.size());
+        logger.debug("dropped {} oldest entries to make room for push", dropped.size());
+        return true;
+    }
+
+    // must hold monitor
+    private boolean isDiskLow() throws IOException {
+        if (0 == minFreeDiskSpaceInBytes) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastDiskCheck < diskCheckPeriodInMs) {
+            return diskLow;
+        }
+        lastDiskCheck = now;
+
+        // once released, the reserve is still held back from pushes - otherwise they would just consume it
+        long required = minFreeDiskSpaceInBytes + (reserveReleased ? diskReservationInBytes : 0);
+        boolean low = false;
+        for (File dir : directories) {
+            if (dir.getUsableSpace() < required) {
+                low = true;
+                break;
+            }
+        }
+
+        if (low && !diskLow) {
+            logger.warn("usable disk space is below {} bytes - pushes are refused until space is freed", minFreeDiskSpaceInBytes);
+            if (!reserveReleased && 0 < diskReservationInBytes) {
+                releaseDiskReservation();
+            }
+        }
+        else if (!low && reserveReleased) {
+            logger.info("disk space recovered - restoring disk reservation");
+            for (File dir : directories) {
+                reserveDiskSpace(new File(dir, RESERVE_FILE_NAME));
+            }
+            reserveReleased = false;
+        }
+
+        diskLow = low;
+        return diskLow;
+    }
+
+    private void releaseDiskReservation() {
+        for (File dir : directories) {
+            FileUtils.deleteQuietly(new File(dir, RESERVE_FILE_NAME));
+        }
+        reserveReleased = true;
+    }
+
+    /**
+     * Java has no fallocate, and setLength only makes a sparse file, so the reserve is filled with zeros to make
+     * the file system actually allocate the blocks.
+     */
+    private void reserveDiskSpace(File reserveFile) throws IOException {
+        RandomAccessFile raFile = new RandomAccessFile(reserveFile, "rw");
+        try {
+            FileChannel channel = raFile.getChannel();
+            if (channel.size() > diskReservationInBytes) {
+                channel.truncate(diskReservationInBytes);
+            }
+
+            ByteBuffer zeros = ByteBuffer.allocate(RESERVE_WRITE_SIZE);
+            long pos = channel.size();
+            while (pos < diskReservationInBytes) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), diskReservationInBytes - pos));
+                while (zeros.hasRemaining()) {
+                    pos += channel.write(zeros, pos);
+                }
+            }
+            channel.force(true);
+        }
+        catch (IOException e) {
+            raFile.close();
+            FileUtils.deleteQuietly(reserveFile);
+            Utils.logAndThrow(logger, "could not reserve " + diskReservationInBytes + " bytes of disk space : " + reserveFile.getAbsolutePath(), e);
+        }
+        finally {
+            raFile.close();
+        }
+    }
+
+    static long sizeOf(Collection<FpqEntry> entries) {
+        long size = 0;
+        for (FpqEntry entry : entries) {
+            size += entry.getMemorySize();
+        }
+        return size;
+    }
+
+    public synchronized long getNumberOfEntries() {
+        return numberOfEntries;
+    }
+
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public long getEntriesDropped() {
+        return entriesDropped.get();
+    }
+
+    public long getPushesRejected() {
+        return pushesRejected.get();
+    }
+
+    public long getMaxQueueSizeInEntries() {
+        return maxQueueSizeInEntries;
+    }
+
+    public void setMaxQueueSizeInEntries(long maxQueueSizeInEntries) {
+        this.maxQueueSizeInEntries = maxQueueSizeInEntries;
+    }
+
+    public long getMaxQueueSizeInBytes() {
+        return maxQueueSizeInBytes;
+    }
+
+    public void setMaxQueueSizeInBytes(long maxQueueSizeInBytes) {
+        this.maxQueueSizeInBytes = maxQueueSizeInBytes;
+    }
+
+    public CapacityPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(CapacityPolicy policy) {
+        this.policy = policy;
+    }
+
+    public long getBlockTimeoutInMs() {
+        return blockTimeoutInMs;
+    }
+
+    public void setBlockTimeoutInMs(long blockTimeoutInMs) {
+        this.blockTimeoutInMs = blockTimeoutInMs;
+    }
+
+    public long getDiskReservationInBytes() {
+        return diskReservationInBytes;
+    }
+
+    public void setDiskReservationInBytes(long diskReservationInBytes) {
+        this.diskReservationInBytes = diskReservationInBytes;
+    }
+
+    public long getMinFreeDiskSpaceInBytes() {
+        return minFreeDiskSpaceInBytes;
+    }
+
+    public void setMinFreeDiskSpaceInBytes(long minFreeDiskSpaceInBytes) {
+        this.minFreeDiskSpaceInBytes = minFreeDiskSpaceInBytes;
+    }
+
+    public long getDiskCheckPeriodInMs() {
+        return diskCheckPeriodInMs;
+    }
+
+    public void setDiskCheckPeriodInMs(long diskCheckPeriodInMs) {
+        this.diskCheckPeriodInMs = diskCheckPeriodInMs;
+    }
+
+    public List<File> getDirectories() {
+        return directories;
+    }
+
+    public void setDirectories(List<File> directories) {
+        this.directories = new ArrayList<File>(directories);
+    }
+
+    public void setMemoryMgr(InMemorySegmentMgr memoryMgr) {
+        this.memoryMgr = memoryMgr;
+    }
+
+    public void setJournalMgr(JournalMgr journalMgr) {
+        this.journalMgr = journalMgr;
+    }
+}
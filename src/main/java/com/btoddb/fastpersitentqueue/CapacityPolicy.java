@@ -0,0 +1,50 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+/**
+ * What a push does when committing it would take the queue over its capacity.
+ */
+public enum CapacityPolicy {
+    /**
+     * Commit waits for pops to make room, giving up with {@link com.btoddb.fastpersitentqueue.exceptions.FpqQueueFull}
+     * after capacityBlockTimeoutInMs.
+     */
+    BLOCK,
+
+    /**
+     * Commit fails immediately with {@link com.btoddb.fastpersitentqueue.exceptions.FpqQueueFull}.
+     */
+    REJECT,
+
+    /**
+     * The oldest entries available for popping are discarded to make room.  If nothing can be discarded (everything
+     * is in a pop transaction or paged out) or the disk is low, behaves like {@link #BLOCK}.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,219 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.Checksum;
+
+
+/**
+ * Append-only log of the IDs of entries taken from one journal, so replay can skip them instead of handing them
+ * out again.  Lives next to the journal as "consumed-[journal UUID]" and is removed with it.
+ *
+ * Format: batches of [int count][count longs][int crc32c of the IDs], one per reportTake.  Loading stops at the
+ * first batch that is incomplete or fails its checksum, and truncates the rest.  Losing a batch only means its
+ * entries are replayed again - which is what happened before there was a log - so the log is not fsync'ed until
+ * it is closed.
+ */
+class ConsumptionLog {
+    private static final Logger logger = LoggerFactory.getLogger(ConsumptionLog.class);
+    static final String FILE_PREFIX = "consumed-";
+    private static final String REWRITE_SUFFIX = ".rewrite";
+    private static final int BATCH_OVERHEAD = 8;
+
+    private final File file;
+    private final Checksum checksum = Crc32c.create();
+    private RandomAccessFile raFile;
+    private ByteBuffer buffer = ByteBuffer.allocate(BATCH_OVERHEAD + 64 * 8);
+    private long size;
+    private boolean deleted;
+
+    ConsumptionLog(File journalFile, String journalId) {
+        this.file = new File(journalFile.getParentFile(), FILE_PREFIX + journalId);
+    }
+
+    /**
+     * Read the IDs logged so far, truncating anything after the last good batch.
+     *
+     * @return the IDs, empty if there is no log yet
+     * @throws IOException
+     */
+    synchronized EntryIdIndex load() throws IOException {
+        EntryIdIndex ids = new EntryIdIndex();
+        if (!file.exists()) {
+            return ids;
+        }
+
+        RandomAccessFile tmpFile = new RandomAccessFile(file, "rw");
+        try {
+            long length = tmpFile.length();
+            long pos = 0;
+            while (pos + BATCH_OVERHEAD <= length) {
+                tmpFile.seek(pos);
+                int count = tmpFile.readInt();
+                if (0 >= count || (length - pos - BATCH_OVERHEAD) / 8 < count) {
+                    break;
+                }
+
+                byte[] batch = new byte[count * 8];
+                tmpFile.readFully(batch);
+                checksum.reset();
+                checksum.update(batch, 0, batch.length);
+                if ((int) checksum.getValue() != tmpFile.readInt()) {
+                    break;
+                }
+
+                ByteBuffer bb = ByteBuffer.wrap(batch);
+                for (int i=0;i < count;i++) {
+                    ids.add(bb.getLong());
+                }
+                pos += BATCH_OVERHEAD + batch.length;
+            }
+
+            if (pos < length) {
+                logger.warn("consumption log, {}, has a torn or corrupt batch at position {} - truncating it", file.getAbsolutePath(), pos);
+                tmpFile.setLength(pos);
+            }
+            size = pos;
+        }
+        finally {
+            tmpFile.close();
+        }
+        return ids;
+    }
+
+    synchronized void append(long[] ids, int count) throws IOException {
+        if (deleted || 0 == count) {
+            return;
+        }
+        if (null == raFile) {
+            raFile = new RandomAccessFile(file, "rw");
+            raFile.seek(size);
+        }
+
+        ByteBuffer bb = fillBatch(ids, count);
+        while (bb.hasRemaining()) {
+            raFile.getChannel().write(bb);
+        }
+        size += BATCH_OVERHEAD + count * 8;
+    }
+
+    /**
+     * Replace the log with only the given IDs, before a compacted journal that only contains these is swapped in.
+     * The replacement is atomic, so a crash leaves the old log or the new one.  If it fails the old log is left as
+     * it was and the journal must not be swapped.
+     *
+     * @param ids
+     * @throws IOException if the new log could not be written
+     */
+    synchronized void rewrite(EntryIdIndex ids) throws IOException {
+        if (deleted) {
+            return;
+        }
+
+        File tmpFile = new File(file.getParentFile(), file.getName() + REWRITE_SUFFIX);
+        try {
+            closeFile();
+            long[] idArray = ids.toArray();
+            RandomAccessFile newFile = new RandomAccessFile(tmpFile, "rw");
+            try {
+                if (0 < idArray.length) {
+                    ByteBuffer bb = fillBatch(idArray, idArray.length);
+                    while (bb.hasRemaining()) {
+                        newFile.getChannel().write(bb);
+                    }
+                }
+                newFile.getChannel().force(false);
+            }
+            finally {
+                newFile.close();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            size = 0 < idArray.length ? BATCH_OVERHEAD + idArray.length * 8 : 0;
+        }
+        catch (IOException e) {
+            FileUtils.deleteQuietly(tmpFile);
+            throw e;
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (null != raFile) {
+            raFile.getChannel().force(false);
+        }
+        closeFile();
+    }
+
+    synchronized void delete() {
+        deleted = true;
+        try {
+            closeFile();
+        }
+        catch (IOException e) {
+            logger.error("exception while closing consumption log, {}", file.getAbsolutePath(), e);
+        }
+        FileUtils.deleteQuietly(file);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    private void closeFile() throws IOException {
+        if (null != raFile) {
+            raFile.close();
+            raFile = null;
+        }
+    }
+
+    private ByteBuffer fillBatch(long[] ids, int count) {
+        int length = BATCH_OVERHEAD + count * 8;
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(length);
+        }
+        buffer.clear();
+        buffer.putInt(count);
+        for (int i=0;i < count;i++) {
+            buffer.putLong(ids[i]);
+        }
+        checksum.reset();
+        checksum.update(buffer.array(), 4, count * 8);
+        buffer.putInt((int) checksum.getValue());
+        buffer.flip();
+        return buffer;
+    }
+}
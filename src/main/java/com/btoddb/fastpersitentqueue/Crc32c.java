@@ -0,0 +1,100 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.Checksum;
+
+
+/**
+ * CRC-32C (Castagnoli), the checksum used for journal records.  Use {@link #create()} - it returns the JDK's
+ * hardware accelerated java.util.zip.CRC32C when running on Java 9 or later, otherwise this table driven version.
+ * Both produce the same values, so journals can move between JVMs.
+ */
+public class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78; // reversed
+    private static final int[] TABLE = new int[256];
+    private static final Constructor<?> JDK_CRC32C_CONSTRUCTOR;
+
+    static {
+        for (int i=0;i < 256;i++) {
+            int crc = i;
+            for (int j=0;j < 8;j++) {
+                crc = 0 != (crc & 1) ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+
+        Constructor<?> constructor;
+        try {
+            constructor = Class.forName("java.util.zip.CRC32C").getDeclaredConstructor();
+        }
+        catch (ClassNotFoundException | NoSuchMethodException e) {
+            constructor = null;
+        }
+        JDK_CRC32C_CONSTRUCTOR = constructor;
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    public static Checksum create() {
+        if (null != JDK_CRC32C_CONSTRUCTOR) {
+            try {
+                return (Checksum) JDK_CRC32C_CONSTRUCTOR.newInstance();
+            }
+            catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                // fall through to our own
+            }
+        }
+        return new Crc32c();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int tmp = crc;
+        for (int i=off;i < off+len;i++) {
+            tmp = (tmp >>> 8) ^ TABLE[(tmp ^ b[i]) & 0xFF];
+        }
+        crc = tmp;
+    }
+
+    @Override
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
@@ -0,0 +1,312 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Sequential writer for a journal opened for direct I/O (O_DIRECT), so journal writes don't fill the page cache.
+ * Direct I/O can only write whole, aligned blocks from an aligned buffer.  Appended bytes are collected in an
+ * aligned buffer and {@link #flush()} writes every block they touch.  The last block is usually partial - it is
+ * written padded with zeros, which replay already treats as the end of data, and written again with more data by
+ * the next flush.
+ *
+ * The DIRECT open option and aligned buffers only exist in newer JVMs (10+), so they are looked up by reflection.
+ * {@link #open(File, int)} returns null if the JVM or the file system can't do direct I/O.
+ */
+class DirectIoWriter {
+    private static final Logger logger = LoggerFactory.getLogger(DirectIoWriter.class);
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final OpenOption DIRECT_OPTION = findDirectOpenOption();
+    private static final Method ALIGNED_SLICE_METHOD = findMethod(ByteBuffer.class, "alignedSlice", int.class);
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final ByteBuffer buffer;
+    private final ByteBuffer blockScratch;
+    // file offset of buffer[0], always block aligned
+    private long bufferFileOffset;
+    // start of the bytes in buffer not yet written, always block aligned
+    private int dirtyFrom;
+
+    DirectIoWriter(FileChannel channel, int blockSize, int bufferSize) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.buffer = allocateAligned(Math.max(blockSize, bufferSize / blockSize * blockSize), blockSize);
+        this.blockScratch = allocateAligned(blockSize, blockSize);
+    }
+
+    /**
+     * Open an existing file for direct I/O.
+     *
+     * @param file
+     * @param bufferSize size of the aligned buffer, rounded down to a multiple of the block size
+     * @return the writer, or null if direct I/O isn't supported for this file
+     */
+    static DirectIoWriter open(File file, int bufferSize) {
+        if (null == DIRECT_OPTION || null == ALIGNED_SLICE_METHOD) {
+            logger.warn("direct I/O is not supported by this JVM - journal, {}, will be written through the page cache", file);
+            return null;
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, DIRECT_OPTION);
+            return new DirectIoWriter(channel, findBlockSize(file), bufferSize);
+        }
+        catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            logger.warn("could not open journal, {}, for direct I/O - it will be written through the page cache", file, e);
+            if (null != channel) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e1) {
+                    // ignore
+                }
+            }
+            return null;
+        }
+    }
+
+    static boolean isSupported() {
+        return null != DIRECT_OPTION && null != ALIGNED_SLICE_METHOD;
+    }
+
+    /**
+     * Append the bytes to the buffer.  Only written when the buffer fills or on {@link #flush()}.
+     *
+     * @param src
+     * @throws IOException
+     */
+    void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                // every block is complete, so they can all be written and the buffer reused from the start
+                writeBlocks(buffer.capacity());
+                bufferFileOffset += buffer.capacity();
+                buffer.clear();
+                dirtyFrom = 0;
+            }
+
+            int length = Math.min(src.remaining(), buffer.remaining());
+            ByteBuffer tmp = src.duplicate();
+            tmp.limit(tmp.position() + length);
+            buffer.put(tmp);
+            src.position(src.position() + length);
+        }
+    }
+
+    void write(ByteBuffer[] srcs) throws IOException {
+        for (ByteBuffer src : srcs) {
+            if (null != src) {
+                write(src);
+            }
+        }
+    }
+
+    /**
+     * Write every block touched since the last flush.  The partial block at the end is kept at the start of the
+     * buffer, it will be written again by the next flush.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        int end = buffer.position();
+        int writeEnd = alignUp(end);
+        if (writeEnd == dirtyFrom) {
+            return;
+        }
+
+        // old bytes may be past the end of data, and only zeros are recognized as the end
+        for (int i=end;i < writeEnd;i++) {
+            buffer.put(i, (byte) 0);
+        }
+        writeBlocks(writeEnd);
+
+        int partialStart = alignDown(end);
+        if (0 < partialStart) {
+            ByteBuffer partial = buffer.duplicate();
+            partial.limit(end).position(partialStart);
+            buffer.clear();
+            buffer.put(partial);
+            bufferFileOffset += partialStart;
+        }
+        dirtyFrom = 0;
+    }
+
+    /**
+     * Overwrite bytes that have already been written, within one block.  Used to update the journal header.
+     *
+     * @param fileOffset
+     * @param src
+     * @throws IOException
+     */
+    void writeAt(long fileOffset, ByteBuffer src) throws IOException {
+        long blockStart = fileOffset / blockSize * blockSize;
+        if (fileOffset + src.remaining() > blockStart + blockSize) {
+            throw new IllegalArgumentException("cannot write across a block boundary");
+        }
+
+        if (blockStart >= bufferFileOffset) {
+            // still in the buffer, so written by the next flush
+            int index = (int) (fileOffset - bufferFileOffset);
+            ByteBuffer tmp = buffer.duplicate();
+            tmp.clear();
+            tmp.position(index);
+            tmp.put(src);
+            dirtyFrom = Math.min(dirtyFrom, (int) (blockStart - bufferFileOffset));
+            return;
+        }
+
+        blockScratch.clear();
+        while (blockScratch.hasRemaining()) {
+            if (0 > channel.read(blockScratch, blockStart + blockScratch.position())) {
+                break;
+            }
+        }
+        blockScratch.clear();
+        blockScratch.position((int) (fileOffset - blockStart));
+        blockScratch.put(src);
+        blockScratch.clear();
+        while (blockScratch.hasRemaining()) {
+            channel.write(blockScratch, blockStart + blockScratch.position());
+        }
+    }
+
+    /**
+     * @return file offset of the end of the data, including what hasn't been flushed
+     */
+    long position() {
+        return bufferFileOffset + buffer.position();
+    }
+
+    /**
+     * Flush, then drop the zero padding after the end of data and close the file.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        try {
+            flush();
+            channel.truncate(position());
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    private void writeBlocks(int writeEnd) throws IOException {
+        ByteBuffer tmp = buffer.duplicate();
+        tmp.limit(writeEnd).position(dirtyFrom);
+        while (tmp.hasRemaining()) {
+            channel.write(tmp, bufferFileOffset + tmp.position());
+        }
+    }
+
+    private int alignUp(int pos) {
+        return (pos + blockSize - 1) / blockSize * blockSize;
+    }
+
+    private int alignDown(int pos) {
+        return pos / blockSize * blockSize;
+    }
+
+    // --------------
+
+    // the aligned slice's capacity is smaller than requested, so over allocate by one block
+    static ByteBuffer allocateAligned(int size, int alignment) {
+        if (null != ALIGNED_SLICE_METHOD) {
+            try {
+                ByteBuffer tmp = (ByteBuffer) ALIGNED_SLICE_METHOD.invoke(ByteBuffer.allocateDirect(size + alignment), alignment);
+                tmp.limit(size);
+                return tmp.slice();
+            }
+            catch (ReflectiveOperationException e) {
+                logger.debug("could not create aligned buffer - using unaligned buffer", e);
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private static int findBlockSize(File file) {
+        try {
+            FileStore store = Files.getFileStore(file.toPath());
+            Method method = findMethod(FileStore.class, "getBlockSize");
+            if (null != method) {
+                long blockSize = (Long) method.invoke(store);
+                if (0 < blockSize && blockSize <= 64 * 1024 && 0 == (blockSize & (blockSize - 1))) {
+                    return (int) blockSize;
+                }
+            }
+        }
+        catch (IOException | ReflectiveOperationException | RuntimeException e) {
+            logger.debug("could not find block size of file store for {} - using {}", file, DEFAULT_BLOCK_SIZE, e);
+        }
+        return DEFAULT_BLOCK_SIZE;
+    }
+
+    private static OpenOption findDirectOpenOption() {
+        try {
+            Class<?> clazz = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object option : clazz.getEnumConstants()) {
+                if ("DIRECT".equals(((Enum<?>) option).name())) {
+                    return (OpenOption) option;
+                }
+            }
+        }
+        catch (ClassNotFoundException e) {
+            // not available
+        }
+        return null;
+    }
+
+    private static Method findMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+        try {
+            return clazz.getMethod(name, parameterTypes);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+/**
+ * When a committed push is guaranteed to be on disk.
+ */
+public enum DurabilityMode {
+    /**
+     * Commit does not return until the journal has been fsync'ed.  Concurrent commits share an fsync only when
+     * group commit is enabled.
+     */
+    SYNC,
+
+    /**
+     * Commit waits for an fsync, but commits arriving close together are batched behind a single fsync.  The
+     * batch is synced when it is groupSyncMaxWaitInMs old or has groupSyncMaxBytes pending, whichever comes first.
+     */
+    GROUP,
+
+    /**
+     * Commit returns as soon as the entries are written to the journal.  The journal is fsync'ed within
+     * flushPeriodInMs of being written, sooner once flushMaxBytes are pending, so a crash can lose up to that much
+     * committed data.
+     */
+    PERIODIC
+}
@@ -0,0 +1,285 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Compact set of entry IDs, in the style of a roaring bitmap.  IDs are split into chunks of 65536 by their high
+ * bits.  A chunk holding few IDs is a sorted array of 16 bit values, and a chunk holding many is a 8KB bitmap.
+ * Entry IDs are handed out sequentially, so a chunk is usually full and the index costs about one bit per ID.
+ *
+ * Used as the paged entry index in a {@link MemorySegment}'s paging file header, and at startup so journal replay
+ * can ask "is this entry already queued?" without walking every segment (or touching disk).  Not thread-safe for adds, but lookups don't change anything,
+ * so once built an index can be read by any number of threads.
+ */
+public class EntryIdIndex {
+    static final int ARRAY_CONTAINER_MAX = 4096;
+    private static final int BITMAP_WORDS = 65536 / 64;
+
+    private final TreeMap<Long, Container> containers = new TreeMap<Long, Container>();
+    private long size;
+
+    // IDs are added in order, so the last chunk is almost always the next one needed.  only used by add - a lookup
+    // must not write, other threads may be reading the same index
+    private long lastKey = -1;
+    private Container lastContainer;
+
+    public void add(long id) {
+        long key = id >>> 16;
+        Container container = getContainerForAdd(key);
+        if (null == container) {
+            container = new Container();
+            containers.put(key, container);
+            lastKey = key;
+            lastContainer = container;
+        }
+        if (container.add((char) id)) {
+            size++;
+        }
+    }
+
+    public void addAll(EntryIdIndex other) {
+        addAll(other, null);
+    }
+
+    /**
+     * Add the IDs of other that are also in filter, or all of them if filter is null.
+     *
+     * @param other
+     * @param filter
+     */
+    public void addAll(EntryIdIndex other, EntryIdIndex filter) {
+        for (Map.Entry<Long, Container> entry : other.containers.entrySet()) {
+            long high = entry.getKey() << 16;
+            Container container = entry.getValue();
+            if (null != container.bitmap) {
+                for (int i=0;i < BITMAP_WORDS;i++) {
+                    long word = container.bitmap[i];
+                    while (0 != word) {
+                        addIfContained(high | ((long) i << 6) | Long.numberOfTrailingZeros(word), filter);
+                        word &= word - 1;
+                    }
+                }
+            }
+            else {
+                for (int i=0;i < container.cardinality;i++) {
+                    addIfContained(high | container.array[i], filter);
+                }
+            }
+        }
+    }
+
+    private void addIfContained(long id, EntryIdIndex filter) {
+        if (null == filter || filter.contains(id)) {
+            add(id);
+        }
+    }
+
+    /**
+     * @return the IDs, in increasing order
+     */
+    public long[] toArray() {
+        long[] ids = new long[(int) size];
+        int i = 0;
+        for (Map.Entry<Long, Container> entry : containers.entrySet()) {
+            long high = entry.getKey() << 16;
+            Container container = entry.getValue();
+            if (null != container.bitmap) {
+                for (int w=0;w < BITMAP_WORDS;w++) {
+                    long word = container.bitmap[w];
+                    while (0 != word) {
+                        ids[i++] = high | ((long) w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            }
+            else {
+                for (int c=0;c < container.cardinality;c++) {
+                    ids[i++] = high | container.array[c];
+                }
+            }
+        }
+        return ids;
+    }
+
+    public boolean contains(long id) {
+        Container container = containers.get(id >>> 16);
+        return null != container && container.contains((char) id);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return 0 == size;
+    }
+
+    private Container getContainerForAdd(long key) {
+        if (key == lastKey) {
+            return lastContainer;
+        }
+        Container container = containers.get(key);
+        if (null != container) {
+            lastKey = key;
+            lastContainer = container;
+        }
+        return container;
+    }
+
+    /**
+     * Format: [int length of what follows][int number of chunks] then per chunk
+     * [long key][int cardinality][cardinality chars, or 1024 longs when cardinality > ARRAY_CONTAINER_MAX]
+     *
+     * @param raFile
+     * @throws IOException
+     */
+    public void writeToDisk(RandomAccessFile raFile) throws IOException {
+        int length = 4;
+        for (Container container : containers.values()) {
+            length += 8 + 4 + (null != container.bitmap ? BITMAP_WORDS * 8 : container.cardinality * 2);
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(4 + length);
+        bb.putInt(length);
+        bb.putInt(containers.size());
+        for (Map.Entry<Long, Container> entry : containers.entrySet()) {
+            Container container = entry.getValue();
+            bb.putLong(entry.getKey());
+            bb.putInt(container.cardinality);
+            if (null != container.bitmap) {
+                bb.asLongBuffer().put(container.bitmap);
+                bb.position(bb.position() + BITMAP_WORDS * 8);
+            }
+            else {
+                bb.asCharBuffer().put(container.array, 0, container.cardinality);
+                bb.position(bb.position() + container.cardinality * 2);
+            }
+        }
+        raFile.write(bb.array());
+    }
+
+    public static EntryIdIndex readFromDisk(RandomAccessFile raFile) throws IOException {
+        int length = Utils.readInt(raFile);
+        byte[] theBytes = new byte[length];
+        raFile.readFully(theBytes);
+        ByteBuffer bb = ByteBuffer.wrap(theBytes);
+
+        EntryIdIndex index = new EntryIdIndex();
+        int numContainers = bb.getInt();
+        for (int i=0;i < numContainers;i++) {
+            long key = bb.getLong();
+            Container container = new Container();
+            container.cardinality = bb.getInt();
+            if (container.cardinality > ARRAY_CONTAINER_MAX) {
+                container.array = null;
+                container.bitmap = new long[BITMAP_WORDS];
+                bb.asLongBuffer().get(container.bitmap);
+                bb.position(bb.position() + BITMAP_WORDS * 8);
+            }
+            else {
+                container.array = new char[Math.max(4, container.cardinality)];
+                bb.asCharBuffer().get(container.array, 0, container.cardinality);
+                bb.position(bb.position() + container.cardinality * 2);
+            }
+            index.containers.put(key, container);
+            index.size += container.cardinality;
+        }
+        return index;
+    }
+
+    // ------------
+
+    private static class Container {
+        // exactly one of these is non-null
+        private char[] array = new char[4];
+        private long[] bitmap;
+        private int cardinality;
+
+        boolean add(char low) {
+            if (null != bitmap) {
+                long mask = 1L << low;
+                int word = low >>> 6;
+                if (0 != (bitmap[word] & mask)) {
+                    return false;
+                }
+                bitmap[word] |= mask;
+                cardinality++;
+                return true;
+            }
+
+            int pos;
+            // sequential IDs are always appended
+            if (0 == cardinality || array[cardinality-1] < low) {
+                pos = cardinality;
+            }
+            else {
+                pos = Arrays.binarySearch(array, 0, cardinality, low);
+                if (0 <= pos) {
+                    return false;
+                }
+                pos = -pos - 1;
+            }
+
+            if (cardinality == ARRAY_CONTAINER_MAX) {
+                convertToBitmap();
+                return add(low);
+            }
+
+            if (cardinality == array.length) {
+                array = Arrays.copyOf(array, Math.min(ARRAY_CONTAINER_MAX, array.length * 2));
+            }
+            System.arraycopy(array, pos, array, pos+1, cardinality-pos);
+            array[pos] = low;
+            cardinality++;
+            return true;
+        }
+
+        boolean contains(char low) {
+            if (null != bitmap) {
+                return 0 != (bitmap[low >>> 6] & (1L << low));
+            }
+            return 0 <= Arrays.binarySearch(array, 0, cardinality, low);
+        }
+
+        private void convertToBitmap() {
+            bitmap = new long[BITMAP_WORDS];
+            for (int i=0;i < cardinality;i++) {
+                char low = array[i];
+                bitmap[low >>> 6] |= 1L << low;
+            }
+            array = null;
+        }
+    }
+}
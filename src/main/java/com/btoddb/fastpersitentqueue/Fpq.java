@@ -33,8 +33,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -47,18 +49,46 @@ public class Fpq {
     private static final Logger logger = LoggerFactory.getLogger(Fpq.class);
 
     private File journalDirectory;
+    private List<File> journalDirectories;
+    private JournalPlacementPolicy journalPlacementPolicy = JournalPlacementPolicy.ROUND_ROBIN;
     private JournalMgr journalMgr;
 
     private InMemorySegmentMgr memoryMgr;
+    private CapacityMgr capacityMgr;
 
     private String queueName;
     private File pagingDirectory;
     private long maxMemorySegmentSizeInBytes = 1000000;
+    private MemorySegmentStorage memorySegmentStorage = MemorySegmentStorage.SKIP_LIST;
+    private int segmentPrefetchDepth = 0;
+    private long segmentPrefetchPeriodInMs = 100;
     private int maxTransactionSize = 100;
     private int numberOfFlushWorkers = 4;
     private long flushPeriodInMs = 10000;
+    private long flushMaxBytes = 4 * 1024 * 1024;
     private long maxJournalFileSize = 100000000;
     private long maxJournalDurationInMs = 5 * 60 * 1000;
+    private boolean groupCommitEnabled;
+    private boolean memoryMappedJournalsEnabled;
+    private boolean compressedJournalsEnabled;
+    private boolean directIoJournalsEnabled;
+    private boolean journalRecyclingEnabled;
+    private int maxRecycledJournals = 4;
+    private boolean journalCompactionEnabled;
+    private double journalCompactionThreshold = 0.25;
+    private long journalCompactionPeriodInMs = 60000;
+    private boolean consumptionLogEnabled;
+    private DurabilityMode durabilityMode = DurabilityMode.PERIODIC;
+    private long groupSyncMaxWaitInMs = 5;
+    private long groupSyncMaxBytes = 1024 * 1024;
+    private int numberOfActiveJournals = 1;
+    private int numberOfReplayWorkers = 4;
+    private long maxQueueSizeInEntries;
+    private long maxQueueSizeInBytes;
+    private CapacityPolicy capacityPolicy = CapacityPolicy.BLOCK;
+    private long capacityBlockTimeoutInMs = 10000;
+    private long diskReservationInBytes;
+    private long minFreeDiskSpaceInBytes;
 
     private AtomicLong entryIdGenerator = new AtomicLong();
     private long journalEntriesReplayed;
@@ -87,34 +117,86 @@ public class Fpq {
         jmxMetrics.init();
 
         journalMgr = new JournalMgr();
-        journalMgr.setDirectory(journalDirectory);
+        if (null != journalDirectories) {
+            journalMgr.setDirectories(journalDirectories);
+        }
+        else {
+            journalMgr.setDirectory(journalDirectory);
+        }
+
+        // reserve disk space before journals and paging files start using it
+        capacityMgr = new CapacityMgr(jmxMetrics);
+        List<File> capacityDirs = new ArrayList<File>(journalMgr.getDirectories());
+        capacityDirs.add(pagingDirectory);
+        capacityMgr.setDirectories(capacityDirs);
+        capacityMgr.setMaxQueueSizeInEntries(maxQueueSizeInEntries);
+        capacityMgr.setMaxQueueSizeInBytes(maxQueueSizeInBytes);
+        capacityMgr.setPolicy(capacityPolicy);
+        capacityMgr.setBlockTimeoutInMs(capacityBlockTimeoutInMs);
+        capacityMgr.setDiskReservationInBytes(diskReservationInBytes);
+        capacityMgr.setMinFreeDiskSpaceInBytes(minFreeDiskSpaceInBytes);
+        capacityMgr.init();
+
+        journalMgr.setPlacementPolicy(journalPlacementPolicy);
         journalMgr.setNumberOfFlushWorkers(numberOfFlushWorkers);
         journalMgr.setFlushPeriodInMs(flushPeriodInMs);
+        journalMgr.setFlushMaxBytes(flushMaxBytes);
         journalMgr.setMaxJournalFileSize(maxJournalFileSize);
         journalMgr.setMaxJournalDurationInMs(maxJournalDurationInMs);
+        journalMgr.setGroupCommitEnabled(groupCommitEnabled);
+        journalMgr.setMemoryMappedJournalsEnabled(memoryMappedJournalsEnabled);
+        journalMgr.setCompressedJournalsEnabled(compressedJournalsEnabled);
+        journalMgr.setDirectIoJournalsEnabled(directIoJournalsEnabled);
+        journalMgr.setJournalRecyclingEnabled(journalRecyclingEnabled);
+        journalMgr.setMaxRecycledJournals(maxRecycledJournals);
+        journalMgr.setJournalCompactionEnabled(journalCompactionEnabled);
+        journalMgr.setJournalCompactionThreshold(journalCompactionThreshold);
+        journalMgr.setJournalCompactionPeriodInMs(journalCompactionPeriodInMs);
+        journalMgr.setConsumptionLogEnabled(consumptionLogEnabled);
+        journalMgr.setDurabilityMode(durabilityMode);
+        journalMgr.setGroupSyncMaxWaitInMs(groupSyncMaxWaitInMs);
+        journalMgr.setGroupSyncMaxBytes(groupSyncMaxBytes);
+        journalMgr.setNumberOfActiveJournals(numberOfActiveJournals);
+        journalMgr.setNumberOfReplayWorkers(numberOfReplayWorkers);
         journalMgr.init();
 
         memoryMgr = new InMemorySegmentMgr(jmxMetrics);
         memoryMgr.setMaxSegmentSizeInBytes(maxMemorySegmentSizeInBytes);
+        memoryMgr.setSegmentStorage(memorySegmentStorage);
+        memoryMgr.setSegmentPrefetchDepth(segmentPrefetchDepth);
+        memoryMgr.setSegmentPrefetchPeriodInMs(segmentPrefetchPeriodInMs);
         memoryMgr.setPagingDirectory(pagingDirectory);
+        memoryMgr.setJournalIdResolver(journalMgr);
         memoryMgr.init();
 
         replayJournals();
 
+        capacityMgr.setMemoryMgr(memoryMgr);
+        capacityMgr.setJournalMgr(journalMgr);
+        capacityMgr.setInitialUsage(memoryMgr.getNumberOfEntries(), memoryMgr.getSizeInBytes());
+
         initializing = false;
     }
 
     private void replayJournals() throws IOException {
-        JournalMgr.JournalReplayIterable journalReplayer = journalMgr.createReplayIterable();
-        for (FpqEntry entry : journalReplayer) {
-            if (!memoryMgr.isEntryQueued(entry)) {
-                memoryMgr.push(entry);
-                journalEntriesReplayed++;
-            }
-            else {
-                logger.trace("entry already in memory segment : " + entry.getId());
+        // one pass over the segments up front, instead of searching them (and their paging files) per entry
+        EntryIdIndex queuedIds = memoryMgr.createQueuedEntryIndex();
+
+        ParallelJournalReplayer journalReplayer = journalMgr.createParallelReplayIterable();
+        try {
+            for (FpqEntry entry : journalReplayer) {
+                if (!queuedIds.contains(entry.getId())) {
+                    memoryMgr.push(entry);
+                    journalEntriesReplayed++;
+                }
+                else {
+                    logger.trace("entry already in memory segment : " + entry.getId());
+                }
             }
         }
+        finally {
+            journalReplayer.close();
+        }
     }
 
     private FpqContext createContext() {
@@ -219,7 +301,7 @@ public class Fpq {
         Collection<FpqEntry> tmp;
         int numPopped = 0;
         do {
-            tmp = memoryMgr.pop(batchSize);
+            tmp = memoryMgr.pop(batchSize - numPopped);
             if (null != tmp) {
                 numPopped += tmp.size();
 
@@ -243,7 +325,7 @@ public class Fpq {
      */
     public void commit() throws IOException {
         // assumptions
-        // - fsync thread will persist
+        // - fsync thread will persist, unless durabilityMode makes the journal append wait for fsync
         shutdownLock.readLock().lock();
         try {
             FpqContext context = contextThrowException();
@@ -268,6 +350,7 @@ public class Fpq {
 
         if (!context.isQueueEmpty()) {
             journalMgr.reportTake(context.getQueue());
+            capacityMgr.release(context.getQueue());
             jmxMetrics.incrementPops(context.size());
         }
     }
@@ -281,7 +364,17 @@ public class Fpq {
             return;
         }
 
-        Collection<FpqEntry> entries = journalMgr.append(context.getQueue());
+        // throws FpqQueueFull (leaving the transaction open) if the capacity policy can't make room
+        capacityMgr.reserve(context.getQueue());
+
+        Collection<FpqEntry> entries;
+        try {
+            entries = journalMgr.append(context.getQueue());
+        }
+        catch (IOException | RuntimeException e) {
+            capacityMgr.release(context.getQueue());
+            throw e;
+        }
         memoryMgr.push(entries);
         jmxMetrics.incrementPushes(entries.size());
     }
@@ -349,6 +442,11 @@ public class Fpq {
             }
         }
 
+        // pushes still waiting for room hold the shutdown read lock - fail them
+        if (null != capacityMgr) {
+            capacityMgr.shutdown();
+        }
+
         shutdownLock.writeLock().lock();
         try {
             // any pop'ed entries in progress will be preserved by journals
@@ -396,6 +494,28 @@ public class Fpq {
         this.journalDirectory = journalDirectory;
     }
 
+    public List<File> getJournalDirectories() {
+        return journalDirectories;
+    }
+
+    /**
+     * Spread journals across several directories (ideally on separate devices).  Takes precedence over
+     * {@link #setJournalDirectory(java.io.File)}.
+     *
+     * @param journalDirectories
+     */
+    public void setJournalDirectories(List<File> journalDirectories) {
+        this.journalDirectories = journalDirectories;
+    }
+
+    public JournalPlacementPolicy getJournalPlacementPolicy() {
+        return journalPlacementPolicy;
+    }
+
+    public void setJournalPlacementPolicy(JournalPlacementPolicy journalPlacementPolicy) {
+        this.journalPlacementPolicy = journalPlacementPolicy;
+    }
+
     public long getMaxMemorySegmentSizeInBytes() {
         return maxMemorySegmentSizeInBytes;
     }
@@ -404,6 +524,38 @@ public class Fpq {
         this.maxMemorySegmentSizeInBytes = maxMemorySegmentSizeInBytes;
     }
 
+    public MemorySegmentStorage getMemorySegmentStorage() {
+        return memorySegmentStorage;
+    }
+
+    public void setMemorySegmentStorage(MemorySegmentStorage memorySegmentStorage) {
+        this.memorySegmentStorage = memorySegmentStorage;
+    }
+
+    public int getSegmentPrefetchDepth() {
+        return segmentPrefetchDepth;
+    }
+
+    /**
+     * Number of paged out memory segments, past the one being popped, that may be loaded ahead of consumers.  Loading
+     * starts when the pop rate says consumers will run out of READY entries before a load could finish.  These
+     * segments are in addition to the max number of active segments.  Zero disables the prefetch, so a segment is
+     * only loaded after the one in front of it has been drained.  Disabled by default.
+     *
+     * @param segmentPrefetchDepth
+     */
+    public void setSegmentPrefetchDepth(int segmentPrefetchDepth) {
+        this.segmentPrefetchDepth = segmentPrefetchDepth;
+    }
+
+    public long getSegmentPrefetchPeriodInMs() {
+        return segmentPrefetchPeriodInMs;
+    }
+
+    public void setSegmentPrefetchPeriodInMs(long segmentPrefetchPeriodInMs) {
+        this.segmentPrefetchPeriodInMs = segmentPrefetchPeriodInMs;
+    }
+
     public JournalMgr getJournalMgr() {
         return journalMgr;
     }
@@ -428,6 +580,14 @@ public class Fpq {
         return flushPeriodInMs;
     }
 
+    public void setFlushMaxBytes(long flushMaxBytes) {
+        this.flushMaxBytes = flushMaxBytes;
+    }
+
+    public long getFlushMaxBytes() {
+        return flushMaxBytes;
+    }
+
     public void setMaxJournalFileSize(long maxJournalFileSize) {
         this.maxJournalFileSize = maxJournalFileSize;
     }
@@ -444,6 +604,209 @@ public class Fpq {
         return maxJournalDurationInMs;
     }
 
+    public boolean isGroupCommitEnabled() {
+        return groupCommitEnabled;
+    }
+
+    public void setGroupCommitEnabled(boolean groupCommitEnabled) {
+        this.groupCommitEnabled = groupCommitEnabled;
+    }
+
+    public boolean isMemoryMappedJournalsEnabled() {
+        return memoryMappedJournalsEnabled;
+    }
+
+    public void setMemoryMappedJournalsEnabled(boolean memoryMappedJournalsEnabled) {
+        this.memoryMappedJournalsEnabled = memoryMappedJournalsEnabled;
+    }
+
+    public boolean isCompressedJournalsEnabled() {
+        return compressedJournalsEnabled;
+    }
+
+    public void setCompressedJournalsEnabled(boolean compressedJournalsEnabled) {
+        this.compressedJournalsEnabled = compressedJournalsEnabled;
+    }
+
+    public boolean isDirectIoJournalsEnabled() {
+        return directIoJournalsEnabled;
+    }
+
+    public void setDirectIoJournalsEnabled(boolean directIoJournalsEnabled) {
+        this.directIoJournalsEnabled = directIoJournalsEnabled;
+    }
+
+    public boolean isJournalRecyclingEnabled() {
+        return journalRecyclingEnabled;
+    }
+
+    public void setJournalRecyclingEnabled(boolean journalRecyclingEnabled) {
+        this.journalRecyclingEnabled = journalRecyclingEnabled;
+    }
+
+    public int getMaxRecycledJournals() {
+        return maxRecycledJournals;
+    }
+
+    public void setMaxRecycledJournals(int maxRecycledJournals) {
+        this.maxRecycledJournals = maxRecycledJournals;
+    }
+
+    public boolean isJournalCompactionEnabled() {
+        return journalCompactionEnabled;
+    }
+
+    public void setJournalCompactionEnabled(boolean journalCompactionEnabled) {
+        this.journalCompactionEnabled = journalCompactionEnabled;
+    }
+
+    public double getJournalCompactionThreshold() {
+        return journalCompactionThreshold;
+    }
+
+    public void setJournalCompactionThreshold(double journalCompactionThreshold) {
+        this.journalCompactionThreshold = journalCompactionThreshold;
+    }
+
+    public long getJournalCompactionPeriodInMs() {
+        return journalCompactionPeriodInMs;
+    }
+
+    public void setJournalCompactionPeriodInMs(long journalCompactionPeriodInMs) {
+        this.journalCompactionPeriodInMs = journalCompactionPeriodInMs;
+    }
+
+    public boolean isConsumptionLogEnabled() {
+        return consumptionLogEnabled;
+    }
+
+    public void setConsumptionLogEnabled(boolean consumptionLogEnabled) {
+        this.consumptionLogEnabled = consumptionLogEnabled;
+    }
+
+    public int getNumberOfReplayWorkers() {
+        return numberOfReplayWorkers;
+    }
+
+    public void setNumberOfReplayWorkers(int numberOfReplayWorkers) {
+        this.numberOfReplayWorkers = numberOfReplayWorkers;
+    }
+
+    public int getNumberOfActiveJournals() {
+        return numberOfActiveJournals;
+    }
+
+    public void setNumberOfActiveJournals(int numberOfActiveJournals) {
+        this.numberOfActiveJournals = numberOfActiveJournals;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    public void setDurabilityMode(DurabilityMode durabilityMode) {
+        this.durabilityMode = durabilityMode;
+    }
+
+    public long getGroupSyncMaxWaitInMs() {
+        return groupSyncMaxWaitInMs;
+    }
+
+    public void setGroupSyncMaxWaitInMs(long groupSyncMaxWaitInMs) {
+        this.groupSyncMaxWaitInMs = groupSyncMaxWaitInMs;
+    }
+
+    public long getGroupSyncMaxBytes() {
+        return groupSyncMaxBytes;
+    }
+
+    public void setGroupSyncMaxBytes(long groupSyncMaxBytes) {
+        this.groupSyncMaxBytes = groupSyncMaxBytes;
+    }
+
+    public long getMaxQueueSizeInEntries() {
+        return maxQueueSizeInEntries;
+    }
+
+    /**
+     * Limit the number of entries in the queue, including those popped but not yet committed.  Zero means unlimited.
+     *
+     * @param maxQueueSizeInEntries
+     */
+    public void setMaxQueueSizeInEntries(long maxQueueSizeInEntries) {
+        this.maxQueueSizeInEntries = maxQueueSizeInEntries;
+    }
+
+    public long getMaxQueueSizeInBytes() {
+        return maxQueueSizeInBytes;
+    }
+
+    /**
+     * Limit the memory size of the entries in the queue, including those popped but not yet committed.  Zero means
+     * unlimited.
+     *
+     * @param maxQueueSizeInBytes
+     */
+    public void setMaxQueueSizeInBytes(long maxQueueSizeInBytes) {
+        this.maxQueueSizeInBytes = maxQueueSizeInBytes;
+    }
+
+    public CapacityPolicy getCapacityPolicy() {
+        return capacityPolicy;
+    }
+
+    public void setCapacityPolicy(CapacityPolicy capacityPolicy) {
+        this.capacityPolicy = capacityPolicy;
+    }
+
+    public long getCapacityBlockTimeoutInMs() {
+        return capacityBlockTimeoutInMs;
+    }
+
+    public void setCapacityBlockTimeoutInMs(long capacityBlockTimeoutInMs) {
+        this.capacityBlockTimeoutInMs = capacityBlockTimeoutInMs;
+    }
+
+    public long getDiskReservationInBytes() {
+        return diskReservationInBytes;
+    }
+
+    /**
+     * Disk space set aside in each journal and paging directory, released when the disk runs low so writes already
+     * committed can finish.  Zero means no reservation.
+     *
+     * @param diskReservationInBytes
+     */
+    public void setDiskReservationInBytes(long diskReservationInBytes) {
+        this.diskReservationInBytes = diskReservationInBytes;
+    }
+
+    public long getMinFreeDiskSpaceInBytes() {
+        return minFreeDiskSpaceInBytes;
+    }
+
+    /**
+     * Pushes are refused (per the capacity policy) while any journal or paging directory has less usable space.  Zero
+     * means disk space is not checked.
+     *
+     * @param minFreeDiskSpaceInBytes
+     */
+    public void setMinFreeDiskSpaceInBytes(long minFreeDiskSpaceInBytes) {
+        this.minFreeDiskSpaceInBytes = minFreeDiskSpaceInBytes;
+    }
+
+    public long getEntriesDropped() {
+        return capacityMgr.getEntriesDropped();
+    }
+
+    public long getPushesRejected() {
+        return capacityMgr.getPushesRejected();
+    }
+
+    public long getSegmentPrefetches() {
+        return memoryMgr.getNumberOfPrefetches();
+    }
+
     public long getJournalsCreated() {
         return journalMgr.getJournalsCreated();
     }
@@ -452,6 +815,10 @@ public class Fpq {
         return journalMgr.getJournalsRemoved();
     }
 
+    public long getJournalsCompacted() {
+        return journalMgr.getJournalsCompacted();
+    }
+
     public File getPagingDirectory() {
         return pagingDirectory;
     }
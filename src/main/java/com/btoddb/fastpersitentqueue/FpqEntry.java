@@ -34,6 +34,7 @@ import org.slf4j.LoggerFactory;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -43,10 +44,12 @@ public class FpqEntry {
     private static final Logger logger = LoggerFactory.getLogger(FpqEntry.class);
 
     public static final UUID EMPTY_JOURNAL_ID = new UUID(0L, 0L);
+    public static final long NO_JOURNAL_SEQUENCE = 0;
 
     private long id;
     private byte[] data;
-    private UUID journalId = EMPTY_JOURNAL_ID;
+    private ByteBuffer dataView;
+    private long journalSequence = NO_JOURNAL_SEQUENCE;
 
     public FpqEntry() {
     }
@@ -56,18 +59,84 @@ public class FpqEntry {
         this.data = data;
     }
 
+    /**
+     * Entry whose data is still in a (memory mapped) journal.  The data is copied out by
+     * {@link #materializeData()}, or the first time {@link #getData()} is called.
+     *
+     * @param id
+     * @param dataView
+     */
+    public FpqEntry(long id, ByteBuffer dataView) {
+        this.id = id;
+        this.dataView = dataView;
+    }
+
     public long getMemorySize() {
         return 8 + // id length = long
                 4 + // data length = integer
-                24 + // UUID
-                (null != data ? data.length : 0);
+                8 + // journal sequence = long
+                getDataLength();
     }
 
-    public void writeToJournal(RandomAccessFile raFile) throws IOException {
-        Utils.writeLong(raFile, id);
-        writeData(raFile);
+    public int getDataLength() {
+        if (null != data) {
+            return data.length;
+        }
+        return null != dataView ? dataView.remaining() : 0;
+    }
+
+    /**
+     * Copy the data out of the journal mapping, so the entry no longer holds on to the mapping.  Does nothing if
+     * the entry already owns its data.
+     */
+    public void materializeData() {
+        if (null == data && null != dataView) {
+            byte[] tmp = new byte[dataView.remaining()];
+            dataView.duplicate().get(tmp);
+            data = tmp;
+            dataView = null;
+        }
+    }
+
+    // junit testing only
+    boolean isDataMaterialized() {
+        return null == dataView;
+    }
+
+    /**
+     * Number of bytes this entry occupies in a journal file.
+     *
+     * @return
+     */
+    public int getJournalSize() {
+        return JournalFile.ENTRY_HEADER_SIZE + getDataLength();
+    }
+
+    public void writeToJournal(ByteBuffer buffer, int recordMarker, int checksum) {
+        writeJournalHeader(buffer, recordMarker, checksum);
+        buffer.put(getData());
+    }
+
+    /**
+     * Write only the record header.  Used when the data is written separately (gathering write).
+     *
+     * @param buffer
+     * @param recordMarker identifies records belonging to the journal
+     * @param checksum CRC of id, data length and data
+     */
+    public void writeJournalHeader(ByteBuffer buffer, int recordMarker, int checksum) {
+        buffer.putInt(recordMarker);
+        buffer.putLong(id);
+        buffer.putInt(getDataLength());
+        buffer.putInt(checksum);
     }
 
+    /**
+     * Read a version 1 journal record.  Version 2 records are read by {@link JournalFile} so they can be validated.
+     *
+     * @param raFile
+     * @throws IOException
+     */
     public void readFromJournal(RandomAccessFile raFile) throws IOException {
         try {
             id = Utils.readLong(raFile);
@@ -78,15 +147,22 @@ public class FpqEntry {
         }
     }
 
-    public void writeToPaging(RandomAccessFile raFile) throws IOException {
+    /**
+     * The journal sequence doesn't survive a restart, so paging files refer to the journal by its UUID.
+     *
+     * @param raFile
+     * @param resolver
+     * @throws IOException
+     */
+    public void writeToPaging(RandomAccessFile raFile, JournalIdResolver resolver) throws IOException {
         Utils.writeLong(raFile, id);
-        Utils.writeUuidToFile(raFile, journalId);
+        Utils.writeUuidToFile(raFile, resolver.getJournalId(journalSequence));
         writeData(raFile);
     }
 
-    public void readFromPaging(RandomAccessFile raFile) throws IOException {
+    public void readFromPaging(RandomAccessFile raFile, JournalIdResolver resolver) throws IOException {
         id = Utils.readLong(raFile);
-        journalId = Utils.readUuidFromFile(raFile);
+        journalSequence = resolver.getJournalSequence(Utils.readUuidFromFile(raFile));
         readData(raFile);
     }
 
@@ -105,15 +181,19 @@ public class FpqEntry {
     }
 
     public byte[] getData() {
+        materializeData();
         return data;
     }
 
-    public UUID getJournalId() {
-        return journalId;
+    /**
+     * @return sequence of the journal this entry was written to, see {@link JournalDescriptor#getSequence()}
+     */
+    public long getJournalSequence() {
+        return journalSequence;
     }
 
-    public void setJournalId(UUID journalId) {
-        this.journalId = journalId;
+    public void setJournalSequence(long journalSequence) {
+        this.journalSequence = journalSequence;
     }
 
     public long getId() {
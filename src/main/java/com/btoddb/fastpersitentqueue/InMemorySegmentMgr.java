@@ -32,6 +32,8 @@ import com.btoddb.fastpersitentqueue.exceptions.FpqPushFinished;
 import com.btoddb.fastpersitentqueue.exceptions.FpqSegmentNotInReadyState;
 import com.eaio.uuid.UUID;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.NameFileFilter;
+import org.apache.commons.io.filefilter.NotFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +44,7 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -54,15 +57,20 @@ public class InMemorySegmentMgr {
 
     // properties
     private long maxSegmentSizeInBytes;
+    private MemorySegmentStorage segmentStorage = MemorySegmentStorage.SKIP_LIST;
     private int maxNumberOfActiveSegments = 4;
     private volatile boolean shutdownInProgress;
     private File pagingDirectory;
     private int numberOfSerializerThreads = 2;
     private int numberOfCleanupThreads = 1;
+    private int segmentPrefetchDepth = 0;
+    private long segmentPrefetchPeriodInMs = 100;
 
     // internals
     private final Object selectWhichSegmentLoadMonitor = new Object();
     private ConcurrentSkipListSet<MemorySegment> segments = new ConcurrentSkipListSet<MemorySegment>();
+    // created ahead of time, so the segment that replaces a finished one is ready to go
+    private AtomicReference<MemorySegment> standbySegment = new AtomicReference<MemorySegment>();
     private MemorySegmentSerializer segmentSerializer = new MemorySegmentSerializer();
     private JmxMetrics jmxMetrics;
 
@@ -71,6 +79,14 @@ public class InMemorySegmentMgr {
     private AtomicLong numberOfEntries = new AtomicLong();
     private AtomicLong numberOfSwapOut = new AtomicLong();
     private AtomicLong numberOfSwapIn = new AtomicLong();
+    private AtomicLong numberOfPrefetches = new AtomicLong();
+
+    // prefetch uses these to predict when consumers will run out of READY entries
+    private AtomicLong numberOfEntriesPopped = new AtomicLong();
+    private long lastPrefetchCheck;
+    private long lastNumberOfEntriesPopped;
+    private double popRatePerMs;
+    private volatile long averageLoadTimeInMs;
 
 
     private ExecutorService serializerExecSrvc = Executors.newFixedThreadPool(numberOfSerializerThreads,
@@ -93,6 +109,8 @@ public class InMemorySegmentMgr {
                                                           }
                                                       });
 
+    private ScheduledExecutorService prefetchExecSrvc;
+
     public InMemorySegmentMgr(JmxMetrics jmxMetrics) {
         this.jmxMetrics = jmxMetrics;
     }
@@ -104,17 +122,49 @@ public class InMemorySegmentMgr {
         if (4 > maxNumberOfActiveSegments) {
             throw new FpqException("property, maxNumberOfActiveSegments, must be 4 or greater");
         }
+        if (0 > segmentPrefetchDepth) {
+            throw new FpqException("property, segmentPrefetchDepth, must be zero (disabled) or greater");
+        }
+        if (0 >= segmentPrefetchPeriodInMs) {
+            throw new FpqException("property, segmentPrefetchPeriodInMs, must be greater than zero");
+        }
 
         segmentSerializer.setDirectory(pagingDirectory);
+        segmentSerializer.setSegmentStorage(segmentStorage);
         segmentSerializer.init();
 
         loadPagedSegments();
         createNewSegment();
+        createStandbySegment();
+
+        if (0 < segmentPrefetchDepth) {
+            lastPrefetchCheck = System.currentTimeMillis();
+            prefetchExecSrvc = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                                                        @Override
+                                                        public Thread newThread(Runnable r) {
+                                                            Thread t = new Thread(r);
+                                                            t.setName("FPQ-Segment-Prefetcher");
+                                                            return t;
+                                                        }
+                                                    });
+            prefetchExecSrvc.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prefetchSegments();
+                    }
+                    catch (Throwable e) {
+                        // an exception would cancel the schedule
+                        logger.error("exception while prefetching memory segments", e);
+                    }
+                }
+            }, segmentPrefetchPeriodInMs, segmentPrefetchPeriodInMs, TimeUnit.MILLISECONDS);
+        }
     }
 
     private void loadPagedSegments() throws IOException {
         // read files and sort by their UUID name so they are in proper chronological order
-        Collection<File> files = FileUtils.listFiles(pagingDirectory, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
+        Collection<File> files = FileUtils.listFiles(pagingDirectory, new NotFileFilter(new NameFileFilter(CapacityMgr.RESERVE_FILE_NAME)), TrueFileFilter.INSTANCE);
         TreeSet<File> sortedFiles = new TreeSet<File>(new Comparator<File>() {
             @Override
             public int compare(File o1, File o2) {
@@ -140,7 +190,7 @@ public class InMemorySegmentMgr {
                 segment.setPushingFinished(true);
 
                 assert segment.getNumberOfOnlineEntries() > 0;
-                assert !segment.getQueue().isEmpty();
+                assert 0 < segment.getQueueSize();
 
                 numberOfActiveSegments.incrementAndGet();
             }
@@ -183,6 +233,8 @@ public class InMemorySegmentMgr {
         // calculate memory used by the list of entries
         long spaceRequired = 0;
         for (FpqEntry entry : events) {
+            // entries replayed from a mapped journal don't own their data until now
+            entry.materializeData();
             spaceRequired += entry.getMemorySize();
         }
 
@@ -226,12 +278,14 @@ public class InMemorySegmentMgr {
             // only one time per segment will this exception be thrown.  if caught, signals
             // this thread should check if needed to be paged out to disk
             catch (FpqPushFinished e) {
+                // promote first - the other pushers are waiting for a new segment
                 createNewSegment();
                 synchronized (numberOfActiveSegments) {
                     if (numberOfActiveSegments.get() > maxNumberOfActiveSegments) {
                         pageSegmentToDisk(segment);
                     }
                 }
+                createStandbySegment();
                 logger.debug("creating new segment - now {} active segments", numberOfActiveSegments.get());
             }
         }
@@ -248,7 +302,8 @@ public class InMemorySegmentMgr {
     }
 
     /**
-     * pick segment and pop up to 'batchSize' events from it.
+     * pop up to 'batchSize' events, oldest segment first.  if a segment can't provide all of them, the rest are popped
+     * from the next READY segments.
      *
      * @param batchSize
      * @return
@@ -260,19 +315,18 @@ public class InMemorySegmentMgr {
 
         logger.debug("popping up to {} events", batchSize);
 
-        // find the memory segment we need and reserve our entries
-        // will not use multiple segments to achieve 'batchSize'
-
         // we'll make only one pass through the segments.  if no entries available, or no segments ready
         // for popping (because could be OFFLINE, SAVING, etc), then null is returned (not empty collection)
+        List<FpqEntry> popped = null;
         for (final MemorySegment seg : segments) {
             // guarantee no manipulation of segment while deciding from which segment to pop.
             // if segment is not READY then we can't pop from it.  however, if it is the first OFFLINE
             // segment in FIFO, then we *should* be popping from it.  but until it's loaded we skip it
 
+            int needed = batchSize - (null != popped ? popped.size() : 0);
             Collection<FpqEntry> entries;
             try {
-                entries = seg.pop(batchSize);
+                entries = seg.pop(needed);
             }
             catch (FpqSegmentNotInReadyState e) {
                 logger.debug("segment, {}, is not in READY state ({}) - skipping", seg.getId(), seg.getStatus());
@@ -282,7 +336,18 @@ public class InMemorySegmentMgr {
             if (null != entries) {
                 logger.debug("popped {} entries from segment : {}", entries.size(), seg.toString());
                 numberOfEntries.addAndGet(-entries.size());
-                return entries;
+                numberOfEntriesPopped.addAndGet(entries.size());
+                if (entries.size() == batchSize) {
+                    // the common case - one segment had them all
+                    return entries;
+                }
+                if (null == popped) {
+                    popped = new ArrayList<FpqEntry>(batchSize);
+                }
+                popped.addAll(entries);
+                if (popped.size() == batchSize) {
+                    return popped;
+                }
             }
 
             // at this point no entries available for any thread to pop, so check if we can remove it
@@ -299,22 +364,38 @@ public class InMemorySegmentMgr {
             }
         }
 
-        // if didn't find anything, return null
-        return null;
+        // null if didn't find anything
+        return popped;
     }
 
     private void createNewSegment() {
-        UUID newId = new UUID();
+        MemorySegment seg = standbySegment.getAndSet(null);
+        if (null == seg) {
+            // segments finished faster than standbys are created
+            seg = createSegment();
+        }
 
-        MemorySegment seg = new MemorySegment();
-        seg.setId(newId);
-        seg.setMaxSizeInBytes(maxSegmentSizeInBytes);
-        seg.setStatus(MemorySegment.Status.READY);
+        // the id orders the segments, so it's assigned when the segment is put in use, not when it was created
+        seg.setId(new UUID());
 
         segments.add(seg);
         numberOfActiveSegments.incrementAndGet();
     }
 
+    private void createStandbySegment() {
+        // checked first so the common case - a standby is already waiting - doesn't build one just to throw it away
+        if (null == standbySegment.get()) {
+            standbySegment.compareAndSet(null, createSegment());
+        }
+    }
+
+    private MemorySegment createSegment() {
+        MemorySegment seg = new MemorySegment(segmentStorage);
+        seg.setMaxSizeInBytes(maxSegmentSizeInBytes);
+        seg.setStatus(MemorySegment.Status.READY);
+        return seg;
+    }
+
     private void pageSegmentToDisk(final MemorySegment segment) {
         // thread-safe in the respect that only one thread should schedule this
 
@@ -324,6 +405,12 @@ public class InMemorySegmentMgr {
                 // make sure not determining which segment to page-in from disk
                 logger.debug("set status to SAVING for segment {}", segment.getId());
                 synchronized (selectWhichSegmentLoadMonitor) {
+                    // shutdown pages out every READY segment, including those already waiting here to be paged.
+                    // saving it twice would overwrite the paging file with the cleared queue
+                    if (MemorySegment.Status.READY != segment.getStatus()) {
+                        logger.debug("segment {} is {} - already paged out", segment.getId(), segment.getStatus());
+                        return;
+                    }
                     segment.setStatus(MemorySegment.Status.SAVING);
                 }
 
@@ -383,12 +470,72 @@ public class InMemorySegmentMgr {
             return;
         }
 
-        final MemorySegment segment = tmp;
+        scheduleLoad(tmp);
+    }
+
+    /**
+     * Load OFFLINE segments before consumers get to them, so they don't find only OFFLINE/LOADING segments while a
+     * segment is loaded after the one in front is drained.  From the front of the queue, the next OFFLINE segment
+     * is loaded when the entries READY ahead of it will last no longer than twice the average load time (plus one
+     * check period) at the current pop rate.  At most 'segmentPrefetchDepth' segments past the one being popped are
+     * loaded or loading at any time - these are in addition to maxNumberOfActiveSegments.
+     */
+    void prefetchSegments() {
+        if (shutdownInProgress) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long popped = numberOfEntriesPopped.get();
+        double rate = (double)(popped - lastNumberOfEntriesPopped) / Math.max(1, now - lastPrefetchCheck);
+        // smooth it a bit so one quiet check period doesn't stop the prefetch
+        popRatePerMs = 0 < popRatePerMs ? (popRatePerMs + rate) / 2 : rate;
+        lastNumberOfEntriesPopped = popped;
+        lastPrefetchCheck = now;
+
+        long leadTimeInMs = 2 * averageLoadTimeInMs + segmentPrefetchPeriodInMs;
+        // the first READY segment is the one being popped, not read-ahead
+        int segmentsAhead = -1;
+        long entriesAhead = 0;
+        for (MemorySegment seg : segments) {
+            MemorySegment.Status status = seg.getStatus();
+            if (MemorySegment.Status.READY == status) {
+                segmentsAhead++;
+                entriesAhead += seg.getNumberOfOnlineEntries();
+            }
+            else if (MemorySegment.Status.LOADING == status) {
+                segmentsAhead++;
+            }
+            else if (MemorySegment.Status.OFFLINE == status) {
+                // entries ahead are never enough if nobody is popping, unless there aren't any
+                boolean due = 0 == entriesAhead || (0 < popRatePerMs && entriesAhead / popRatePerMs <= leadTimeInMs);
+                if (segmentsAhead >= segmentPrefetchDepth || !due) {
+                    break;
+                }
+
+                synchronized (selectWhichSegmentLoadMonitor) {
+                    if (MemorySegment.Status.OFFLINE != seg.getStatus()) {
+                        break;
+                    }
+                    seg.setStatus(MemorySegment.Status.LOADING);
+                }
+                logger.debug("prefetching segment {} - {} entries ahead of it, popping {} entries/ms", seg.getId(), entriesAhead, popRatePerMs);
+                numberOfPrefetches.incrementAndGet();
+                scheduleLoad(seg);
+                segmentsAhead++;
+            }
+            // SAVING will be OFFLINE soon, REMOVING is empty - neither is read-ahead
+        }
+    }
+
+    private void scheduleLoad(final MemorySegment segment) {
         logger.debug("scheduling load of segment, {}", segment.getId());
         serializerExecSrvc.submit(new Runnable() {
             @Override
             public void run() {
                 try {
+                    long start = System.currentTimeMillis();
+
                     // segment is OFFLINE so no need for synchronization  during load
                     segmentSerializer.loadFromDisk(segment);
                     logger.debug("segment loaded = {}", segment.toString());
@@ -401,6 +548,8 @@ public class InMemorySegmentMgr {
                     numberOfActiveSegments.incrementAndGet();
 
                     numberOfSwapIn.incrementAndGet();
+                    long loadTime = System.currentTimeMillis() - start;
+                    averageLoadTimeInMs = 0 < averageLoadTimeInMs ? (averageLoadTimeInMs + loadTime) / 2 : loadTime;
                 }
                 catch (IOException e) {
                     logger.error("exception while loading memory segment, {}, from disk - discarding", segment.getId().toString(), e);
@@ -433,6 +582,31 @@ public class InMemorySegmentMgr {
         return 0 == size();
     }
 
+    /**
+     * Snapshot the IDs of every queued entry, online or paged out, with one pass over the segments.  Paged out
+     * segments use the index from their paging file header, so no disk access unless the paging file predates it.
+     * Used by journal replay instead of calling {@link #isEntryQueued(FpqEntry)} per entry.
+     *
+     * @return
+     * @throws IOException
+     */
+    public EntryIdIndex createQueuedEntryIndex() throws IOException {
+        EntryIdIndex index = new EntryIdIndex();
+        for (MemorySegment seg : segments) {
+            EntryIdIndex pagedIndex = seg.getPagedEntryIndex();
+            if (MemorySegment.Status.OFFLINE != seg.getStatus()) {
+                seg.addQueuedEntryIdsTo(index);
+            }
+            else if (null != pagedIndex) {
+                index.addAll(pagedIndex);
+            }
+            else {
+                segmentSerializer.addOfflineEntryIds(seg, index);
+            }
+        }
+        return index;
+    }
+
     public boolean isEntryQueued(FpqEntry entry) throws IOException {
         for (MemorySegment seg : segments) {
             try {
@@ -453,11 +627,23 @@ public class InMemorySegmentMgr {
     public void shutdown() {
         shutdownInProgress = true;
 
+        if (null != prefetchExecSrvc) {
+            prefetchExecSrvc.shutdown();
+            try {
+                prefetchExecSrvc.awaitTermination(60, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                // ignore
+                Thread.interrupted();
+            }
+        }
+
         // wait until all segments are either READY or OFFLINE
-        // then serialize the READYs
+        // then serialize the READYs.  REMOVING segments are empty and never change status again, so don't wait
         for ( MemorySegment segment : segments ) {
             while (segment.getStatus() != MemorySegment.Status.READY
-                    && segment.getStatus() != MemorySegment.Status.OFFLINE) {
+                    && segment.getStatus() != MemorySegment.Status.OFFLINE
+                    && segment.getStatus() != MemorySegment.Status.REMOVING) {
                 try {
                     Thread.sleep(100);
                 }
@@ -510,18 +696,56 @@ public class InMemorySegmentMgr {
         return segments;
     }
 
+    // junit testing only
+    MemorySegment getStandbySegment() {
+        return standbySegment.get();
+    }
+
     public void setMaxSegmentSizeInBytes(long maxSegmentSizeInBytes) {
         this.maxSegmentSizeInBytes = maxSegmentSizeInBytes;
     }
 
+    public MemorySegmentStorage getSegmentStorage() {
+        return segmentStorage;
+    }
+
+    public void setSegmentStorage(MemorySegmentStorage segmentStorage) {
+        this.segmentStorage = segmentStorage;
+    }
+
     public long getNumberOfEntries() {
         return numberOfEntries.get();
     }
 
+    /**
+     * @return memory size of the entries in all segments, including those paged to disk
+     */
+    public long getSizeInBytes() {
+        long size = 0;
+        for (MemorySegment seg : segments) {
+            size += seg.getSizeInBytes();
+        }
+        return size;
+    }
+
     public void setPagingDirectory(File pagingDirectory) {
         this.pagingDirectory = pagingDirectory;
     }
 
+    public JournalIdResolver getJournalIdResolver() {
+        return segmentSerializer.getJournalIdResolver();
+    }
+
+    /**
+     * Translates the journal sequence of paged entries to and from the UUID written in the paging file.  Must be
+     * set before init if there are journals.
+     *
+     * @param journalIdResolver
+     */
+    public void setJournalIdResolver(JournalIdResolver journalIdResolver) {
+        segmentSerializer.setJournalIdResolver(journalIdResolver);
+    }
+
     public long getNumberOfSwapOut() {
         return numberOfSwapOut.get();
     }
@@ -530,6 +754,26 @@ public class InMemorySegmentMgr {
         return numberOfSwapIn.get();
     }
 
+    public long getNumberOfPrefetches() {
+        return numberOfPrefetches.get();
+    }
+
+    public int getSegmentPrefetchDepth() {
+        return segmentPrefetchDepth;
+    }
+
+    public void setSegmentPrefetchDepth(int segmentPrefetchDepth) {
+        this.segmentPrefetchDepth = segmentPrefetchDepth;
+    }
+
+    public long getSegmentPrefetchPeriodInMs() {
+        return segmentPrefetchPeriodInMs;
+    }
+
+    public void setSegmentPrefetchPeriodInMs(long segmentPrefetchPeriodInMs) {
+        this.segmentPrefetchPeriodInMs = segmentPrefetchPeriodInMs;
+    }
+
     public int getNumberOfSerializerThreads() {
         return numberOfSerializerThreads;
     }
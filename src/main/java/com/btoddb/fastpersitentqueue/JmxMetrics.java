@@ -78,6 +78,30 @@ public class JmxMetrics {
                                      }
                                  }
         );
+        metricsRegistry.register(MetricRegistry.name("entriesDropped"),
+                                 new Gauge<Long>() {
+                                     @Override
+                                     public Long getValue() {
+                                         return fpq.getEntriesDropped();
+                                     }
+                                 }
+        );
+        metricsRegistry.register(MetricRegistry.name("pushesRejected"),
+                                 new Gauge<Long>() {
+                                     @Override
+                                     public Long getValue() {
+                                         return fpq.getPushesRejected();
+                                     }
+                                 }
+        );
+        metricsRegistry.register(MetricRegistry.name("segmentPrefetches"),
+                                 new Gauge<Long>() {
+                                     @Override
+                                     public Long getValue() {
+                                         return fpq.getSegmentPrefetches();
+                                     }
+                                 }
+        );
     }
 
     public long getPopCount() {
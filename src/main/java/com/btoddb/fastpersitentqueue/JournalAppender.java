@@ -0,0 +1,195 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.btoddb.fastpersitentqueue.exceptions.FpqException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Group commit for journal appends.  Pushing threads hand their batches to this appender and wait.  A single
+ * thread collects every batch waiting at that moment, writes them to the journal with one append, then
+ * releases all of the callers together.  Only this thread touches its stripe's journal descriptor monitor, so
+ * pushers never convoy on it.
+ */
+public class JournalAppender implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(JournalAppender.class);
+
+    private final JournalMgr journalMgr;
+    private final int stripe;
+    private final LinkedBlockingQueue<AppendRequest> requestQueue = new LinkedBlockingQueue<AppendRequest>();
+    private volatile boolean shutdownRequested;
+    private volatile boolean stopped;
+
+    public JournalAppender(JournalMgr journalMgr, int stripe) {
+        this.journalMgr = journalMgr;
+        this.stripe = stripe;
+    }
+
+    /**
+     * Queue the entries for the next group write and block until they are in the journal.
+     *
+     * @param entries
+     * @return the journal the entries were written to
+     * @throws IOException if the group write failed
+     */
+    public JournalFile append(Collection<FpqEntry> entries) throws IOException {
+        if (stopped) {
+            throw new FpqException("journal appender has been shutdown, cannot append");
+        }
+
+        AppendRequest request = new AppendRequest(entries);
+        requestQueue.add(request);
+
+        // the appender thread may have exited between the check above and the add
+        if (stopped) {
+            failRemainingRequests();
+        }
+
+        return request.await();
+    }
+
+    @Override
+    public void run() {
+        List<AppendRequest> group = new ArrayList<AppendRequest>();
+        List<FpqEntry> entries = new ArrayList<FpqEntry>();
+        try {
+            while (!shutdownRequested || !requestQueue.isEmpty()) {
+                AppendRequest first;
+                try {
+                    first = requestQueue.poll(100, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.interrupted();
+                    continue;
+                }
+                if (null == first) {
+                    continue;
+                }
+
+                group.add(first);
+                requestQueue.drainTo(group);
+                for (AppendRequest request : group) {
+                    entries.addAll(request.entries);
+                }
+
+                Exception error = null;
+                JournalFile journalFile = null;
+                try {
+                    journalFile = journalMgr.writeEntries(stripe, entries);
+                }
+                catch (IOException | RuntimeException e) {
+                    logger.error("exception while appending group of {} entries to journal", entries.size(), e);
+                    error = e;
+                }
+
+                for (AppendRequest request : group) {
+                    request.complete(journalFile, error);
+                }
+
+                logger.trace("group committed {} request(s) with {} entries", group.size(), entries.size());
+                group.clear();
+                entries.clear();
+            }
+        }
+        finally {
+            stopped = true;
+            failRemainingRequests();
+        }
+    }
+
+    private void failRemainingRequests() {
+        AppendRequest request;
+        while (null != (request = requestQueue.poll())) {
+            request.complete(null, new FpqException("journal appender has been shutdown, cannot append"));
+        }
+    }
+
+    /**
+     * Signal the appender thread to finish writing what has been queued and exit.
+     */
+    public void shutdown() {
+        shutdownRequested = true;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    // ------------
+
+    private static class AppendRequest {
+        private final Collection<FpqEntry> entries;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile JournalFile journalFile;
+        private volatile Exception error;
+
+        AppendRequest(Collection<FpqEntry> entries) {
+            this.entries = entries;
+        }
+
+        void complete(JournalFile journalFile, Exception error) {
+            this.journalFile = journalFile;
+            this.error = error;
+            latch.countDown();
+        }
+
+        JournalFile await() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    latch.await();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    // the entries may already be in the journal, so can't abandon the request
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            return journalFile;
+        }
+    }
+}
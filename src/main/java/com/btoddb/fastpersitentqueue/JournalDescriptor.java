@@ -27,9 +27,10 @@ package com.btoddb.fastpersitentqueue;
  */
 
 import com.eaio.uuid.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicLong;
 
 
@@ -37,34 +38,71 @@ import java.util.concurrent.atomic.AtomicLong;
  *
  */
 public class JournalDescriptor {
+    private static final Logger logger = LoggerFactory.getLogger(JournalDescriptor.class);
+
     private final UUID id;
-    private final JournalFile file;
-    private final ScheduledFuture future;
+    private volatile JournalFile file;
     private long startTime;
 
     private AtomicLong numberOfUnconsumedEntries = new AtomicLong();
     private volatile boolean writingFinished;
 
+    // IDs of entries already taken, only tracked when journal compaction is enabled, and their persistent log
+    private final Object consumedLock = new Object();
+    private EntryIdIndex consumedEntries;
+    private ConsumptionLog consumptionLog;
+    private volatile long numberOfEntriesSkippedAtLoad;
+
     public JournalDescriptor(JournalFile file) {
-        this(file.getId(), file, null);
+        this(file.getId(), file);
     }
 
-    public JournalDescriptor(UUID id, JournalFile file, ScheduledFuture future) {
+    public JournalDescriptor(UUID id, JournalFile file) {
         this.id = id;
         this.file = file;
-        this.future = future;
     }
 
     public UUID getId() {
         return id;
     }
 
+    /**
+     * Identifies the journal at runtime - entries carry this instead of the UUID.  Assigned when the journal is
+     * registered with {@link JournalMgr}, in increasing order, and not persisted.
+     *
+     * @return
+     */
+    public long getSequence() {
+        return file.getSequence();
+    }
+
     public JournalFile getFile() {
         return file;
     }
 
-    public ScheduledFuture getFuture() {
-        return future;
+    /**
+     * Swap in the compacted file of this journal.  Only consumed entries that are still in the new file need to be
+     * remembered, the rest are gone for good.  The consumption log is rewritten before the compacted file replaces
+     * the original - a crash in between replays some taken entries again, but the log never names an entry the
+     * journal on disk doesn't have.
+     *
+     * @param compactedFile closed journal holding the surviving entries
+     * @param survivingEntries IDs of the entries copied to compactedFile
+     * @throws IOException if the log could not be rewritten or the file moved - the original is still in place
+     */
+    void replaceFile(JournalFile compactedFile, EntryIdIndex survivingEntries) throws IOException {
+        synchronized (consumedLock) {
+            EntryIdIndex stillConsumed = new EntryIdIndex();
+            stillConsumed.addAll(consumedEntries, survivingEntries);
+            if (null != consumptionLog) {
+                consumptionLog.rewrite(stillConsumed);
+            }
+
+            compactedFile.moveTo(file.getFile());
+            compactedFile.setSequence(file.getSequence());
+            consumedEntries = stillConsumed;
+            file = compactedFile;
+        }
     }
 
 //    public long incrementEntryCount(long size) {
@@ -78,6 +116,78 @@ public class JournalDescriptor {
         return numberOfUnconsumedEntries.addAndGet(delta);
     }
 
+    /**
+     * Number of entries counted as consumed when the journal was loaded, because its consumption log named them.
+     * {@link #replayFinished()} checks them against what replay really found.
+     *
+     * @param numberOfEntriesSkippedAtLoad
+     */
+    void setNumberOfEntriesSkippedAtLoad(long numberOfEntriesSkippedAtLoad) {
+        this.numberOfEntriesSkippedAtLoad = numberOfEntriesSkippedAtLoad;
+    }
+
+    /**
+     * Called once replay has read the whole journal.  Replay passes over the logged entries without reading their
+     * data, but still counts them - any the log named that the journal doesn't have are given back to the count of
+     * unconsumed entries.
+     */
+    void replayFinished() {
+        long notFound = numberOfEntriesSkippedAtLoad - file.getNumberOfSkippedEntriesRead();
+        numberOfEntriesSkippedAtLoad = 0;
+        if (0 < notFound) {
+            logger.warn("consumption log of journal, {}, named {} entries the journal doesn't have", id, notFound);
+            adjustEntryCount(notFound);
+        }
+    }
+
+    /**
+     * @param alreadyConsumed IDs of entries taken before the journal was loaded, or null
+     */
+    void trackConsumedEntries(EntryIdIndex alreadyConsumed) {
+        synchronized (consumedLock) {
+            consumedEntries = new EntryIdIndex();
+            if (null != alreadyConsumed) {
+                consumedEntries.addAll(alreadyConsumed);
+            }
+        }
+    }
+
+    ConsumptionLog getConsumptionLog() {
+        return consumptionLog;
+    }
+
+    void setConsumptionLog(ConsumptionLog consumptionLog) {
+        this.consumptionLog = consumptionLog;
+    }
+
+    // the log and the index are updated together, so compaction never rewrites the log without an ID just taken
+    void entriesConsumed(long[] entryIds, int count) throws IOException {
+        synchronized (consumedLock) {
+            if (null != consumedEntries) {
+                for (int i=0;i < count;i++) {
+                    consumedEntries.add(entryIds[i]);
+                }
+            }
+            if (null != consumptionLog) {
+                consumptionLog.append(entryIds, count);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the IDs of entries taken so far, or null if they aren't tracked
+     */
+    EntryIdIndex getConsumedEntries() {
+        synchronized (consumedLock) {
+            if (null == consumedEntries) {
+                return null;
+            }
+            EntryIdIndex copy = new EntryIdIndex();
+            copy.addAll(consumedEntries);
+            return copy;
+        }
+    }
+
     public boolean isWritingFinished() {
         return writingFinished;
     }
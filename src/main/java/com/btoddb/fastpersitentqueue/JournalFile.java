@@ -30,16 +30,39 @@ import com.btoddb.fastpersitentqueue.exceptions.FpqException;
 import com.eaio.uuid.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Checksum;
 
 
 /**
+ * Journal file format (version 2):
+ * - header : [int version][UUID id][long number of entries]
+ * - records : [int record marker][long entry id][int data length][int CRC-32C][data]
+ *
+ * The record marker is derived from the journal's UUID and the CRC covers entry id, length and data, so
+ * replay can tell where valid data ends after a crash.  Version 1 journals, [long id][int len][data] records,
+ * can still be read.
+ *
+ * Compressed journals (version 3) have the same header and record layout, but each record holds a whole append
+ * batch : the record's entry id is the first entry id of the batch and its data is the Snappy compressed
+ * sequence of [long entry id][int data length][data].  The header's number of entries counts entries, not
+ * records.
+ *
  * - append only writes (never do anything random)
  * - delete after all data has been successfully pop'ed
  * - read should be single threaded (only for replaying in some failure case)
@@ -50,16 +73,57 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class JournalFile implements Iterable<FpqEntry>, Iterator<FpqEntry> {
     private static final Logger logger = LoggerFactory.getLogger(JournalFile.class);
-    public static final int VERSION = 1;
+    public static final int VERSION = 2;
     public static final int HEADER_SIZE = 28;
+    public static final int ENTRY_HEADER_SIZE = 20;
+    public static final int VERSION_COMPRESSED = 3;
+    static final int VERSION_1 = 1;
+    static final int BLOCK_ENTRY_HEADER_SIZE = 12;
+    static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    static final int CHECKSUM_CHUNK_SIZE = 8 * 1024;
+    static final int ENTRY_COUNT_OFFSET = 20;
+    // a negative entry count in the header is a checkpoint - see forceFlush()
+    private static final long CHECKPOINT_FLAG = Long.MIN_VALUE;
+    private static final long MAX_CHECKPOINT_POSITION = 0xFFFFFFFFL;
+    // returned by the record readers for a record that is skipped without reading its data
+    private static final FpqEntry SKIPPED_RECORD = new FpqEntry();
 
     private int version = VERSION;
     private UUID id;
+    private long sequence = FpqEntry.NO_JOURNAL_SEQUENCE;
     private AtomicLong numberOfEntries = new AtomicLong();
 
     private File file;
     private RandomAccessFile raFile;
+    private FileChannel channel;
+    private ByteBuffer writeBuffer;
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[2];
+    private volatile MappedByteBuffer mappedBuffer;
+    private FpqEntry nextEntry;
+    private int recordMarker;
+    private final Checksum writeChecksum = Crc32c.create();
+    private final Checksum readChecksum = Crc32c.create();
+    private final ByteBuffer checksumScratch = ByteBuffer.allocate(12);
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+    private final byte[] checksumChunk = new byte[CHECKSUM_CHUNK_SIZE];
+    private final ArrayDeque<FpqEntry> blockEntries = new ArrayDeque<FpqEntry>();
+    private byte[] blockScratch = new byte[0];
+    private byte[] compressScratch = new byte[0];
     private boolean writeMode;
+    private boolean truncateOnClose;
+    private boolean directIoEnabled;
+    private volatile DirectIoWriter directWriter;
+    private EntryIdIndex skippedEntries;
+    private long numberOfSkippedEntriesRead;
+    // guarded by writerLock
+    private long durableCheckpoint;
+    private long headerCheckpoint;
+    private boolean headerFinal;
+    // end of the last append, how much of it is known to be fsync'ed, and when the unsynced part was first written.
+    // lets the flusher skip journals with nothing new
+    private volatile long appendedPosition;
+    private volatile long syncedPosition;
+    private volatile long unsyncedSince;
     private ReentrantReadWriteLock writerLock = new ReentrantReadWriteLock();
 
     public JournalFile(File file) throws IOException {
@@ -74,28 +138,113 @@ public class JournalFile implements Iterable<FpqEntry>, Iterator<FpqEntry> {
         try {
             raFile = new RandomAccessFile(file, "r");
             writeMode = false;
+            nextEntry = null;
         }
         catch (FileNotFoundException e) {
             logger.error("exception while instantiating RandomAccessFile", e);
             throw e;
         }
 
-        readHeader();
-        if (0 == getNumberOfEntries()) {
-            long filePos = raFile.getFilePointer();
-            countEntriesInFile();
-            raFile.seek(filePos);
+        long headerCount = readHeader();
+        long filePos = raFile.getFilePointer();
+        if (0 > headerCount) {
+            countEntriesAfterCheckpoint(headerCount);
         }
+        else if (0 == headerCount) {
+            // never closed, and never checkpointed
+            countEntriesInFile(HEADER_SIZE);
+        }
+        raFile.seek(filePos);
     }
 
     public void initForWriting(UUID id) throws IOException {
+        initForWriting(id, 0, false);
+    }
+
+    public void initForWriting(UUID id, long preallocateSize) throws IOException {
+        initForWriting(id, preallocateSize, false);
+    }
+
+    /**
+     * Create the journal for writing.  If preallocateSize is greater than zero, the file is extended to that size
+     * up front and entries are appended by copying them into a memory mapping of the file - no syscall per append
+     * and no file metadata updates as the journal grows.  The unused tail of the file is truncated on close, and
+     * is recognized as the end of data if the journal is never closed.
+     *
+     * @param id
+     * @param preallocateSize size of the file and mapping, or 0 to write through the file channel
+     * @param compressed write a compressed ({@link #VERSION_COMPRESSED}) journal, one record per append
+     * @throws IOException
+     */
+    public void initForWriting(UUID id, long preallocateSize, boolean compressed) throws IOException {
         if (file.exists()) {
             throw new FpqException("File already exists with ID, " + this.id.toString());
         }
 
+        openForWriting(id, preallocateSize, compressed);
+    }
+
+    /**
+     * Like {@link #initForWriting(UUID, long, boolean)}, but reuses the file of a drained journal instead of
+     * creating one.  The file is written from the start without truncating it first, so the old journal's records
+     * are still past the end of the new data until they are overwritten.  They can't be mistaken for new records
+     * because the record marker comes from the UUID, and the caller must choose a UUID whose marker differs from
+     * the old journal's (see {@link #readRecordMarker(File)}).  Replay of a journal that is never closed stops at
+     * the first old record, and close truncates whatever is left of them.
+     *
+     * The new header is forced to disk before the recycled file is renamed to this journal's file, so a crash can
+     * never leave the old header - and its already consumed entries - under a journal name.
+     *
+     * @param recycledFile file of the drained journal
+     * @param id
+     * @param preallocateSize size of the file and mapping, or 0 to write through the file channel
+     * @param compressed write a compressed ({@link #VERSION_COMPRESSED}) journal, one record per append
+     * @throws IOException
+     */
+    public void initForRewriting(File recycledFile, UUID id, long preallocateSize, boolean compressed) throws IOException {
+        if (file.exists()) {
+            throw new FpqException("File already exists with ID, " + id.toString());
+        }
+        if (!recycledFile.exists()) {
+            throw new FpqException("Recycled file does not exist, " + recycledFile.getCanonicalPath());
+        }
+
+        File journalFile = file;
+        file = recycledFile;
+        openForWriting(id, preallocateSize, compressed);
+        truncateOnClose = true;
+        forceFlush();
+
+        if (!recycledFile.renameTo(journalFile)) {
+            close();
+            throw new FpqException(String.format("could not rename recycled file, %s, to %s", recycledFile.getCanonicalPath(), journalFile.getCanonicalPath()));
+        }
+        file = journalFile;
+    }
+
+    /**
+     * Atomically replace targetFile with this journal's file, which must be closed, and take over its name.  Used
+     * to swap a compacted journal in for the original - a crash leaves one or the other, never neither.
+     *
+     * @param targetFile
+     * @throws IOException
+     */
+    public void moveTo(File targetFile) throws IOException {
+        if (isOpen()) {
+            throw new FpqException("Journal must be closed before moving it, " + id.toString());
+        }
+
+        Files.move(file.toPath(), targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        file = targetFile;
+    }
+
+    private void openForWriting(UUID id, long preallocateSize, boolean compressed) throws IOException {
         this.id = id;
+        this.version = compressed ? VERSION_COMPRESSED : VERSION;
+        this.recordMarker = createRecordMarker(id);
         try {
             raFile = new RandomAccessFile(file, "rw");
+            channel = raFile.getChannel();
             writeMode = true;
         }
         catch (FileNotFoundException e) {
@@ -103,25 +252,244 @@ public class JournalFile implements Iterable<FpqEntry>, Iterator<FpqEntry> {
             throw e;
         }
 
-        writeHeader();
+        if (0 < preallocateSize) {
+            if (Integer.MAX_VALUE < preallocateSize) {
+                throw new FpqException(String.format("preallocated journal size (%d) cannot be larger than %d", preallocateSize, Integer.MAX_VALUE));
+            }
+            raFile.setLength(preallocateSize);
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, preallocateSize);
+            writeHeader(mappedBuffer);
+        }
+        else {
+            // reused for every append so entries are serialized without allocating
+            writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+            directWriter = directIoEnabled ? DirectIoWriter.open(file, WRITE_BUFFER_SIZE) : null;
+            if (null != directWriter) {
+                directWriter.write(createHeaderBuffer());
+                directWriter.flush();
+            }
+            else {
+                writeHeader();
+            }
+        }
+
+        // the header isn't durable yet either
+        appendedPosition = getFilePosition();
+        unsyncedSince = System.currentTimeMillis();
     }
 
-    private void readHeader() throws IOException {
+    /**
+     * Walk the journal's records straight out of a read-only memory mapping instead of reading each field through
+     * the RandomAccessFile.  The entries returned don't own their data, it is a view of the mapping until
+     * {@link FpqEntry#materializeData()} is called - entries that are never pushed never cost a byte[].  Only use
+     * on journals that are finished writing.  Falls back to {@link #iterator()} if the file is too large to map.
+     *
+     * @return
+     * @throws IOException
+     */
+    public Iterator<FpqEntry> mappedIterator() throws IOException {
+        MappedByteBuffer buffer = mapForReading();
+        if (null == buffer) {
+            return iterator();
+        }
+
+        readHeader(buffer);
+        return new MappedEntryIterator(buffer);
+    }
+
+    // the mapping stays valid after the file is closed
+    private MappedByteBuffer mapForReading() throws IOException {
+        if (!file.exists()) {
+            throw new FpqException("File does not exist, " + file.getCanonicalPath());
+        }
+
+        RandomAccessFile mapFile = new RandomAccessFile(file, "r");
+        try {
+            long length = mapFile.length();
+            if (Integer.MAX_VALUE < length) {
+                logger.debug("journal, {}, is too large to map for reading - using the file instead", file);
+                return null;
+            }
+            return mapFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        finally {
+            mapFile.close();
+        }
+    }
+
+    /**
+     * ID of the first entry in the journal, without reading the rest of the file.  Journals are created before
+     * they are needed, so this - not the UUID - says when a journal started being written.
+     *
+     * @return the ID, or Long.MAX_VALUE if the journal has no entries
+     * @throws IOException
+     */
+    public long readFirstEntryId() throws IOException {
+        RandomAccessFile tmpFile = new RandomAccessFile(file, "r");
+        try {
+            int headerVersion = tmpFile.readInt();
+            int recordHeaderSize = VERSION_1 == headerVersion ? 12 : ENTRY_HEADER_SIZE;
+            if (HEADER_SIZE + recordHeaderSize > tmpFile.length()) {
+                return Long.MAX_VALUE;
+            }
+            tmpFile.seek(HEADER_SIZE);
+            if (VERSION_1 == headerVersion) {
+                long entryId = tmpFile.readLong();
+                // zeroed space of a preallocated journal.  entry IDs start at 1
+                return 0 != entryId ? entryId : Long.MAX_VALUE;
+            }
+            // a zero record marker is zeroed space of a preallocated journal, any other marker that isn't this
+            // journal's is a record left by the previous journal in a recycled file
+            tmpFile.seek(4);
+            int marker = createRecordMarker(Utils.readUuidFromFile(tmpFile));
+            tmpFile.seek(HEADER_SIZE);
+            return marker == tmpFile.readInt() ? tmpFile.readLong() : Long.MAX_VALUE;
+        }
+        finally {
+            tmpFile.close();
+        }
+    }
+
+    // returns the entry count field as is, it may be a checkpoint
+    private long readHeader() throws IOException {
         raFile.seek(0);
         int tmp = raFile.readInt();
-        if (tmp != version) {
-            throw new FpqException(String.format("invalid journal file version, %d.  file = %s", tmp, file.getCanonicalPath()));
-        }
+        checkHeaderVersion(tmp);
+        version = tmp;
+        blockEntries.clear();
+        numberOfSkippedEntriesRead = 0;
         id = Utils.readUuidFromFile(raFile);
-        numberOfEntries.set(raFile.readLong());
+        recordMarker = createRecordMarker(id);
+        long headerCount = raFile.readLong();
+        numberOfEntries.set(Math.max(0, headerCount));
+        return headerCount;
+    }
+
+    private void readHeader(ByteBuffer buffer) throws IOException {
+        if (HEADER_SIZE > buffer.remaining()) {
+            throw new EOFException(String.format("journal file is too short for header.  file = %s", file.getCanonicalPath()));
+        }
+        int tmp = buffer.getInt();
+        checkHeaderVersion(tmp);
+        version = tmp;
+        blockEntries.clear();
+        numberOfSkippedEntriesRead = 0;
+        id = new UUID(buffer.getLong(), buffer.getLong());
+        recordMarker = createRecordMarker(id);
+        // only a closed journal's count is exact, otherwise keep what initForReading counted
+        long headerCount = buffer.getLong();
+        if (0 < headerCount) {
+            numberOfEntries.set(headerCount);
+        }
+    }
+
+    private void checkHeaderVersion(int headerVersion) throws IOException {
+        if (headerVersion != VERSION && headerVersion != VERSION_COMPRESSED && headerVersion != VERSION_1) {
+            throw new FpqException(String.format("invalid journal file version, %d.  file = %s", headerVersion, file.getCanonicalPath()));
+        }
+    }
+
+    /**
+     * Record marker of the journal currently in the file, read from its header.
+     *
+     * @param file
+     * @return the marker, or 0 if the file is too short to have a header
+     * @throws IOException
+     */
+    static int readRecordMarker(File file) throws IOException {
+        RandomAccessFile tmpFile = new RandomAccessFile(file, "r");
+        try {
+            if (HEADER_SIZE > tmpFile.length()) {
+                return 0;
+            }
+            tmpFile.readInt();
+            return createRecordMarker(Utils.readUuidFromFile(tmpFile));
+        }
+        finally {
+            tmpFile.close();
+        }
+    }
+
+    // never zero, so zeroed (preallocated) space can't look like a record
+    static int createRecordMarker(UUID id) {
+        long hash = id.getTime() ^ id.getClockSeqAndNode();
+        int marker = (int) (hash ^ (hash >>> 32));
+        return 0 != marker ? marker : 1;
     }
 
-    private void countEntriesInFile() {
+    // covers entry id and data length as well as the data, so a torn header is caught too
+    private int computeChecksum(Checksum checksum, long entryId, byte[] data) {
+        return computeChecksum(checksum, entryId, data, data.length);
+    }
+
+    private int computeChecksum(Checksum checksum, long entryId, byte[] data, int length) {
+        checksumScratch.clear();
+        checksumScratch.putLong(entryId);
+        checksumScratch.putInt(length);
+        checksum.reset();
+        checksum.update(checksumScratch.array(), 0, checksumScratch.position());
+        checksum.update(data, 0, length);
+        return (int) checksum.getValue();
+    }
+
+    // same as above, for data still in the (mapped) journal.  the buffer's position is not moved
+    private int computeChecksum(Checksum checksum, long entryId, ByteBuffer data) {
+        checksumScratch.clear();
+        checksumScratch.putLong(entryId);
+        checksumScratch.putInt(data.remaining());
+        checksum.reset();
+        checksum.update(checksumScratch.array(), 0, checksumScratch.position());
+        ByteBuffer view = data.duplicate();
+        while (view.hasRemaining()) {
+            int length = Math.min(checksumChunk.length, view.remaining());
+            view.get(checksumChunk, 0, length);
+            checksum.update(checksumChunk, 0, length);
+        }
+        return (int) checksum.getValue();
+    }
+
+    // the journal wasn't closed, but the checkpoint says how many entries are before a position that was on disk,
+    // so only the records after it are read
+    private void countEntriesAfterCheckpoint(long checkpoint) throws IOException {
+        long count = getCheckpointCount(checkpoint);
+        long position = getCheckpointPosition(checkpoint);
+        if (HEADER_SIZE > position || raFile.length() < position) {
+            logger.warn("journal, {}, has an invalid checkpoint (position {}) - counting all entries", id, position);
+            numberOfEntries.set(0);
+            countEntriesInFile(HEADER_SIZE);
+            return;
+        }
+
+        numberOfEntries.set(count);
+        countEntriesInFile(position);
+        logger.debug("journal, {}, was checkpointed at {} entries, found {} after it", id, count, numberOfEntries.get() - count);
+    }
+
+    // adds to the number of entries
+    private void countEntriesInFile(long fromPosition) throws IOException {
+        MappedByteBuffer buffer = mapForReading();
         Iterator<FpqEntry> iter = this;
-        while (iter.hasNext()) {
-            iter.next();
-            numberOfEntries.incrementAndGet();
+        if (null != buffer) {
+            buffer.position((int) fromPosition);
+            iter = new MappedEntryIterator(buffer);
+        }
+        else {
+            raFile.seek(fromPosition);
+        }
+        // skipped entries are still in the file
+        EntryIdIndex skipped = skippedEntries;
+        skippedEntries = null;
+        try {
+            while (iter.hasNext()) {
+                iter.next();
+                numberOfEntries.incrementAndGet();
+            }
+        }
+        finally {
+            skippedEntries = skipped;
         }
+        nextEntry = null;
     }
 
     public FpqEntry append(FpqEntry entry) throws IOException {
@@ -132,30 +500,300 @@ public class JournalFile implements Iterable<FpqEntry>, Iterator<FpqEntry> {
     public Collection<FpqEntry> append(Collection<FpqEntry> entries) throws IOException {
         writerLock.writeLock().lock();
         try {
-            for (FpqEntry entry : entries) {
-                switch (getVersion()) {
-                    case 1:
-                        entry.writeToJournal(raFile);
+            switch (getVersion()) {
+                case VERSION:
+                    if (null != mappedBuffer) {
+                        appendToMapping(entries);
                         break;
-                    default:
-                        Utils.logAndThrow(logger, String.format("invalid version (%d) found, cannot continue", getVersion()));
-                }
+                    }
+                    for (FpqEntry entry : entries) {
+                        writeEntry(entry);
+                    }
+                    flushWriteBuffer();
+                    break;
+                case VERSION_COMPRESSED:
+                    appendCompressedBlock(entries);
+                    break;
+                default:
+                    Utils.logAndThrow(logger, String.format("invalid version (%d) found, cannot continue", getVersion()));
+            }
+
+            // direct I/O bypasses the page cache, so the entries aren't in the file until the blocks are written
+            if (null != directWriter) {
+                directWriter.flush();
             }
 
             // fsync will be called periodically in a separate thread
+
+            // counted under the lock, so a checkpoint always sees the count and position of the same append
+            numberOfEntries.addAndGet(entries.size());
+
+            if (appendedPosition == syncedPosition) {
+                unsyncedSince = System.currentTimeMillis();
+            }
+            appendedPosition = getFilePosition();
         }
         finally {
             writerLock.writeLock().unlock();
         }
 
-        numberOfEntries.incrementAndGet();
         return entries;
     }
     
+    // must hold writerLock
+    private void writeEntry(FpqEntry entry) throws IOException {
+        int size = entry.getJournalSize();
+        int checksum = computeChecksum(writeChecksum, entry.getId(), entry.getData());
+        if (size <= writeBuffer.remaining()) {
+            entry.writeToJournal(writeBuffer, recordMarker, checksum);
+            return;
+        }
+
+        flushWriteBuffer();
+        if (size <= writeBuffer.remaining()) {
+            entry.writeToJournal(writeBuffer, recordMarker, checksum);
+        }
+        else {
+            // too big to buffer, so send header and data with one gathering write instead of copying the data
+            entry.writeJournalHeader(writeBuffer, recordMarker, checksum);
+            writeBuffer.flip();
+            gatherBuffers[0] = writeBuffer;
+            gatherBuffers[1] = ByteBuffer.wrap(entry.getData());
+            writeToChannel(gatherBuffers);
+            gatherBuffers[1] = null;
+            writeBuffer.clear();
+        }
+    }
+
+    // must hold writerLock
+    private void appendToMapping(Collection<FpqEntry> entries) throws IOException {
+        int size = 0;
+        for (FpqEntry entry : entries) {
+            size += entry.getJournalSize();
+        }
+
+        MappedByteBuffer buffer = ensureMappingRemaining(size);
+        for (FpqEntry entry : entries) {
+            entry.writeToJournal(buffer, recordMarker, computeChecksum(writeChecksum, entry.getId(), entry.getData()));
+        }
+    }
+
+    // must hold writerLock
+    private MappedByteBuffer ensureMappingRemaining(int size) throws IOException {
+        // the journal rolls once it reaches the preallocated size, but the batch that gets it there can overshoot
+        MappedByteBuffer buffer = mappedBuffer;
+        if (size > buffer.remaining()) {
+            long newSize = (long) buffer.position() + size;
+            if (Integer.MAX_VALUE < newSize) {
+                throw new FpqException(String.format("memory mapped journal cannot grow past %d bytes", Integer.MAX_VALUE));
+            }
+            logger.debug("growing memory mapped journal, {}, to {} bytes", id, newSize);
+            int position = buffer.position();
+            raFile.setLength(newSize);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+            buffer.position(position);
+            mappedBuffer = buffer;
+        }
+        return buffer;
+    }
+
+    // must hold writerLock.  the batch is serialized into a scratch array, compressed, and written as one record
+    private void appendCompressedBlock(Collection<FpqEntry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        int rawSize = 0;
+        for (FpqEntry entry : entries) {
+            rawSize += BLOCK_ENTRY_HEADER_SIZE + entry.getDataLength();
+        }
+        if (blockScratch.length < rawSize) {
+            blockScratch = new byte[rawSize];
+        }
+        ByteBuffer raw = ByteBuffer.wrap(blockScratch);
+        for (FpqEntry entry : entries) {
+            raw.putLong(entry.getId());
+            raw.putInt(entry.getDataLength());
+            raw.put(entry.getData());
+        }
+
+        int maxLength = Snappy.maxCompressedLength(rawSize);
+        if (compressScratch.length < maxLength) {
+            compressScratch = new byte[maxLength];
+        }
+        int length = Snappy.compress(blockScratch, 0, rawSize, compressScratch, 0);
+
+        long firstId = entries.iterator().next().getId();
+        int checksum = computeChecksum(writeChecksum, firstId, compressScratch, length);
+        int size = ENTRY_HEADER_SIZE + length;
+
+        if (null != mappedBuffer) {
+            MappedByteBuffer buffer = ensureMappingRemaining(size);
+            writeRecordHeader(buffer, firstId, length, checksum);
+            buffer.put(compressScratch, 0, length);
+            return;
+        }
+
+        writeRecordHeader(writeBuffer, firstId, length, checksum);
+        if (length <= writeBuffer.remaining()) {
+            writeBuffer.put(compressScratch, 0, length);
+            flushWriteBuffer();
+        }
+        else {
+            writeBuffer.flip();
+            gatherBuffers[0] = writeBuffer;
+            gatherBuffers[1] = ByteBuffer.wrap(compressScratch, 0, length);
+            writeToChannel(gatherBuffers);
+            gatherBuffers[1] = null;
+            writeBuffer.clear();
+        }
+    }
+
+    private void writeRecordHeader(ByteBuffer buffer, long entryId, int length, int checksum) {
+        buffer.putInt(recordMarker);
+        buffer.putLong(entryId);
+        buffer.putInt(length);
+        buffer.putInt(checksum);
+    }
+
+    // must hold writerLock
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        if (null != directWriter) {
+            directWriter.write(writeBuffer);
+        }
+        else {
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+        }
+        writeBuffer.clear();
+    }
+
+    // must hold writerLock
+    private void writeToChannel(ByteBuffer[] buffers) throws IOException {
+        if (null != directWriter) {
+            directWriter.write(buffers);
+            return;
+        }
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * fsync the journal.  While writing, this also checkpoints the header's entry count so a journal that is never
+     * closed can be opened without reading every record: the count and position captured by the last fsync - all
+     * of it on disk by now - are written to the header, and go to disk with this fsync.  After a crash only the
+     * records written since then are counted.  The checkpoint is stored in the entry count field as
+     * CHECKPOINT_FLAG | count << 32 | position, and close() replaces it with the plain count.  Journals larger than
+     * 4GB or with more than 2^31 entries stop checkpointing and are counted the old way.
+     *
+     * @throws IOException
+     */
     public void forceFlush() throws IOException {
-        if (null != raFile) {
-            raFile.getChannel().force(true);
+        long syncStartTime = System.currentTimeMillis();
+        long position = appendedPosition;
+        long checkpoint = writeMode ? checkpointHeader() : 0;
+        MappedByteBuffer buffer = mappedBuffer;
+        try {
+            if (null != buffer) {
+                buffer.force();
+            }
+            else if (null != raFile) {
+                raFile.getChannel().force(true);
+            }
+        }
+        catch (ClosedChannelException e) {
+            // close() forces before closing the channel, so everything written is already on disk
+            logger.debug("journal, {}, was closed before fsync - nothing to do", id);
+            return;
+        }
+
+        writerLock.writeLock().lock();
+        try {
+            // concurrent fsyncs may finish out of order, keep the newest
+            if (0 != checkpoint && getCheckpointCount(checkpoint) > getCheckpointCount(durableCheckpoint)) {
+                durableCheckpoint = checkpoint;
+            }
+            if (position > syncedPosition) {
+                syncedPosition = position;
+            }
+            if (appendedPosition != syncedPosition) {
+                // anything still unsynced was appended after this fsync started
+                unsyncedSince = syncStartTime;
+            }
         }
+        finally {
+            writerLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of bytes appended since the last fsync started, zero if the journal has nothing new to sync
+     */
+    public long getUnsyncedBytes() {
+        return appendedPosition - syncedPosition;
+    }
+
+    /**
+     * @return when the oldest write not yet fsync'ed was made, only meaningful if {@link #getUnsyncedBytes()} isn't zero
+     */
+    public long getUnsyncedSince() {
+        return unsyncedSince;
+    }
+
+    // writes the last durable checkpoint to the header, and returns the one the caller's fsync will make durable
+    private long checkpointHeader() throws IOException {
+        writerLock.writeLock().lock();
+        try {
+            if (headerFinal || !isOpen()) {
+                return 0;
+            }
+            if (0 != durableCheckpoint && durableCheckpoint != headerCheckpoint) {
+                writeEntryCount(durableCheckpoint);
+                headerCheckpoint = durableCheckpoint;
+            }
+            return createCheckpoint(numberOfEntries.get(), getFilePosition());
+        }
+        finally {
+            writerLock.writeLock().unlock();
+        }
+    }
+
+    // must hold writerLock
+    private void writeEntryCount(long value) throws IOException {
+        MappedByteBuffer buffer = mappedBuffer;
+        if (null != buffer) {
+            buffer.putLong(ENTRY_COUNT_OFFSET, value);
+            return;
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(8);
+        bb.putLong(0, value);
+        if (null != directWriter) {
+            directWriter.writeAt(ENTRY_COUNT_OFFSET, bb);
+            directWriter.flush();
+            return;
+        }
+        while (bb.hasRemaining()) {
+            channel.write(bb, ENTRY_COUNT_OFFSET + bb.position());
+        }
+    }
+
+    static long createCheckpoint(long count, long position) {
+        if (0 >= count || Integer.MAX_VALUE < count || MAX_CHECKPOINT_POSITION < position) {
+            return 0;
+        }
+        return CHECKPOINT_FLAG | (count << 32) | position;
+    }
+
+    static long getCheckpointCount(long checkpoint) {
+        return (checkpoint >>> 32) & Integer.MAX_VALUE;
+    }
+
+    static long getCheckpointPosition(long checkpoint) {
+        return checkpoint & MAX_CHECKPOINT_POSITION;
     }
 
     private void writeHeader() throws IOException {
@@ -164,12 +802,72 @@ public class JournalFile implements Iterable<FpqEntry>, Iterator<FpqEntry> {
         Utils.writeLong(raFile, numberOfEntries.get());
     }
 
+    private ByteBuffer createHeaderBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        writeHeader(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    // writes at the start of the buffer without moving its position
+    private void writeHeader(ByteBuffer buffer) {
+        buffer.putInt(0, version);
+        buffer.putLong(4, id.getTime());
+        buffer.putLong(12, id.getClockSeqAndNode());
+        buffer.putLong(ENTRY_COUNT_OFFSET, numberOfEntries.get());
+        if (buffer.position() < HEADER_SIZE) {
+            buffer.position(HEADER_SIZE);
+        }
+    }
+
     public void close() throws IOException {
         if (!isOpen()) {
             return;
         }
 
-        if (writeMode) {
+        // no more checkpoints, the exact count is written below
+        writerLock.writeLock().lock();
+        try {
+            headerFinal = writeMode;
+        }
+        finally {
+            writerLock.writeLock().unlock();
+        }
+
+        if (writeMode && null != mappedBuffer) {
+            writerLock.writeLock().lock();
+            try {
+                MappedByteBuffer buffer = mappedBuffer;
+                // this updates number of entries
+                writeHeader(buffer);
+                buffer.force();
+
+                // give back the preallocated space that was never used
+                mappedBuffer = null;
+                raFile.setLength(buffer.position());
+            }
+            finally {
+                writerLock.writeLock().unlock();
+            }
+        }
+        else if (writeMode && null != directWriter) {
+            writerLock.writeLock().lock();
+            try {
+                // this updates number of entries
+                directWriter.writeAt(0, createHeaderBuffer());
+                // truncates the padding of the last block, and anything left of a recycled journal
+                directWriter.close();
+                directWriter = null;
+            }
+            finally {
+                writerLock.writeLock().unlock();
+            }
+        }
+        else if (writeMode) {
+            if (truncateOnClose) {
+                // drop the rest of the previous journal's records
+                raFile.setLength(channel.position());
+            }
             raFile.seek(0);
             // this updates number of entries
             writeHeader();
@@ -181,18 +879,286 @@ public class JournalFile implements Iterable<FpqEntry>, Iterator<FpqEntry> {
     }
 
     public FpqEntry readNextEntry() throws IOException {
+        FpqEntry entry;
+        do {
+            entry = readNextRecord();
+        } while (isSkipped(entry));
+        return entry;
+    }
+
+    private FpqEntry readNextRecord() throws IOException {
+        if (VERSION_1 == version) {
+            return readNextVersion1Entry();
+        }
+        if (!blockEntries.isEmpty()) {
+            return blockEntries.poll();
+        }
+
+        long recordStart = raFile.getFilePointer();
+        long remaining = raFile.length() - recordStart;
+        if (0 >= remaining) {
+            return null;
+        }
+        if (ENTRY_HEADER_SIZE > remaining) {
+            recordHeader.clear();
+            recordHeader.limit((int) remaining);
+            raFile.readFully(recordHeader.array(), 0, (int) remaining);
+            if (isAllZeros(recordHeader)) {
+                // zeroed padding of the last block of a direct I/O journal that was never closed
+                logger.debug("found end of data in padded journal, {}, at position {}", id, recordStart);
+                return null;
+            }
+            return handleTornRecord(recordStart, "partial record header");
+        }
+
+        recordHeader.clear();
+        raFile.readFully(recordHeader.array());
+        int marker = recordHeader.getInt();
+        long entryId = recordHeader.getLong();
+        int length = recordHeader.getInt();
+        int checksum = recordHeader.getInt();
+
+        if (0 == marker && 0 == entryId && 0 == length && 0 == checksum) {
+            // zeroed space at the end of a preallocated journal that was never closed
+            logger.debug("found end of data in preallocated journal, {}, at position {}", id, recordStart);
+            raFile.seek(raFile.length());
+            return null;
+        }
+        if (marker != recordMarker) {
+            return handleTornRecord(recordStart, "record marker does not match journal");
+        }
+        if (0 > length || length > remaining - ENTRY_HEADER_SIZE) {
+            return handleTornRecord(recordStart, String.format("data length, %d, is invalid", length));
+        }
+        if (VERSION_COMPRESSED != version && null != skippedEntries && skippedEntries.contains(entryId)) {
+            raFile.seek(recordStart + ENTRY_HEADER_SIZE + length);
+            return SKIPPED_RECORD;
+        }
+
+        byte[] data = new byte[length];
+        raFile.readFully(data);
+        if (checksum != computeChecksum(readChecksum, entryId, data)) {
+            return handleTornRecord(recordStart, "checksum mismatch");
+        }
+
+        if (VERSION_COMPRESSED == version) {
+            return decompressBlock(data, recordStart);
+        }
+
+        FpqEntry entry = new FpqEntry(entryId, data);
+        entry.setJournalSequence(sequence);
+        return entry;
+    }
+
+    // checks the remaining bytes without moving the position
+    private static boolean isAllZeros(ByteBuffer buffer) {
+        for (int i=buffer.position();i < buffer.limit();i++) {
+            if (0 != buffer.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // everything from a torn record on is garbage from a crash mid-write.  replay stops here and the garbage is
+    // truncated so the journal is clean the next time it is read
+    private FpqEntry handleTornRecord(long recordStart, String reason) throws IOException {
+        truncateTornRecord(recordStart, reason);
+        raFile.seek(raFile.length());
+        return null;
+    }
+
+    private void truncateTornRecord(long recordStart, String reason) throws IOException {
+        logger.warn("journal, {}, has a torn or corrupt record at position {} ({}) - ignoring the rest of the file",
+                    id, recordStart, reason);
+        if (!writeMode) {
+            RandomAccessFile truncFile = new RandomAccessFile(file, "rw");
+            try {
+                truncFile.setLength(recordStart);
+            }
+            finally {
+                truncFile.close();
+            }
+            logger.info("truncated journal, {}, to {} bytes", id, recordStart);
+        }
+    }
+
+    private FpqEntry readNextVersion1Entry() throws IOException {
         FpqEntry entry = new FpqEntry();
-        entry.setJournalId(id);
+        entry.setJournalSequence(sequence);
         entry.readFromJournal(raFile);
-        if (null != entry.getData()) {
-            return entry;
+        if (null == entry.getData()) {
+            return null;
+        }
+        // zeroed space at the end of a preallocated journal that was never closed.  entry IDs start at 1
+        else if (0 == entry.getId() && 0 == entry.getData().length) {
+            logger.debug("found end of data in preallocated journal, {}, at position {}", id, raFile.getFilePointer() - 12);
+            raFile.seek(raFile.length());
+            return null;
         }
         else {
+            return entry;
+        }
+    }
+
+    private FpqEntry readNextEntry(ByteBuffer buffer) throws IOException {
+        FpqEntry entry;
+        do {
+            entry = readNextRecord(buffer);
+        } while (isSkipped(entry));
+        return entry;
+    }
+
+    private FpqEntry readNextRecord(ByteBuffer buffer) throws IOException {
+        if (VERSION_1 == version) {
+            return readNextVersion1Entry(buffer);
+        }
+        if (!blockEntries.isEmpty()) {
+            return blockEntries.poll();
+        }
+
+        int recordStart = buffer.position();
+        int remaining = buffer.remaining();
+        if (0 >= remaining) {
+            return null;
+        }
+        if (ENTRY_HEADER_SIZE > remaining) {
+            if (isAllZeros(buffer)) {
+                // zeroed padding of the last block of a direct I/O journal that was never closed
+                logger.debug("found end of data in padded journal, {}, at position {}", id, recordStart);
+                buffer.position(buffer.limit());
+                return null;
+            }
+            return handleTornRecord(buffer, recordStart, "partial record header");
+        }
+
+        int marker = buffer.getInt();
+        long entryId = buffer.getLong();
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+
+        if (0 == marker && 0 == entryId && 0 == length && 0 == checksum) {
+            // zeroed space at the end of a preallocated journal that was never closed
+            logger.debug("found end of data in preallocated journal, {}, at position {}", id, recordStart);
+            buffer.position(buffer.limit());
+            return null;
+        }
+        if (marker != recordMarker) {
+            return handleTornRecord(buffer, recordStart, "record marker does not match journal");
+        }
+        if (0 > length || length > remaining - ENTRY_HEADER_SIZE) {
+            return handleTornRecord(buffer, recordStart, String.format("data length, %d, is invalid", length));
+        }
+        if (VERSION_COMPRESSED != version && null != skippedEntries && skippedEntries.contains(entryId)) {
+            buffer.position(recordStart + ENTRY_HEADER_SIZE + length);
+            return SKIPPED_RECORD;
+        }
+
+        ByteBuffer data = sliceData(buffer, length);
+        if (checksum != computeChecksum(readChecksum, entryId, data)) {
+            return handleTornRecord(buffer, recordStart, "checksum mismatch");
+        }
+
+        if (VERSION_COMPRESSED == version) {
+            // the block is much smaller than its entries, so copy it out of the mapping and decompress on heap
+            byte[] compressed = new byte[length];
+            data.get(compressed);
+            return decompressBlock(compressed, recordStart);
+        }
+
+        FpqEntry entry = new FpqEntry(entryId, data);
+        entry.setJournalSequence(sequence);
+        return entry;
+    }
+
+    // the entries' data are views of the decompressed block, so skipped entries are never copied
+    private FpqEntry decompressBlock(byte[] compressed, long recordStart) throws IOException {
+        byte[] raw = new byte[Snappy.uncompressedLength(compressed, 0, compressed.length)];
+        Snappy.uncompress(compressed, 0, compressed.length, raw, 0);
+
+        ByteBuffer block = ByteBuffer.wrap(raw);
+        while (block.hasRemaining()) {
+            if (BLOCK_ENTRY_HEADER_SIZE > block.remaining()) {
+                Utils.logAndThrow(logger, String.format("compressed block at position %d in journal, %s, has a partial entry header - code is out of sync with file version", recordStart, id));
+            }
+            long entryId = block.getLong();
+            int length = block.getInt();
+            if (0 > length || length > block.remaining()) {
+                Utils.logAndThrow(logger, String.format("compressed block at position %d in journal, %s, has invalid data length, %d", recordStart, id, length));
+            }
+            FpqEntry entry = new FpqEntry(entryId, sliceData(block, length));
+            entry.setJournalSequence(sequence);
+            blockEntries.add(entry);
+        }
+        return blockEntries.poll();
+    }
+
+    // everything from a torn record on is garbage from a crash mid-write.  replay stops here and the garbage is
+    // truncated so the journal is clean the next time it is read
+    private FpqEntry handleTornRecord(ByteBuffer buffer, int recordStart, String reason) throws IOException {
+        truncateTornRecord(recordStart, reason);
+        // nothing past recordStart may be touched once the file is truncated
+        buffer.position(buffer.limit());
+        return null;
+    }
+
+    private FpqEntry readNextVersion1Entry(ByteBuffer buffer) throws IOException {
+        if (12 > buffer.remaining()) {
+            // same as the file based read, a partial record is the end of data
+            buffer.position(buffer.limit());
+            return null;
+        }
+
+        long entryId = buffer.getLong();
+        int length = buffer.getInt();
+        // zeroed space at the end of a preallocated journal that was never closed.  entry IDs start at 1
+        if (0 == entryId && 0 == length) {
+            logger.debug("found end of data in preallocated journal, {}, at position {}", id, buffer.position() - 12);
+            buffer.position(buffer.limit());
             return null;
         }
+        if (0 > length || length > buffer.remaining()) {
+            Utils.logAndThrow(logger, String.format("FPQ entry length (%s) could not be satisfied - file may be corrupted or code is out of sync with file version", length));
+        }
+
+        FpqEntry entry = new FpqEntry(entryId, sliceData(buffer, length));
+        entry.setJournalSequence(sequence);
+        return entry;
+    }
+
+    // records skipped by the readers, and entries of compressed blocks and version 1 journals that can only be
+    // skipped once decoded.  counts the ones it finds
+    private boolean isSkipped(FpqEntry entry) {
+        if (SKIPPED_RECORD == entry || (null != entry && null != skippedEntries && skippedEntries.contains(entry.getId()))) {
+            numberOfSkippedEntriesRead ++;
+            return true;
+        }
+        return false;
+    }
+
+    // a view of the next length bytes, buffer is moved past them
+    private static ByteBuffer sliceData(ByteBuffer buffer, int length) {
+        ByteBuffer data = buffer.slice();
+        data.limit(length);
+        buffer.position(buffer.position() + length);
+        return data;
     }
 
+    /**
+     * When written through a memory mapping, this is the position in the mapping - not the (preallocated) file length.
+     *
+     * @return
+     * @throws IOException
+     */
     public long getFilePosition() throws IOException {
+        MappedByteBuffer buffer = mappedBuffer;
+        if (null != buffer) {
+            return buffer.position();
+        }
+        DirectIoWriter writer = directWriter;
+        if (null != writer) {
+            return writer.position();
+        }
         return raFile.getFilePointer();
     }
 
@@ -209,6 +1175,17 @@ public class JournalFile implements Iterable<FpqEntry>, Iterator<FpqEntry> {
         return version;
     }
 
+    /**
+     * @return the sequence given to entries read from this journal
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
     public UUID getId() {
         return id;
     }
@@ -230,24 +1207,26 @@ public class JournalFile implements Iterable<FpqEntry>, Iterator<FpqEntry> {
 
     @Override
     public boolean hasNext() {
-        try {
-            return raFile.getFilePointer() < raFile.length();
-        }
-        catch (IOException e) {
-            Utils.logAndThrow(logger, "exception while determining EOF", e);
-            return false;
+        // must read ahead because the end of data isn't always the end of the file (preallocated journals)
+        if (null == nextEntry) {
+            try {
+                nextEntry = readNextEntry();
+            }
+            catch (IOException e) {
+                Utils.logAndThrow(logger, "exception while reading next entry", e);
+            }
         }
+        return null != nextEntry;
     }
 
     @Override
     public FpqEntry next() {
-        try {
-            return readNextEntry();
-        }
-        catch (IOException e) {
-            Utils.logAndThrow(logger, "exception while reading next entry", e);
-            return null;
+        if (!hasNext()) {
+            throw new NoSuchElementException();
         }
+        FpqEntry entry = nextEntry;
+        nextEntry = null;
+        return entry;
     }
 
     @Override
@@ -255,10 +1234,97 @@ public class JournalFile implements Iterable<FpqEntry>, Iterator<FpqEntry> {
         throw new UnsupportedOperationException(this.getClass().getSimpleName() + " does not implement 'remove'");
     }
 
+    // ------------
+
+    private class MappedEntryIterator implements Iterator<FpqEntry> {
+        private final ByteBuffer buffer;
+        private FpqEntry next;
+
+        MappedEntryIterator(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (null == next) {
+                try {
+                    next = readNextEntry(buffer);
+                }
+                catch (IOException e) {
+                    Utils.logAndThrow(logger, "exception while reading next entry from mapped journal", e);
+                }
+            }
+            return null != next;
+        }
+
+        @Override
+        public FpqEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            FpqEntry entry = next;
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(this.getClass().getSimpleName() + " does not implement 'remove'");
+        }
+    }
+
+    public EntryIdIndex getSkippedEntries() {
+        return skippedEntries;
+    }
+
+    /**
+     * Entries with these IDs are passed over when reading the journal - used for entries already taken before a
+     * restart.  The record header says how long the data is, so the data of a skipped record is never read or
+     * checksummed, except in compressed journals where the whole block must be decoded.  Entries are still counted
+     * by {@link #getNumberOfEntries()}.
+     *
+     * @param skippedEntries
+     */
+    public void setSkippedEntries(EntryIdIndex skippedEntries) {
+        this.skippedEntries = skippedEntries;
+    }
+
+    /**
+     * Number of records passed over because they are in {@link #getSkippedEntries()}, since the journal was last
+     * opened for reading.  Once the whole journal has been read, this is how many of the skipped IDs it really has.
+     *
+     * @return
+     */
+    public long getNumberOfSkippedEntriesRead() {
+        return numberOfSkippedEntriesRead;
+    }
+
     public boolean isOpen() {
         return null != raFile && raFile.getChannel().isOpen();
     }
 
+    public boolean isDirectIoEnabled() {
+        return directIoEnabled;
+    }
+
+    /**
+     * Write the journal with direct I/O, bypassing the page cache.  Must be set before the journal is initialized for
+     * writing, and is ignored for memory mapped journals.  If the JVM or file system can't do direct I/O the journal
+     * is written normally - see {@link #isDirectIo()}.
+     *
+     * @param directIoEnabled
+     */
+    public void setDirectIoEnabled(boolean directIoEnabled) {
+        this.directIoEnabled = directIoEnabled;
+    }
+
+    /**
+     * @return true if the journal is open and being written with direct I/O
+     */
+    public boolean isDirectIo() {
+        return null != directWriter;
+    }
+
     public boolean isWriteMode() {
         return writeMode;
     }
@@ -0,0 +1,199 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Background fsync of the journals being written.  One thread watches all of them, and a journal is fsync'ed once it
+ * has flushMaxBytes written since its last fsync, or its oldest unsynced write is flushPeriodInMs old.  Journals with
+ * nothing new are skipped, and fsyncs already done by committing threads ({@link DurabilityMode#SYNC} and
+ * {@link DurabilityMode#GROUP}) count, so they aren't repeated here.
+ */
+public class JournalFlusher implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(JournalFlusher.class);
+
+    private final long flushPeriodInMs;
+    private final long flushMaxBytes;
+    private final ExecutorService fsyncExec;
+    private final Set<JournalFile> journals = Collections.newSetFromMap(new ConcurrentHashMap<JournalFile, Boolean>());
+    private volatile boolean wakeUpRequested;
+    private volatile boolean shutdownRequested;
+    private AtomicLong numberOfFsyncs = new AtomicLong();
+
+    /**
+     * @param fsyncExec when more than one journal is due, their fsyncs run in parallel here.  null to run them one
+     *                  at a time on the flusher thread
+     */
+    public JournalFlusher(long flushPeriodInMs, long flushMaxBytes, ExecutorService fsyncExec) {
+        this.flushPeriodInMs = flushPeriodInMs;
+        this.flushMaxBytes = flushMaxBytes;
+        this.fsyncExec = fsyncExec;
+    }
+
+    /**
+     * Start watching a journal that is open for writing.
+     */
+    public void add(JournalFile journalFile) {
+        journals.add(journalFile);
+    }
+
+    /**
+     * Stop watching a journal - usually because it is finished and closing it will do the last fsync.
+     */
+    public void remove(JournalFile journalFile) {
+        journals.remove(journalFile);
+    }
+
+    /**
+     * Called by writers when a journal has reached flushMaxBytes, so it doesn't wait for the next timed check.
+     *
+     * @param journalFile
+     */
+    public void journalWritten(JournalFile journalFile) {
+        if (!wakeUpRequested && journalFile.getUnsyncedBytes() >= flushMaxBytes) {
+            synchronized (this) {
+                wakeUpRequested = true;
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            boolean lastPass = shutdownRequested;
+
+            long now = System.currentTimeMillis();
+            long nextCheck = now + flushPeriodInMs;
+            List<JournalFile> due = new ArrayList<JournalFile>();
+            for (JournalFile jf : journals) {
+                long unsynced = jf.getUnsyncedBytes();
+                if (0 >= unsynced) {
+                    continue;
+                }
+
+                long deadline = jf.getUnsyncedSince() + flushPeriodInMs;
+                if (lastPass || unsynced >= flushMaxBytes || deadline <= now) {
+                    due.add(jf);
+                }
+                else {
+                    nextCheck = Math.min(nextCheck, deadline);
+                }
+            }
+            flush(due);
+
+            if (lastPass) {
+                break;
+            }
+
+            synchronized (this) {
+                long waitTime = nextCheck - System.currentTimeMillis();
+                if (!wakeUpRequested && !shutdownRequested && 0 < waitTime) {
+                    try {
+                        wait(waitTime);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.interrupted();
+                    }
+                }
+                wakeUpRequested = false;
+            }
+        }
+    }
+
+    private void flush(List<JournalFile> due) {
+        if (due.isEmpty()) {
+            return;
+        }
+
+        if (null == fsyncExec || 1 == due.size()) {
+            for (JournalFile jf : due) {
+                fsync(jf);
+            }
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(due.size());
+        for (final JournalFile jf : due) {
+            futures.add(fsyncExec.submit(new Runnable() {
+                @Override
+                public void run() {
+                    fsync(jf);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.interrupted();
+            }
+            catch (ExecutionException e) {
+                logger.error("exception while fsync'ing", e.getCause());
+            }
+        }
+    }
+
+    private void fsync(JournalFile jf) {
+        try {
+            jf.forceFlush();
+            numberOfFsyncs.incrementAndGet();
+        }
+        catch (IOException | RuntimeException e) {
+            logger.error("exception while fsync'ing journal file, {}", jf.getFile().getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Signal the flusher thread to fsync everything unsynced and exit.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdownRequested = true;
+            notifyAll();
+        }
+    }
+
+    public long getNumberOfFsyncs() {
+        return numberOfFsyncs.get();
+    }
+}
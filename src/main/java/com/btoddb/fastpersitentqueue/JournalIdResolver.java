@@ -0,0 +1,64 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.eaio.uuid.UUID;
+
+
+/**
+ * Journals are known by a sequence number at runtime, which is only good until shutdown.  Anything on disk that
+ * refers to a journal (paging files) uses the journal's UUID instead, and translates with this.
+ */
+public interface JournalIdResolver {
+    /**
+     * For when there are no journals, every sequence is written as {@link FpqEntry#EMPTY_JOURNAL_ID} and read
+     * back as {@link FpqEntry#NO_JOURNAL_SEQUENCE}.
+     */
+    JournalIdResolver NONE = new JournalIdResolver() {
+        @Override
+        public UUID getJournalId(long journalSequence) {
+            return FpqEntry.EMPTY_JOURNAL_ID;
+        }
+
+        @Override
+        public long getJournalSequence(UUID journalId) {
+            return FpqEntry.NO_JOURNAL_SEQUENCE;
+        }
+    };
+
+    /**
+     * @param journalSequence
+     * @return the journal's UUID, or {@link FpqEntry#EMPTY_JOURNAL_ID} if there is no such journal
+     */
+    UUID getJournalId(long journalSequence);
+
+    /**
+     * @param journalId
+     * @return the journal's sequence, or {@link FpqEntry#NO_JOURNAL_SEQUENCE} if there is no such journal
+     */
+    long getJournalSequence(UUID journalId);
+}
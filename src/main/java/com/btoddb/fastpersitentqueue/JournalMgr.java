@@ -29,6 +29,8 @@ package com.btoddb.fastpersitentqueue;
 import com.btoddb.fastpersitentqueue.exceptions.FpqException;
 import com.eaio.uuid.UUID;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.NotFileFilter;
+import org.apache.commons.io.filefilter.PrefixFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,48 +39,108 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
  *
  */
-public class JournalMgr {
+public class JournalMgr implements JournalIdResolver {
     private static final Logger logger = LoggerFactory.getLogger(JournalMgr.class);
+    private static final String RECYCLED_JOURNAL_PREFIX = "recycled-";
+    private static final String COMPACTING_JOURNAL_PREFIX = "compacting-";
+    private static final int COMPACTION_BATCH_SIZE = 100;
 
-    private File directory;
+    private List<File> directories;
+    private JournalPlacementPolicy placementPolicy = JournalPlacementPolicy.ROUND_ROBIN;
     private long flushPeriodInMs = 10000;
+    private long flushMaxBytes = 4 * 1024 * 1024;
     private int numberOfFlushWorkers = 4;
     private int numberOfGeneralWorkers = 2;
     private long maxJournalFileSize = 100000000L;
     private long maxJournalDurationInMs = (10 * 60 * 1000); // 10 minutes
+    private boolean groupCommitEnabled;
+    private boolean memoryMappedJournalsEnabled;
+    private boolean compressedJournalsEnabled;
+    private boolean directIoJournalsEnabled;
+    private boolean journalRecyclingEnabled;
+    private int maxRecycledJournals = 4;
+    private boolean journalCompactionEnabled;
+    private double journalCompactionThreshold = 0.25;
+    private long journalCompactionPeriodInMs = 60000;
+    private boolean consumptionLogEnabled;
+    private DurabilityMode durabilityMode = DurabilityMode.PERIODIC;
+    private long groupSyncMaxWaitInMs = 5;
+    private long groupSyncMaxBytes = 1024 * 1024;
+    private int numberOfActiveJournals = 1;
+    private int numberOfReplayWorkers = 4;
 
     private volatile boolean shutdownInProgress;
     private long journalsLoadedAtStartup;
     private AtomicLong journalsCreated = new AtomicLong();
     private AtomicLong journalsRemoved = new AtomicLong();
+    private AtomicLong journalsRecycled = new AtomicLong();
+    private AtomicLong journalsCompacted = new AtomicLong();
     private AtomicLong numberOfEntries = new AtomicLong();
+    private AtomicInteger nextDirectoryIndex = new AtomicInteger();
 
-    private volatile JournalDescriptor currentJournalDescriptor;
+    // one journal per stripe, each with its own monitor, so pushers on different stripes don't contend
+    private AtomicReferenceArray<JournalDescriptor> activeJournals;
+    // the next journal for each stripe, already created and open, so rolling is only a swap
+    private AtomicReferenceArray<JournalFile> spareJournals;
+    // files of drained journals waiting to be reused by the next new journal
+    private LinkedBlockingQueue<File> recycledJournals;
 
-    ReentrantReadWriteLock journalLock = new ReentrantReadWriteLock();
-    private TreeMap<UUID, JournalDescriptor> journalIdMap = new TreeMap<UUID, JournalDescriptor>(new Comparator<UUID>() {
-        @Override
-        public int compare(UUID uuid, UUID uuid2) {
-            return uuid.compareTo(uuid2);
-        }
-    });
+    private JournalRegistry journalRegistry = new JournalRegistry();
 
-    private ScheduledThreadPoolExecutor flushExec;
+    private ExecutorService flushExec;
+    private ExecutorService flusherExec;
+    private JournalFlusher journalFlusher;
     private ExecutorService generalExec;
+    private ExecutorService rollExec;
+    private ExecutorService appenderExec;
+    private JournalAppender[] journalAppenders;
+    private ExecutorService syncerExec;
+    private JournalSyncer journalSyncer;
+    private ScheduledExecutorService compactionExec;
 
     /**
      *
      * @throws IOException
      */
     public void init() throws IOException {
-        flushExec = new ScheduledThreadPoolExecutor(numberOfFlushWorkers,
+        if (null == directories || directories.isEmpty()) {
+            Utils.logAndThrow(logger, "at least one journal directory must be set");
+        }
+        if (1 > numberOfActiveJournals) {
+            Utils.logAndThrow(logger, String.format("numberOfActiveJournals (%d) must be at least 1", numberOfActiveJournals));
+        }
+        if (journalRecyclingEnabled && 1 > maxRecycledJournals) {
+            Utils.logAndThrow(logger, String.format("maxRecycledJournals (%d) must be at least 1 when journal recycling is enabled", maxRecycledJournals));
+        }
+        if (memoryMappedJournalsEnabled && directIoJournalsEnabled) {
+            Utils.logAndThrow(logger, "memory mapped journals and direct I/O journals cannot both be enabled");
+        }
+        if (directIoJournalsEnabled && !DirectIoWriter.isSupported()) {
+            logger.warn("direct I/O journals are enabled, but not supported by this JVM - journals will be written through the page cache");
+        }
+        if (journalCompactionEnabled && (0 >= journalCompactionThreshold || 1 <= journalCompactionThreshold)) {
+            Utils.logAndThrow(logger, String.format("journalCompactionThreshold (%f) must be between 0 and 1", journalCompactionThreshold));
+        }
+        if (0 >= flushPeriodInMs || 0 >= flushMaxBytes) {
+            Utils.logAndThrow(logger, String.format("flushPeriodInMs (%d) and flushMaxBytes (%d) must be greater than zero", flushPeriodInMs, flushMaxBytes));
+        }
+        if (1 > numberOfFlushWorkers) {
+            Utils.logAndThrow(logger, String.format("numberOfFlushWorkers (%d) must be at least 1", numberOfFlushWorkers));
+        }
+        if (memoryMappedJournalsEnabled && Integer.MAX_VALUE < maxJournalFileSize) {
+            Utils.logAndThrow(logger, String.format("maxJournalFileSize (%d) cannot be larger than %d when memory mapped journals are enabled", maxJournalFileSize, Integer.MAX_VALUE));
+        }
+
+        // one flusher decides when each journal needs an fsync, the workers run them in parallel
+        flushExec = Executors.newFixedThreadPool(numberOfFlushWorkers,
                                                     new ThreadFactory() {
                                                         @Override
                                                         public Thread newThread(Runnable runnable) {
@@ -87,6 +149,16 @@ public class JournalMgr {
                                                             return t;
                                                         }
                                                     });
+        journalFlusher = new JournalFlusher(flushPeriodInMs, flushMaxBytes, 1 < numberOfFlushWorkers ? flushExec : null);
+        flusherExec = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                                                        @Override
+                                                        public Thread newThread(Runnable runnable) {
+                                                            Thread t = new Thread(runnable);
+                                                            t.setName("FPQ-JournalFlusher");
+                                                            return t;
+                                                        }
+                                                    });
+        flusherExec.submit(journalFlusher);
         generalExec = Executors.newFixedThreadPool(numberOfGeneralWorkers,
                                                     new ThreadFactory() {
                                                         @Override
@@ -97,16 +169,89 @@ public class JournalMgr {
                                                         }
                                                     });
 
+        // single thread, so closing finished journals and creating spares never compete with each other
+        rollExec = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                                                        @Override
+                                                        public Thread newThread(Runnable runnable) {
+                                                            Thread t = new Thread(runnable);
+                                                            t.setName("FPQ-JournalRoller");
+                                                            return t;
+                                                        }
+                                                    });
+
+        recycledJournals = new LinkedBlockingQueue<File>(Math.max(1, maxRecycledJournals));
         prepareJournaling();
 
-        currentJournalDescriptor = createAndAddNewJournal();
+        activeJournals = new AtomicReferenceArray<JournalDescriptor>(numberOfActiveJournals);
+        spareJournals = new AtomicReferenceArray<JournalFile>(numberOfActiveJournals);
+        for (int i=0;i < numberOfActiveJournals;i++) {
+            activeJournals.set(i, createAndAddNewJournal());
+            submitSpareCreation(i);
+        }
+
+        if (groupCommitEnabled) {
+            // one appender per stripe, otherwise the single appender thread would funnel everything into one journal
+            journalAppenders = new JournalAppender[numberOfActiveJournals];
+            appenderExec = Executors.newFixedThreadPool(numberOfActiveJournals, new ThreadFactory() {
+                                                        @Override
+                                                        public Thread newThread(Runnable runnable) {
+                                                            Thread t = new Thread(runnable);
+                                                            t.setName("FPQ-JournalAppender");
+                                                            return t;
+                                                        }
+                                                    });
+            for (int i=0;i < numberOfActiveJournals;i++) {
+                journalAppenders[i] = new JournalAppender(this, i);
+                appenderExec.submit(journalAppenders[i]);
+            }
+        }
+
+        if (DurabilityMode.GROUP == durabilityMode) {
+            journalSyncer = new JournalSyncer(groupSyncMaxWaitInMs, groupSyncMaxBytes);
+            syncerExec = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                                                        @Override
+                                                        public Thread newThread(Runnable runnable) {
+                                                            Thread t = new Thread(runnable);
+                                                            t.setName("FPQ-JournalSyncer");
+                                                            return t;
+                                                        }
+                                                    });
+            syncerExec.submit(journalSyncer);
+        }
+
+        if (journalCompactionEnabled) {
+            compactionExec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                                                        @Override
+                                                        public Thread newThread(Runnable runnable) {
+                                                            Thread t = new Thread(runnable);
+                                                            t.setName("FPQ-JournalCompactor");
+                                                            return t;
+                                                        }
+                                                    });
+            compactionExec.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    compactJournals();
+                }
+            }, journalCompactionPeriodInMs, journalCompactionPeriodInMs, TimeUnit.MILLISECONDS);
+        }
     }
 
     private void prepareJournaling() throws IOException {
-        FileUtils.forceMkdir(directory);
-        Collection<File> files = FileUtils.listFiles(directory, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
-        if (null == files || 0 == files.size()) {
+        Collection<File> files = new ArrayList<File>();
+        for (File directory : directories) {
+            FileUtils.forceMkdir(directory);
+            files.addAll(FileUtils.listFiles(directory, new NotFileFilter(new PrefixFileFilter(new String[] {RECYCLED_JOURNAL_PREFIX, COMPACTING_JOURNAL_PREFIX, ConsumptionLog.FILE_PREFIX, CapacityMgr.RESERVE_FILE_NAME})), TrueFileFilter.INSTANCE));
+            prepareRecycledJournals(directory);
+            // a compaction that didn't finish - the original journal is still there
+            for (File f : FileUtils.listFiles(directory, new PrefixFileFilter(COMPACTING_JOURNAL_PREFIX), TrueFileFilter.INSTANCE)) {
+                logger.info("removing unfinished compacted journal, {}", f.getAbsolutePath());
+                FileUtils.forceDelete(f);
+            }
+        }
+        if (files.isEmpty()) {
             logger.info("no previous journal files found");
+            removeOrphanedConsumptionLogs();
             return;
         }
 
@@ -117,42 +262,233 @@ public class JournalMgr {
             jf.initForReading();
             jf.close();
 
+            EntryIdIndex consumed = null;
+            ConsumptionLog consumptionLog = null;
+            long numberConsumed = 0;
+            if (consumptionLogEnabled) {
+                consumptionLog = new ConsumptionLog(f, jf.getId().toString());
+                consumed = consumptionLog.load();
+                numberConsumed = consumed.size();
+                if (!consumed.isEmpty() && numberConsumed >= jf.getNumberOfEntries()) {
+                    // the log should never name an entry the journal doesn't have, but make sure before removing it
+                    numberConsumed = countConsumedEntries(jf, consumed);
+                    if (numberConsumed == jf.getNumberOfEntries()) {
+                        // everything was taken, but the process stopped before the journal was removed
+                        logger.info("journal, {}, has been completely consumed - removing it", jf.getId());
+                        consumptionLog.delete();
+                        FileUtils.forceDelete(f);
+                        continue;
+                    }
+                }
+                // replay passes over the entries already taken
+                jf.setSkippedEntries(consumed);
+            }
+
+            jf.setSequence(journalRegistry.nextSequence());
             JournalDescriptor jd = new JournalDescriptor(jf);
             jd.setWritingFinished(true);
-            jd.adjustEntryCount(jf.getNumberOfEntries());
-            journalIdMap.put(jd.getId(), jd);
+            jd.adjustEntryCount(jf.getNumberOfEntries() - numberConsumed);
+            jd.setNumberOfEntriesSkippedAtLoad(numberConsumed);
+            if (journalCompactionEnabled) {
+                jd.trackConsumedEntries(consumed);
+            }
+            jd.setConsumptionLog(consumptionLog);
+            journalRegistry.add(jd);
             numberOfEntries.addAndGet(jf.getNumberOfEntries());
             logger.info("loaded descriptor, {}, with {} entries", jd.getId(), jd.getNumberOfUnconsumedEntries());
             journalsLoadedAtStartup ++;
         }
+        removeOrphanedConsumptionLogs();
 
         logger.info("completed journal descriptor loading.  found a total of {} entries", numberOfEntries.get());
     }
 
+    // reads only record headers, the data of a consumed entry is passed over
+    private long countConsumedEntries(JournalFile jf, EntryIdIndex consumed) throws IOException {
+        JournalFile reader = new JournalFile(jf.getFile());
+        reader.setSkippedEntries(consumed);
+        try {
+            Iterator<FpqEntry> iter = reader.mappedIterator();
+            while (iter.hasNext()) {
+                iter.next();
+            }
+            return reader.getNumberOfSkippedEntriesRead();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    // logs of journals that are gone, unfinished rewrites, or all logs if they have been turned off since
+    private void removeOrphanedConsumptionLogs() throws IOException {
+        Set<File> inUse = new HashSet<File>();
+        for (JournalDescriptor jd : journalRegistry.getDescriptors()) {
+            if (null != jd.getConsumptionLog()) {
+                inUse.add(jd.getConsumptionLog().getFile().getAbsoluteFile());
+            }
+        }
+        for (File directory : directories) {
+            for (File f : FileUtils.listFiles(directory, new PrefixFileFilter(ConsumptionLog.FILE_PREFIX), TrueFileFilter.INSTANCE)) {
+                if (!inUse.contains(f.getAbsoluteFile())) {
+                    logger.debug("removing unused consumption log, {}", f.getAbsolutePath());
+                    FileUtils.forceDelete(f);
+                }
+            }
+        }
+    }
+
+    // recycled files left by the last run are ready to reuse, unless recycling has been turned off since
+    private void prepareRecycledJournals(File directory) throws IOException {
+        for (File f : FileUtils.listFiles(directory, new PrefixFileFilter(RECYCLED_JOURNAL_PREFIX), TrueFileFilter.INSTANCE)) {
+            if (journalRecyclingEnabled && recycledJournals.offer(f)) {
+                logger.info("found recycled journal file, {}", f.getAbsolutePath());
+            }
+            else {
+                FileUtils.forceDelete(f);
+            }
+        }
+    }
+
+    private File chooseDirectoryForNewJournal() {
+        if (1 == directories.size()) {
+            return directories.get(0);
+        }
+
+        switch (placementPolicy) {
+            case FREE_SPACE:
+                File bestDir = null;
+                long bestSpace = -1;
+                for (File dir : directories) {
+                    long space = dir.getUsableSpace();
+                    if (space > bestSpace) {
+                        bestDir = dir;
+                        bestSpace = space;
+                    }
+                }
+                return bestDir;
+
+            case ROUND_ROBIN:
+            default:
+                int index = nextDirectoryIndex.getAndIncrement() & Integer.MAX_VALUE;
+                return directories.get(index % directories.size());
+        }
+    }
+
     public JournalReplayIterable createReplayIterable() throws IOException {
         return new JournalReplayIterable();
     }
 
+    /**
+     * Like {@link #createReplayIterable()}, but journals are read in parallel and entries come back in ID order.
+     * Caller must close it.
+     *
+     * @return
+     */
+    public ParallelJournalReplayer createParallelReplayIterable() throws IOException {
+        return new ParallelJournalReplayer(getJournalsInWriteOrder(), numberOfReplayWorkers);
+    }
+
+    // journals are created (and get their UUID) before they are needed, and loaded journals get their sequence in
+    // no particular order, so neither is necessarily the order they were written in.  sort by the ID of the first
+    // entry in each journal instead - IDs are handed out in increasing order as entries are pushed, so the journal
+    // with the lowest first ID was written first.  empty journals sort last
+    private List<JournalDescriptor> getJournalsInWriteOrder() throws IOException {
+        List<JournalDescriptor> descList = journalRegistry.getDescriptors();
+
+        final Map<JournalDescriptor, Long> firstIds = new HashMap<JournalDescriptor, Long>();
+        for (JournalDescriptor jd : descList) {
+            firstIds.put(jd, jd.getFile().readFirstEntryId());
+        }
+        Collections.sort(descList, new Comparator<JournalDescriptor>() {
+            @Override
+            public int compare(JournalDescriptor jd1, JournalDescriptor jd2) {
+                long id1 = firstIds.get(jd1);
+                long id2 = firstIds.get(jd2);
+                return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+            }
+        });
+        return descList;
+    }
+
     private JournalDescriptor createAndAddNewJournal() throws IOException {
+        return addNewJournalToIdMap(createJournalFile());
+    }
+
+    private JournalFile createJournalFile() throws IOException {
+        File recycledFile = recycledJournals.poll();
+        if (null != recycledFile) {
+            JournalFile jf = reuseJournalFile(recycledFile);
+            if (null != jf) {
+                return jf;
+            }
+        }
+
         UUID uid = new UUID();
         String fn = createNewJournalName(uid.toString());
-        return addNewJournalToIdMap(uid, fn);
+        JournalFile jf = new JournalFile(new File(chooseDirectoryForNewJournal(), fn));
+        jf.setDirectIoEnabled(directIoJournalsEnabled);
+        jf.initForWriting(uid, memoryMappedJournalsEnabled ? maxJournalFileSize : 0, compressedJournalsEnabled);
+        return jf;
     }
 
-    private JournalDescriptor addNewJournalToIdMap(UUID id, String fn) throws IOException {
-        JournalFile jf = new JournalFile(new File(directory, fn));
-        jf.initForWriting(id);
-
-        // this could possibly create a race, if the flushPeriodInMs is very very low ;)
-        ScheduledFuture future = flushExec.scheduleWithFixedDelay(new FlushRunner(jf), flushPeriodInMs, flushPeriodInMs, TimeUnit.MILLISECONDS);
-        JournalDescriptor jd = new JournalDescriptor(id, jf, future);
-        journalLock.writeLock().lock();
+    // recycled files stay in the directory they were created in, placement policy only applies to new files
+    private JournalFile reuseJournalFile(File recycledFile) {
         try {
-            journalIdMap.put(id, jd);
+            // the old records must never match the new journal's marker, that is what stops replay at the end of
+            // the new data if the journal isn't closed
+            int staleMarker = JournalFile.readRecordMarker(recycledFile);
+            UUID uid = new UUID();
+            while (staleMarker == JournalFile.createRecordMarker(uid)) {
+                uid = new UUID();
+            }
+
+            String fn = createNewJournalName(uid.toString());
+            JournalFile jf = new JournalFile(new File(recycledFile.getParentFile(), fn));
+            jf.setDirectIoEnabled(directIoJournalsEnabled);
+            jf.initForRewriting(recycledFile, uid, memoryMappedJournalsEnabled ? maxJournalFileSize : 0, compressedJournalsEnabled);
+            journalsRecycled.incrementAndGet();
+            logger.debug("reusing recycled journal file, {}, for journal {}", recycledFile.getAbsolutePath(), uid);
+            return jf;
         }
-        finally {
-            journalLock.writeLock().unlock();
+        catch (IOException | RuntimeException e) {
+            logger.error("could not reuse recycled journal file, {} - creating a new one", recycledFile.getAbsolutePath(), e);
+            FileUtils.deleteQuietly(recycledFile);
+            return null;
+        }
+    }
+
+    // an open journal may still be closed by the roller thread, so only a closed journal's file can be recycled
+    private boolean recycleJournalFile(JournalFile jf) {
+        if (!journalRecyclingEnabled || jf.isOpen() || 0 == recycledJournals.remainingCapacity()) {
+            return false;
+        }
+
+        File f = jf.getFile();
+        File recycledFile = new File(f.getParentFile(), RECYCLED_JOURNAL_PREFIX + jf.getId().toString());
+        if (!f.renameTo(recycledFile)) {
+            logger.warn("could not rename journal file, {}, for recycling - deleting it instead", f.getAbsolutePath());
+            return false;
+        }
+        if (!recycledJournals.offer(recycledFile)) {
+            // the pool filled up since the check above
+            FileUtils.deleteQuietly(recycledFile);
         }
+        return true;
+    }
+
+    private JournalDescriptor addNewJournalToIdMap(JournalFile jf) throws IOException {
+        UUID id = jf.getId();
+        jf.setSequence(journalRegistry.nextSequence());
+
+        journalFlusher.add(jf);
+        JournalDescriptor jd = new JournalDescriptor(id, jf);
+        if (journalCompactionEnabled) {
+            jd.trackConsumedEntries(null);
+        }
+        if (consumptionLogEnabled) {
+            jd.setConsumptionLog(new ConsumptionLog(jf.getFile(), id.toString()));
+        }
+        journalRegistry.add(jd);
 
         journalsCreated.incrementAndGet();
         logger.debug("new journal created : {}", jd.getId());
@@ -169,56 +505,165 @@ public class JournalMgr {
             throw new FpqException("FPQ has been shutdown or is in progress, cannot append");
         }
 
-        // TODO:BTB - optimize this by calling file.append() with collection of data
-        List<FpqEntry> entryList = new ArrayList<FpqEntry>(events.size());
-        for (FpqEntry entry : events) {
-            // TODO:BTB - could use multiple journal files to prevent lock contention - each thread in an "append" pool gets one?
-            boolean appended = false;
-            while (!appended) {
-                JournalDescriptor desc = getCurrentJournalDescriptor();
-                if (null == desc) {
-                    Utils.logAndThrow(logger, String.format("no current journal descriptor.  did you call %s.init()?", this.getClass().getSimpleName()));
-                }
-                synchronized (desc) {
-                    if (!desc.isWritingFinished()) {
-                        desc.getFile().append(entry);
-                        entry.setJournalId(desc.getId());
-                        entryList.add(entry);
-
-                        if (0 >= desc.getStartTime()) {
-                            desc.setStartTime(System.currentTimeMillis());
-                        }
-                        desc.adjustEntryCount(1);
+        List<FpqEntry> entryList = new ArrayList<FpqEntry>(events);
+        int stripe = getStripeForCurrentThread();
+        JournalFile journalFile;
+        if (null != journalAppenders) {
+            // group commit - the stripe's appender thread writes our entries along with everyone else's
+            journalFile = journalAppenders[stripe].append(entryList);
+        }
+        else {
+            journalFile = writeEntries(stripe, entryList);
+        }
+
+        // SYNC has already fsync'ed in writeEntries, PERIODIC leaves it to the JournalFlusher
+        if (null != journalSyncer && null != journalFile) {
+            long numBytes = 0;
+            for (FpqEntry entry : entryList) {
+                numBytes += entry.getJournalSize();
+            }
+            journalSyncer.sync(journalFile, numBytes);
+        }
 
-                        rollJournalIfNeeded();
-                        appended = true;
+        return entryList;
+    }
+
+    // threads are spread across stripes by ID, which the JVM hands out sequentially
+    private int getStripeForCurrentThread() {
+        return (int) (Thread.currentThread().getId() % activeJournals.length());
+    }
+
+    // writes all entries to the stripe's current journal with one append, holding the descriptor's monitor once
+    // per batch instead of once per entry.  called by pushing threads, or only by the stripe's appender when group
+    // committing.  the journal may grow past maxJournalFileSize by at most one batch before it rolls
+    JournalFile writeEntries(int stripe, List<FpqEntry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return null;
+        }
+
+        JournalFile journalFile;
+
+        while (true) {
+            JournalDescriptor desc = null != activeJournals ? activeJournals.get(stripe) : null;
+            if (null == desc) {
+                Utils.logAndThrow(logger, String.format("no current journal descriptor.  did you call %s.init()?", this.getClass().getSimpleName()));
+            }
+            synchronized (desc) {
+                if (!desc.isWritingFinished()) {
+                    desc.getFile().append(entries);
+                    for (FpqEntry entry : entries) {
+                        entry.setJournalSequence(desc.getSequence());
                     }
+
+                    if (0 >= desc.getStartTime()) {
+                        desc.setStartTime(System.currentTimeMillis());
+                    }
+                    desc.adjustEntryCount(entries.size());
+
+                    journalFile = desc.getFile();
+                    if (DurabilityMode.SYNC == durabilityMode) {
+                        journalFile.forceFlush();
+                    }
+
+                    rollJournalIfNeeded(stripe, desc);
+                    break;
                 }
             }
         }
 
-        numberOfEntries.addAndGet(entryList.size());
-
-        return entryList;
+        numberOfEntries.addAndGet(entries.size());
+        if (DurabilityMode.PERIODIC == durabilityMode) {
+            journalFlusher.journalWritten(journalFile);
+        }
+        return journalFile;
     }
 
-    // this method must be synchronized from above
-    private void rollJournalIfNeeded() throws IOException {
-        if ( !currentJournalDescriptor.isAnyWritesHappened()) {
+    // this method must be synchronized on desc from above
+    private void rollJournalIfNeeded(int stripe, JournalDescriptor desc) throws IOException {
+        if ( !desc.isAnyWritesHappened()) {
             return;
         }
 
-        long fileLength = currentJournalDescriptor.getFile().getFilePosition();
+        long fileLength = desc.getFile().getFilePosition();
         if (fileLength >= maxJournalFileSize ||
-                (0 < fileLength && (currentJournalDescriptor.getStartTime()+maxJournalDurationInMs) < System.currentTimeMillis())) {
-            currentJournalDescriptor.setWritingFinished(true);
-            currentJournalDescriptor.getFuture().cancel(false);
-            currentJournalDescriptor.getFile().close();
-            currentJournalDescriptor = createAndAddNewJournal();
+                (0 < fileLength && (desc.getStartTime()+maxJournalDurationInMs) < System.currentTimeMillis())) {
+            desc.setWritingFinished(true);
+            // closing it will do the last fsync
+            journalFlusher.remove(desc.getFile());
+
+            // normally the roller has the next journal waiting, so pushers only pay for a swap
+            JournalFile nextFile = spareJournals.getAndSet(stripe, null);
+            if (null == nextFile) {
+                logger.debug("no spare journal ready for stripe {} - creating one on the pushing thread", stripe);
+                nextFile = createJournalFile();
+            }
+            activeJournals.set(stripe, addNewJournalToIdMap(nextFile));
+            submitRollCompletion(stripe, desc);
         }
 
     }
 
+    // closing the finished journal rewrites its header and fsyncs, so it is done by the roller, which then
+    // creates the stripe's next spare
+    private void submitRollCompletion(final int stripe, final JournalDescriptor finished) throws IOException {
+        try {
+            rollExec.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        finished.getFile().close();
+                    }
+                    catch (IOException e) {
+                        logger.error("exception while closing finished journal, {}", finished.getId(), e);
+                    }
+                    createSpareJournal(stripe);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // shutting down - the roller is gone
+            finished.getFile().close();
+        }
+    }
+
+    private void submitSpareCreation(final int stripe) {
+        rollExec.submit(new Runnable() {
+            @Override
+            public void run() {
+                createSpareJournal(stripe);
+            }
+        });
+    }
+
+    // only called by the roller thread
+    private void createSpareJournal(int stripe) {
+        if (shutdownInProgress || null != spareJournals.get(stripe)) {
+            return;
+        }
+
+        try {
+            JournalFile jf = createJournalFile();
+            if (!spareJournals.compareAndSet(stripe, null, jf)) {
+                discardSpareJournal(jf);
+                return;
+            }
+            logger.debug("spare journal, {}, ready for stripe {}", jf.getId(), stripe);
+        }
+        catch (IOException e) {
+            logger.error("exception while creating spare journal for stripe {} - next roll will create it", stripe, e);
+        }
+    }
+
+    private void discardSpareJournal(JournalFile jf) {
+        try {
+            jf.close();
+            FileUtils.forceDelete(jf.getFile());
+        }
+        catch (IOException e) {
+            logger.error("could not remove spare journal file, {}", jf.getFile().getAbsolutePath(), e);
+        }
+    }
+
     public void reportTake(FpqEntry entry) throws IOException {
         reportTake(Collections.singleton(entry));
     }
@@ -233,36 +678,66 @@ public class JournalMgr {
             return;
         }
 
-        Map<UUID, Integer> journalIds = new HashMap<UUID, Integer>();
+        // must be recorded before the counts drop, the last take of a journal submits its removal
+        if (journalCompactionEnabled || consumptionLogEnabled) {
+            recordConsumedEntries(entries);
+        }
+
+        // entries popped together are almost always from the same journal, so count runs of the same sequence
+        // instead of grouping them in a map
+        long journalSequence = FpqEntry.NO_JOURNAL_SEQUENCE;
+        int count = 0;
         for (FpqEntry entry : entries) {
-            Integer count = journalIds.get(entry.getJournalId());
-            if (null == count) {
+            if (entry.getJournalSequence() != journalSequence) {
+                reportTake(journalSequence, count);
+                journalSequence = entry.getJournalSequence();
                 count = 0;
             }
-            journalIds.put(entry.getJournalId(), count + 1);
+            count++;
         }
+        reportTake(journalSequence, count);
+    }
 
-        for (Map.Entry<UUID, Integer> entry : journalIds.entrySet()) {
-            journalLock.readLock().lock();
-            JournalDescriptor desc;
-            try {
-                desc = journalIdMap.get(entry.getKey());
-            }
-            finally {
-                journalLock.readLock().unlock();
+    // compaction and replay need to know which entries of a journal are left, not only how many
+    private void recordConsumedEntries(Collection<FpqEntry> entries) throws IOException {
+        long[] entryIds = new long[entries.size()];
+        JournalDescriptor desc = null;
+        int count = 0;
+        for (FpqEntry entry : entries) {
+            if (null == desc || entry.getJournalSequence() != desc.getSequence()) {
+                if (null != desc) {
+                    desc.entriesConsumed(entryIds, count);
+                }
+                count = 0;
+                desc = journalRegistry.get(entry.getJournalSequence());
+                if (null == desc) {
+                    // reportTake(long, int) logs this
+                    continue;
+                }
             }
+            entryIds[count++] = entry.getId();
+        }
+        if (null != desc) {
+            desc.entriesConsumed(entryIds, count);
+        }
+    }
 
-            if (null == desc) {
-                logger.error("illegal state - reported consumption of journal entry, but journal descriptor, {}, doesn't exist!", entry.getKey());
-                continue;
-            }
+    private void reportTake(long journalSequence, int count) {
+        if (0 == count) {
+            return;
+        }
+
+        JournalDescriptor desc = journalRegistry.get(journalSequence);
+        if (null == desc) {
+            logger.error("illegal state - reported consumption of journal entry, but journal descriptor, {}, doesn't exist!", journalSequence);
+            return;
+        }
 
-            long remaining = desc.adjustEntryCount(-entry.getValue());
+        long remaining = desc.adjustEntryCount(-count);
 
-            // this is therad-safe, because only one thread can decrement down to zero when isWritingFinished
-            if (0 == remaining && desc.isWritingFinished()) {
-                submitJournalRemoval(desc);
-            }
+        // this is therad-safe, because only one thread can decrement down to zero when isWritingFinished
+        if (0 == remaining && desc.isWritingFinished()) {
+            submitJournalRemoval(desc);
         }
     }
 
@@ -277,27 +752,191 @@ public class JournalMgr {
     }
 
     private void removeJournal(JournalDescriptor desc) {
-        journalLock.writeLock().lock();
+        // finished journals are only synchronized on by removal and compaction, so a compacted file is never
+        // swapped in after the journal is gone
+        synchronized (desc) {
+            journalRegistry.remove(desc);
+            if (null != desc.getConsumptionLog()) {
+                desc.getConsumptionLog().delete();
+            }
+            if (!recycleJournalFile(desc.getFile())) {
+                try {
+                    FileUtils.forceDelete(desc.getFile().getFile());
+                }
+                catch (IOException e) {
+                    logger.error("could not delete journal file, {} - will not try again", desc.getFile().getFile().getAbsolutePath());
+                }
+            }
+
+            numberOfEntries.addAndGet(-desc.getFile().getNumberOfEntries());
+        }
+        journalsRemoved.incrementAndGet();
+        logger.debug("journal, {}, removed", desc.getId());
+    }
+
+    // runs on the compactor thread only
+    void compactJournals() {
+        for (JournalDescriptor desc : journalRegistry.getDescriptors()) {
+            if (shutdownInProgress) {
+                return;
+            }
+            if (isCompactionCandidate(desc)) {
+                try {
+                    compactJournal(desc);
+                }
+                catch (IOException | RuntimeException e) {
+                    logger.error("exception while compacting journal, {} - leaving it as is", desc.getId(), e);
+                }
+            }
+        }
+    }
+
+    // the roller closes a finished journal, so an open one may still be written to
+    private boolean isCompactionCandidate(JournalDescriptor desc) {
+        JournalFile jf = desc.getFile();
+        long unconsumed = desc.getNumberOfUnconsumedEntries();
+        return desc.isWritingFinished() && !jf.isOpen() && 0 < unconsumed && 0 < jf.getNumberOfEntries()
+                && (double) unconsumed / jf.getNumberOfEntries() < journalCompactionThreshold;
+    }
+
+    /**
+     * Copy the entries of a finished journal that haven't been taken to a new file, under the same journal ID, and
+     * atomically replace the original with it.  Entries taken while copying are still copied, their IDs carry over
+     * to the compacted journal.  The descriptor - and the sequence every queued entry refers to - stays the same.
+     */
+    private void compactJournal(JournalDescriptor desc) throws IOException {
+        JournalFile origFile = desc.getFile();
+        EntryIdIndex consumed = desc.getConsumedEntries();
+        if (null == consumed) {
+            return;
+        }
+
+        File origPath = origFile.getFile();
+        JournalFile compactedFile = new JournalFile(new File(origPath.getParentFile(), COMPACTING_JOURNAL_PREFIX + desc.getId().toString()));
+        compactedFile.setDirectIoEnabled(directIoJournalsEnabled);
+        EntryIdIndex surviving = new EntryIdIndex();
         try {
-            journalIdMap.remove(desc.getId());
+            compactedFile.initForWriting(desc.getId(), 0, compressedJournalsEnabled);
+
+            // read with our own instance, the descriptor's file object may be used for replay
+            JournalFile reader = new JournalFile(origPath);
             try {
-                FileUtils.forceDelete(desc.getFile().getFile());
+                List<FpqEntry> batch = new ArrayList<FpqEntry>(COMPACTION_BATCH_SIZE);
+                for (FpqEntry entry : reader) {
+                    if (consumed.contains(entry.getId())) {
+                        continue;
+                    }
+                    batch.add(entry);
+                    surviving.add(entry.getId());
+                    if (COMPACTION_BATCH_SIZE == batch.size()) {
+                        compactedFile.append(batch);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    compactedFile.append(batch);
+                }
             }
-            catch (IOException e) {
-                logger.error("could not delete journal file, {} - will not try again", desc.getFile().getFile().getAbsolutePath());
+            finally {
+                reader.close();
             }
+            compactedFile.close();
         }
-        finally {
-            journalLock.writeLock().unlock();
+        catch (IOException | RuntimeException e) {
+            compactedFile.close();
+            FileUtils.deleteQuietly(compactedFile.getFile());
+            throw e;
         }
 
-        numberOfEntries.addAndGet(-desc.getFile().getNumberOfEntries());
-        journalsRemoved.incrementAndGet();
-        logger.debug("journal, {}, removed", desc.getId());
+        synchronized (desc) {
+            // drained and removed while we were copying
+            if (null == journalRegistry.get(desc.getSequence())) {
+                FileUtils.deleteQuietly(compactedFile.getFile());
+                return;
+            }
+
+            try {
+                desc.replaceFile(compactedFile, surviving);
+            }
+            catch (IOException | RuntimeException e) {
+                FileUtils.deleteQuietly(compactedFile.getFile());
+                throw e;
+            }
+            numberOfEntries.addAndGet(compactedFile.getNumberOfEntries() - origFile.getNumberOfEntries());
+        }
+
+        journalsCompacted.incrementAndGet();
+        logger.debug("compacted journal, {}, from {} to {} entries", desc.getId(), origFile.getNumberOfEntries(), compactedFile.getNumberOfEntries());
     }
 
     public void shutdown() {
         shutdownInProgress = true;
+
+        // let the appender finish writing anything already handed to it before the flushers stop
+        if (null != appenderExec) {
+            for (JournalAppender appender : journalAppenders) {
+                appender.shutdown();
+            }
+            appenderExec.shutdown();
+            try {
+                appenderExec.awaitTermination(60, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.interrupted();
+                // ignore
+            }
+        }
+        // finish closing rolled journals before anything is fsync'ed or removed
+        if (null != rollExec) {
+            rollExec.shutdown();
+            try {
+                rollExec.awaitTermination(60, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.interrupted();
+                // ignore
+            }
+        }
+        if (null != spareJournals) {
+            for (int i=0;i < spareJournals.length();i++) {
+                JournalFile jf = spareJournals.getAndSet(i, null);
+                if (null != jf) {
+                    discardSpareJournal(jf);
+                }
+            }
+        }
+        if (null != compactionExec) {
+            compactionExec.shutdown();
+            try {
+                compactionExec.awaitTermination(60, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.interrupted();
+                // ignore
+            }
+        }
+        if (null != syncerExec) {
+            journalSyncer.shutdown();
+            syncerExec.shutdown();
+            try {
+                syncerExec.awaitTermination(60, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.interrupted();
+                // ignore
+            }
+        }
+        if (null != flusherExec) {
+            journalFlusher.shutdown();
+            flusherExec.shutdown();
+            try {
+                flusherExec.awaitTermination(60, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.interrupted();
+                // ignore
+            }
+        }
         if (null != flushExec) {
             flushExec.shutdown();
             try {
@@ -322,16 +961,26 @@ public class JournalMgr {
         // for journals that are completely popped, but not removed (because a client still could have pushed)
         Set<JournalDescriptor> removeThese = new HashSet<>();
         try {
-            for (JournalDescriptor desc : journalIdMap.values()) {
+            for (JournalDescriptor desc : journalRegistry.getDescriptors()) {
                 if (0 == desc.getNumberOfUnconsumedEntries()) {
                     removeThese.add(desc);
                 }
-                else if (desc.getFile().isOpen()) {
-                    try {
-                        desc.getFile().forceFlush();
+                else {
+                    if (desc.getFile().isOpen()) {
+                        try {
+                            desc.getFile().forceFlush();
+                        }
+                        catch (IOException e) {
+                            logger.error("on shutdown - could not fsync journal file, {} -- ignoring", desc.getFile().getFile().getAbsolutePath());
+                        }
                     }
-                    catch (IOException e) {
-                        logger.error("on shutdown - could not fsync journal file, {} -- ignoring", desc.getFile().getFile().getAbsolutePath());
+                    if (null != desc.getConsumptionLog()) {
+                        try {
+                            desc.getConsumptionLog().close();
+                        }
+                        catch (IOException e) {
+                            logger.error("on shutdown - could not close consumption log, {} -- ignoring", desc.getConsumptionLog().getFile().getAbsolutePath());
+                        }
                     }
                 }
             }
@@ -347,8 +996,21 @@ public class JournalMgr {
         return "journal-"+id;
     }
 
+    /**
+     * @return the journal currently written to by the calling thread's stripe
+     */
     public JournalDescriptor getCurrentJournalDescriptor() {
-        return currentJournalDescriptor;
+        return null != activeJournals ? activeJournals.get(getStripeForCurrentThread()) : null;
+    }
+
+    public List<JournalDescriptor> getActiveJournalDescriptors() {
+        List<JournalDescriptor> descList = new ArrayList<JournalDescriptor>();
+        if (null != activeJournals) {
+            for (int i=0;i < activeJournals.length();i++) {
+                descList.add(activeJournals.get(i));
+            }
+        }
+        return descList;
     }
 
     public long getFlushPeriodInMs() {
@@ -359,16 +1021,53 @@ public class JournalMgr {
         this.flushPeriodInMs = flushPeriodInMs;
     }
 
+    public long getFlushMaxBytes() {
+        return flushMaxBytes;
+    }
+
+    /**
+     * A journal is fsync'ed by the flusher once this many bytes have been written since its last fsync, without
+     * waiting for flushPeriodInMs.
+     *
+     * @param flushMaxBytes
+     */
+    public void setFlushMaxBytes(long flushMaxBytes) {
+        this.flushMaxBytes = flushMaxBytes;
+    }
+
+    public long getNumberOfFlusherFsyncs() {
+        return journalFlusher.getNumberOfFsyncs();
+    }
+
+    /**
+     * @return the first journal directory
+     */
     public File getDirectory() {
-        return directory;
+        return null != directories && !directories.isEmpty() ? directories.get(0) : null;
     }
 
     public void setDirectory(File directory) {
-        this.directory = directory;
+        this.directories = Collections.singletonList(directory);
+    }
+
+    public List<File> getDirectories() {
+        return directories;
+    }
+
+    public void setDirectories(List<File> directories) {
+        this.directories = new ArrayList<File>(directories);
+    }
+
+    public JournalPlacementPolicy getPlacementPolicy() {
+        return placementPolicy;
+    }
+
+    public void setPlacementPolicy(JournalPlacementPolicy placementPolicy) {
+        this.placementPolicy = placementPolicy;
     }
 
     public Map<UUID, JournalDescriptor> getJournalFiles() {
-        return journalIdMap;
+        return journalRegistry.getIdMap();
     }
 
     public int getNumberOfFlushWorkers() {
@@ -395,6 +1094,157 @@ public class JournalMgr {
         this.maxJournalDurationInMs = journalMaxDurationInMs;
     }
 
+    public boolean isGroupCommitEnabled() {
+        return groupCommitEnabled;
+    }
+
+    public void setGroupCommitEnabled(boolean groupCommitEnabled) {
+        this.groupCommitEnabled = groupCommitEnabled;
+    }
+
+    public boolean isMemoryMappedJournalsEnabled() {
+        return memoryMappedJournalsEnabled;
+    }
+
+    public void setMemoryMappedJournalsEnabled(boolean memoryMappedJournalsEnabled) {
+        this.memoryMappedJournalsEnabled = memoryMappedJournalsEnabled;
+    }
+
+    public boolean isCompressedJournalsEnabled() {
+        return compressedJournalsEnabled;
+    }
+
+    public void setCompressedJournalsEnabled(boolean compressedJournalsEnabled) {
+        this.compressedJournalsEnabled = compressedJournalsEnabled;
+    }
+
+    public boolean isDirectIoJournalsEnabled() {
+        return directIoJournalsEnabled;
+    }
+
+    /**
+     * Write journals with direct I/O (O_DIRECT) so they don't push paging files out of the page cache.  Needs a
+     * JVM with ExtendedOpenOption.DIRECT (10+) and a file system that supports it, otherwise journals are written
+     * normally.  Can't be combined with memory mapped journals.
+     *
+     * @param directIoJournalsEnabled
+     */
+    public void setDirectIoJournalsEnabled(boolean directIoJournalsEnabled) {
+        this.directIoJournalsEnabled = directIoJournalsEnabled;
+    }
+
+    public boolean isJournalRecyclingEnabled() {
+        return journalRecyclingEnabled;
+    }
+
+    /**
+     * Instead of deleting drained journals, rename them into a pool of free files and reuse them for new journals.
+     * Saves the metadata I/O of creating, extending and deleting a file for every journal.
+     *
+     * @param journalRecyclingEnabled
+     */
+    public void setJournalRecyclingEnabled(boolean journalRecyclingEnabled) {
+        this.journalRecyclingEnabled = journalRecyclingEnabled;
+    }
+
+    public int getMaxRecycledJournals() {
+        return maxRecycledJournals;
+    }
+
+    public void setMaxRecycledJournals(int maxRecycledJournals) {
+        this.maxRecycledJournals = maxRecycledJournals;
+    }
+
+    public boolean isJournalCompactionEnabled() {
+        return journalCompactionEnabled;
+    }
+
+    /**
+     * Periodically rewrite finished journals that are mostly consumed, keeping only the entries not yet taken, so
+     * one slow entry can't pin a whole journal on disk.  Costs about one bit of memory per journaled entry to
+     * remember which entries were taken.
+     *
+     * @param journalCompactionEnabled
+     */
+    public void setJournalCompactionEnabled(boolean journalCompactionEnabled) {
+        this.journalCompactionEnabled = journalCompactionEnabled;
+    }
+
+    public double getJournalCompactionThreshold() {
+        return journalCompactionThreshold;
+    }
+
+    /**
+     * @param journalCompactionThreshold compact a finished journal when the fraction of its entries not yet taken
+     *                                   drops below this
+     */
+    public void setJournalCompactionThreshold(double journalCompactionThreshold) {
+        this.journalCompactionThreshold = journalCompactionThreshold;
+    }
+
+    public long getJournalCompactionPeriodInMs() {
+        return journalCompactionPeriodInMs;
+    }
+
+    public void setJournalCompactionPeriodInMs(long journalCompactionPeriodInMs) {
+        this.journalCompactionPeriodInMs = journalCompactionPeriodInMs;
+    }
+
+    public boolean isConsumptionLogEnabled() {
+        return consumptionLogEnabled;
+    }
+
+    /**
+     * Log the IDs of taken entries next to each journal, so replay after a restart skips them instead of pushing
+     * them again.  Restart cost is then about the entries not yet taken, not the size of the journals.  Costs a
+     * small write per commit of a pop (the log is not fsync'ed).
+     *
+     * @param consumptionLogEnabled
+     */
+    public void setConsumptionLogEnabled(boolean consumptionLogEnabled) {
+        this.consumptionLogEnabled = consumptionLogEnabled;
+    }
+
+    public int getNumberOfReplayWorkers() {
+        return numberOfReplayWorkers;
+    }
+
+    public void setNumberOfReplayWorkers(int numberOfReplayWorkers) {
+        this.numberOfReplayWorkers = numberOfReplayWorkers;
+    }
+
+    public int getNumberOfActiveJournals() {
+        return numberOfActiveJournals;
+    }
+
+    public void setNumberOfActiveJournals(int numberOfActiveJournals) {
+        this.numberOfActiveJournals = numberOfActiveJournals;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    public void setDurabilityMode(DurabilityMode durabilityMode) {
+        this.durabilityMode = durabilityMode;
+    }
+
+    public long getGroupSyncMaxWaitInMs() {
+        return groupSyncMaxWaitInMs;
+    }
+
+    public void setGroupSyncMaxWaitInMs(long groupSyncMaxWaitInMs) {
+        this.groupSyncMaxWaitInMs = groupSyncMaxWaitInMs;
+    }
+
+    public long getGroupSyncMaxBytes() {
+        return groupSyncMaxBytes;
+    }
+
+    public void setGroupSyncMaxBytes(long groupSyncMaxBytes) {
+        this.groupSyncMaxBytes = groupSyncMaxBytes;
+    }
+
     public long getJournalsCreated() {
         return journalsCreated.get();
     }
@@ -403,8 +1253,45 @@ public class JournalMgr {
         return journalsRemoved.get();
     }
 
-    public TreeMap<UUID, JournalDescriptor> getJournalIdMap() {
-        return journalIdMap;
+    public long getJournalsRecycled() {
+        return journalsRecycled.get();
+    }
+
+    public long getJournalsCompacted() {
+        return journalsCompacted.get();
+    }
+
+    public int getNumberOfRecycledJournalFiles() {
+        return recycledJournals.size();
+    }
+
+    public Map<UUID, JournalDescriptor> getJournalIdMap() {
+        return journalRegistry.getIdMap();
+    }
+
+    /**
+     * @param journalSequence
+     * @return the journal, or null if it has been removed
+     */
+    public JournalDescriptor getJournalDescriptor(long journalSequence) {
+        return journalRegistry.get(journalSequence);
+    }
+
+    @Override
+    public UUID getJournalId(long journalSequence) {
+        JournalDescriptor desc = journalRegistry.get(journalSequence);
+        return null != desc ? desc.getId() : FpqEntry.EMPTY_JOURNAL_ID;
+    }
+
+    @Override
+    public long getJournalSequence(UUID journalId) {
+        JournalDescriptor desc = journalRegistry.get(journalId);
+        return null != desc ? desc.getSequence() : FpqEntry.NO_JOURNAL_SEQUENCE;
+    }
+
+    // junit testing only
+    JournalFile getSpareJournal(int stripe) {
+        return spareJournals.get(stripe);
     }
 
     public long getNumberOfEntries() {
@@ -418,11 +1305,12 @@ public class JournalMgr {
     // ------------
 
     public class JournalReplayIterable implements Iterator<FpqEntry>, Iterable<FpqEntry> {
-        private Iterator<JournalDescriptor> jdIter = journalIdMap.values().iterator();
+        private Iterator<JournalDescriptor> jdIter;
         private Iterator<FpqEntry> entryIter = null;
         private JournalDescriptor jd = null;
 
         public JournalReplayIterable() throws IOException {
+            jdIter = getJournalsInWriteOrder().iterator();
             advanceToNextJournalFile();
         }
 
@@ -440,6 +1328,7 @@ public class JournalMgr {
 
             if (!entryIter.hasNext()) {
                 try {
+                    jd.replayFinished();
                     jd.getFile().close();
                     advanceToNextJournalFile();
                 }
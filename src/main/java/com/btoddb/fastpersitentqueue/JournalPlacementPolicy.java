@@ -26,31 +26,18 @@ package com.btoddb.fastpersitentqueue;
  * #L%
  */
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.io.IOException;
-
 
 /**
- *
+ * How new journals are spread across the configured journal directories.
  */
-public class FlushRunner implements Runnable {
-    private static final Logger logger = LoggerFactory.getLogger(FlushRunner.class);
-
-    private final JournalFile journalFile;
-
-    public FlushRunner(JournalFile journalFile) {
-        this.journalFile = journalFile;
-    }
-
-    @Override
-    public void run() {
-        try {
-            journalFile.forceFlush();
-        }
-        catch (IOException e) {
-            logger.error("exception while fsync'ing", e);
-        }
-    }
+public enum JournalPlacementPolicy {
+    /**
+     * Each new journal goes to the next directory in the list.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Each new journal goes to the directory with the most usable space.
+     */
+    FREE_SPACE
 }
@@ -0,0 +1,150 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.eaio.uuid.UUID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Registry of live journals, indexed by journal sequence.  Sequences are handed out in increasing order and
+ * journals are removed roughly in the same order, so the live ones always fit in a ring of slots indexed by
+ * (sequence & mask).  Looking up a journal - done for every commit - takes no lock and allocates nothing.  Adding
+ * and removing journals happens once per journal, those synchronize and grow the ring if a new sequence would land
+ * on a slot that is still in use.
+ */
+class JournalRegistry {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final AtomicLong lastSequence = new AtomicLong(FpqEntry.NO_JOURNAL_SEQUENCE);
+    private final Map<UUID, JournalDescriptor> idMap = new ConcurrentHashMap<UUID, JournalDescriptor>();
+    private volatile AtomicReferenceArray<JournalDescriptor> ring = new AtomicReferenceArray<JournalDescriptor>(INITIAL_CAPACITY);
+
+    /**
+     * @return the next journal sequence, never {@link FpqEntry#NO_JOURNAL_SEQUENCE}
+     */
+    long nextSequence() {
+        return lastSequence.incrementAndGet();
+    }
+
+    synchronized void add(JournalDescriptor jd) {
+        AtomicReferenceArray<JournalDescriptor> tmpRing = ring;
+        while (null != tmpRing.get(indexOf(tmpRing, jd.getSequence()))) {
+            tmpRing = grow(tmpRing);
+        }
+        tmpRing.set(indexOf(tmpRing, jd.getSequence()), jd);
+        ring = tmpRing;
+        idMap.put(jd.getId(), jd);
+    }
+
+    synchronized boolean remove(JournalDescriptor jd) {
+        idMap.remove(jd.getId());
+        return ring.compareAndSet(indexOf(ring, jd.getSequence()), jd, null);
+    }
+
+    /**
+     * @param sequence
+     * @return the journal, or null if it isn't registered (anymore)
+     */
+    JournalDescriptor get(long sequence) {
+        while (true) {
+            AtomicReferenceArray<JournalDescriptor> tmpRing = ring;
+            JournalDescriptor jd = tmpRing.get(indexOf(tmpRing, sequence));
+            if (null != jd && sequence == jd.getSequence()) {
+                return jd;
+            }
+            // the journal may have been added to a bigger ring since we looked
+            if (tmpRing == ring) {
+                return null;
+            }
+        }
+    }
+
+    JournalDescriptor get(UUID id) {
+        return idMap.get(id);
+    }
+
+    /**
+     * @return the live journals, oldest sequence first
+     */
+    List<JournalDescriptor> getDescriptors() {
+        List<JournalDescriptor> descList = new ArrayList<JournalDescriptor>(idMap.values());
+        Collections.sort(descList, new Comparator<JournalDescriptor>() {
+            @Override
+            public int compare(JournalDescriptor jd1, JournalDescriptor jd2) {
+                return Long.compare(jd1.getSequence(), jd2.getSequence());
+            }
+        });
+        return descList;
+    }
+
+    Map<UUID, JournalDescriptor> getIdMap() {
+        return Collections.unmodifiableMap(idMap);
+    }
+
+    int size() {
+        return idMap.size();
+    }
+
+    // junit testing only
+    int getCapacity() {
+        return ring.length();
+    }
+
+    // the old ring is left as is, so a lookup racing with this still finds everything that was in it
+    private AtomicReferenceArray<JournalDescriptor> grow(AtomicReferenceArray<JournalDescriptor> oldRing) {
+        int capacity = oldRing.length();
+        AtomicReferenceArray<JournalDescriptor> newRing;
+        boolean collision;
+        do {
+            capacity <<= 1;
+            newRing = new AtomicReferenceArray<JournalDescriptor>(capacity);
+            collision = false;
+            for (int i=0;i < oldRing.length() && !collision;i++) {
+                JournalDescriptor jd = oldRing.get(i);
+                if (null != jd) {
+                    int index = indexOf(newRing, jd.getSequence());
+                    collision = null != newRing.get(index);
+                    newRing.set(index, jd);
+                }
+            }
+        } while (collision);
+        return newRing;
+    }
+
+    private static int indexOf(AtomicReferenceArray<JournalDescriptor> tmpRing, long sequence) {
+        return (int) (sequence & (tmpRing.length() - 1));
+    }
+}
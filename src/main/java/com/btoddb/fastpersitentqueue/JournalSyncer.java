@@ -0,0 +1,205 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.btoddb.fastpersitentqueue.exceptions.FpqException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Group fsync for {@link DurabilityMode#GROUP}.  Committing threads register the journal they wrote to and wait.
+ * A single thread fsyncs every journal in the pending batch once the batch is old enough or big enough, then
+ * releases all of the waiters together.
+ */
+public class JournalSyncer implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(JournalSyncer.class);
+
+    private final long maxWaitInMs;
+    private final long maxBytes;
+    private SyncBatch currentBatch;
+    private volatile boolean shutdownRequested;
+    private volatile boolean stopped;
+
+    public JournalSyncer(long maxWaitInMs, long maxBytes) {
+        this.maxWaitInMs = maxWaitInMs;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add the journal to the next group fsync and block until it has completed.
+     *
+     * @param journalFile journal the caller's entries were written to
+     * @param numBytes number of bytes the caller wrote, counted toward maxBytes
+     * @throws IOException if the fsync failed
+     */
+    public void sync(JournalFile journalFile, long numBytes) throws IOException {
+        SyncBatch batch;
+        synchronized (this) {
+            if (stopped) {
+                throw new FpqException("journal syncer has been shutdown, cannot sync");
+            }
+
+            boolean newBatch = false;
+            if (null == currentBatch) {
+                currentBatch = new SyncBatch();
+                newBatch = true;
+            }
+            batch = currentBatch;
+            batch.files.add(journalFile);
+            batch.numBytes += numBytes;
+
+            // an idle syncer must start timing the new batch now, not when its idle wait runs out
+            if (newBatch || batch.numBytes >= maxBytes) {
+                notifyAll();
+            }
+        }
+
+        batch.await();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                SyncBatch batch;
+                synchronized (this) {
+                    if (null == currentBatch) {
+                        if (shutdownRequested) {
+                            break;
+                        }
+                        waitQuietly(Math.max(1, maxWaitInMs));
+                        continue;
+                    }
+
+                    long remaining = currentBatch.startTime + maxWaitInMs - System.currentTimeMillis();
+                    if (0 < remaining && currentBatch.numBytes < maxBytes && !shutdownRequested) {
+                        waitQuietly(remaining);
+                        continue;
+                    }
+
+                    batch = currentBatch;
+                    currentBatch = null;
+                }
+
+                Exception error = null;
+                for (JournalFile jf : batch.files) {
+                    try {
+                        // the flusher, or another batch, may already have synced everything our waiters wrote
+                        if (0 < jf.getUnsyncedBytes()) {
+                            jf.forceFlush();
+                        }
+                    }
+                    catch (IOException | RuntimeException e) {
+                        logger.error("exception while fsync'ing journal file, {}", jf.getFile().getAbsolutePath(), e);
+                        error = e;
+                    }
+                }
+                batch.complete(error);
+
+                logger.trace("group fsync of {} journal(s) covering {} bytes", batch.files.size(), batch.numBytes);
+            }
+        }
+        finally {
+            synchronized (this) {
+                stopped = true;
+                if (null != currentBatch) {
+                    currentBatch.complete(new FpqException("journal syncer has been shutdown, cannot sync"));
+                    currentBatch = null;
+                }
+            }
+        }
+    }
+
+    // must hold this monitor
+    private void waitQuietly(long timeoutInMs) {
+        try {
+            wait(timeoutInMs);
+        }
+        catch (InterruptedException e) {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Signal the syncer thread to fsync what is pending and exit.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdownRequested = true;
+            notifyAll();
+        }
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    // ------------
+
+    private static class SyncBatch {
+        private final long startTime = System.currentTimeMillis();
+        private final Set<JournalFile> files = new HashSet<JournalFile>();
+        private long numBytes;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Exception error;
+
+        void complete(Exception error) {
+            this.error = error;
+            latch.countDown();
+        }
+
+        void await() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    latch.await();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    // the entries are already in the journal, only waiting to know they are durable
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+        }
+    }
+}
@@ -35,10 +35,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Map;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -54,7 +52,8 @@ public class MemorySegment implements Comparable<MemorySegment> {
         READY, SAVING, LOADING, OFFLINE, REMOVING
     }
 
-    public static final int VERSION = 1;
+    // version 2 adds the entry id range and paged entry index to the paging file header
+    public static final int VERSION = 2;
 
     private int version = VERSION;
     private UUID id;
@@ -67,7 +66,7 @@ public class MemorySegment implements Comparable<MemorySegment> {
     private AtomicBoolean removerTestAndSet = new AtomicBoolean(true);
     private ReentrantReadWriteLock metaDataLock = new ReentrantReadWriteLock();
 
-    private ConcurrentSkipListMap<Long, FpqEntry> queue = new ConcurrentSkipListMap<Long, FpqEntry>();
+    private final SegmentStore queue;
     private AtomicLong sizeInBytes = new AtomicLong();
     private AtomicLong numberOfEntries = new AtomicLong();
     private AtomicLong numberOfOnlineEntries = new AtomicLong();
@@ -75,7 +74,21 @@ public class MemorySegment implements Comparable<MemorySegment> {
     private AtomicLong totalEventsPopped = new AtomicLong();
     private long entryListOffsetOnDisk;
 
-    // push is thread safe because ConcurrentSkipListMap says so
+    // IDs of the entries in the paging file, so an OFFLINE segment can answer isEntryQueued without disk access
+    private volatile EntryIdIndex pagedEntryIndex;
+    private long minEntryId;
+    private long maxEntryId;
+
+
+    public MemorySegment() {
+        this(MemorySegmentStorage.SKIP_LIST);
+    }
+
+    public MemorySegment(MemorySegmentStorage storage) {
+        this.queue = storage.createStore();
+    }
+
+    // push is thread safe because the store is
     // true = push success
     // false = not enough room and marked as finished
     public boolean push(Collection<FpqEntry> events, long spaceRequired) throws FpqPushFinished {
@@ -84,16 +97,20 @@ public class MemorySegment implements Comparable<MemorySegment> {
         // this segment will be "push finished" regardless of how much room is available
         metaDataLock.readLock().lock();
         try {
-            if (!isPushingFinished() && Status.READY == status && sizeInBytes.addAndGet(spaceRequired) <= maxSizeInBytes) {
-                for (FpqEntry entry : events) {
-                    queue.put(entry.getId(), entry);
+            if (!isPushingFinished() && Status.READY == status) {
+                if (sizeInBytes.addAndGet(spaceRequired) > maxSizeInBytes) {
+                    // give back the claim so sizeInBytes only counts entries actually pushed
+                    sizeInBytes.addAndGet(-spaceRequired);
                 }
-                totalEventsPushed.addAndGet(events.size());
+                else {
+                    queue.add(events);
+                    totalEventsPushed.addAndGet(events.size());
 
-                // this must be done last as it signals when events are ready to be popped from this segment
-                numberOfEntries.addAndGet(events.size());
-                numberOfOnlineEntries.addAndGet(events.size());
-                return true;
+                    // this must be done last as it signals when events are ready to be popped from this segment
+                    numberOfEntries.addAndGet(events.size());
+                    numberOfOnlineEntries.addAndGet(events.size());
+                    return true;
+                }
             }
         }
         finally {
@@ -145,12 +162,10 @@ public class MemorySegment implements Comparable<MemorySegment> {
                 // we don't adjust number of available entries here.  it should have been adjusted
                 // prior to popping to prevent unnecessary locking and still be thread-safe.  by the time
                 // a thread gets here it should already know it had enough entries to pop 'batchSize' amount
-                ArrayList<FpqEntry> entryList = new ArrayList<FpqEntry>(batchSize);
+                List<FpqEntry> entryList = queue.poll((int)available);
                 long size = 0;
-                Map.Entry<Long, FpqEntry> entry;
-                while (entryList.size() < available && null != (entry=queue.pollFirstEntry())) {
-                    entryList.add(entry.getValue());
-                    size += entry.getValue().getMemorySize();
+                for (FpqEntry entry : entryList) {
+                    size += entry.getMemorySize();
                 }
                 sizeInBytes.addAndGet(-size);
                 numberOfEntries.addAndGet(-entryList.size());
@@ -177,14 +192,24 @@ public class MemorySegment implements Comparable<MemorySegment> {
     }
 
     public boolean isEntryQueued(FpqEntry entry) throws FpqMemorySegmentOffline {
+        EntryIdIndex index = pagedEntryIndex;
         if (Status.OFFLINE != status) {
-            return null != queue && queue.containsKey(entry.getId());
+            // while SAVING the queue is cleared before the status becomes OFFLINE, but the index is already set
+            return queue.contains(entry.getId()) || isInPagedEntryIndex(index, entry.getId());
+        }
+        else if (null != index) {
+            return isInPagedEntryIndex(index, entry.getId());
         }
         else {
+            // paged by a version without the index
             throw new FpqMemorySegmentOffline();
         }
     }
 
+    private boolean isInPagedEntryIndex(EntryIdIndex index, long id) {
+        return null != index && minEntryId <= id && id <= maxEntryId && index.contains(id);
+    }
+
     public boolean shouldBeRemoved() {
         metaDataLock.writeLock().lock();
         try {
@@ -202,32 +227,40 @@ public class MemorySegment implements Comparable<MemorySegment> {
         }
     }
 
-    public void writeToDisk(RandomAccessFile raFile) throws IOException {
+    public void writeToDisk(RandomAccessFile raFile, JournalIdResolver resolver) throws IOException {
+        EntryIdIndex index = new EntryIdIndex();
+        queue.addIdsTo(index);
+        minEntryId = queue.getMinId();
+        maxEntryId = queue.getMaxId();
+        pagedEntryIndex = index;
+
         writeHeaderToDisk(raFile);
-        for (FpqEntry entry : getQueue().values()) {
-            entry.writeToPaging(raFile);
-        }
+        queue.writeTo(raFile, resolver);
     }
 
     private void writeHeaderToDisk(RandomAccessFile raFile) throws IOException {
-        Utils.writeInt(raFile, getVersion());
+        // always written in the current format, even if this segment was loaded from an older one
+        version = VERSION;
+        Utils.writeInt(raFile, version);
         Utils.writeUuidToFile(raFile, id);
         Utils.writeLong(raFile, maxSizeInBytes);
         Utils.writeLong(raFile, getNumberOfEntries());
         Utils.writeLong(raFile, sizeInBytes.get());
         Utils.writeLong(raFile, totalEventsPushed.get());
         Utils.writeLong(raFile, totalEventsPopped.get());
+        Utils.writeLong(raFile, minEntryId);
+        Utils.writeLong(raFile, maxEntryId);
+        pagedEntryIndex.writeToDisk(raFile);
         entryListOffsetOnDisk = raFile.getFilePointer();
     }
 
-    public void readFromPagingFile(RandomAccessFile raFile) throws IOException {
+    public void readFromPagingFile(RandomAccessFile raFile, JournalIdResolver resolver) throws IOException {
         readHeaderFromDisk(raFile);
         numberOfOnlineEntries.set(numberOfEntries.get());
-        for ( int i=0;i < numberOfEntries.get();i++ ) {
-            FpqEntry entry = new FpqEntry();
-            entry.readFromPaging(raFile);
-            queue.put(entry.getId(), entry);
-        }
+        queue.readFrom(raFile, resolver, numberOfEntries.get());
+
+        // entries are in memory now, and once popped the index would be stale
+        pagedEntryIndex = null;
     }
 
     public void readHeaderFromDisk(RandomAccessFile raFile) throws IOException {
@@ -238,6 +271,14 @@ public class MemorySegment implements Comparable<MemorySegment> {
         sizeInBytes.set(Utils.readLong(raFile));
         totalEventsPushed.set(Utils.readLong(raFile));
         totalEventsPopped.set(Utils.readLong(raFile));
+        if (2 <= version) {
+            minEntryId = Utils.readLong(raFile);
+            maxEntryId = Utils.readLong(raFile);
+            pagedEntryIndex = EntryIdIndex.readFromDisk(raFile);
+        }
+        else {
+            pagedEntryIndex = null;
+        }
         entryListOffsetOnDisk = raFile.getFilePointer();
     }
 
@@ -275,6 +316,10 @@ public class MemorySegment implements Comparable<MemorySegment> {
         this.maxSizeInBytes = maxSizeInBytes;
     }
 
+    public long getSizeInBytes() {
+        return sizeInBytes.get();
+    }
+
     public long getNumberOfEntries() {
         return numberOfEntries.get();
     }
@@ -301,8 +346,34 @@ public class MemorySegment implements Comparable<MemorySegment> {
         }
     }
 
-    public ConcurrentSkipListMap<Long, FpqEntry> getQueue() {
-        return queue;
+    public EntryIdIndex getPagedEntryIndex() {
+        return pagedEntryIndex;
+    }
+
+    public long getMinEntryId() {
+        return minEntryId;
+    }
+
+    public long getMaxEntryId() {
+        return maxEntryId;
+    }
+
+    /**
+     * @return number of entries in memory - zero when paged out
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public void addQueuedEntryIdsTo(EntryIdIndex index) {
+        queue.addIdsTo(index);
+    }
+
+    /**
+     * @return copy of the entries in memory, in pop order
+     */
+    public List<FpqEntry> getQueuedEntries() {
+        return queue.getEntries();
     }
 
     @Override
@@ -346,7 +417,7 @@ public class MemorySegment implements Comparable<MemorySegment> {
                 ", totalEventsPushed=" + totalEventsPushed +
                 ", totalEventsPopped=" + totalEventsPopped +
                 ", entryListOffsetOnDisk=" + entryListOffsetOnDisk +
-                ", queue size=" + (null != queue ? queue.size() : "null") +
+                ", queue size=" + queue.size() +
                 '}';
     }
 }
@@ -44,6 +44,8 @@ public class MemorySegmentSerializer {
 
     // should be it's on directory on separate spindle from journal
     public File directory;
+    private JournalIdResolver journalIdResolver = JournalIdResolver.NONE;
+    private MemorySegmentStorage segmentStorage = MemorySegmentStorage.SKIP_LIST;
 
 
     // any synchronizing should have been done above call
@@ -51,7 +53,7 @@ public class MemorySegmentSerializer {
         File theFile = createPagingFile(segment);
         RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
         try {
-            segment.writeToDisk(raFile);
+            segment.writeToDisk(raFile, journalIdResolver);
         }
         finally {
             raFile.close();
@@ -63,7 +65,7 @@ public class MemorySegmentSerializer {
     }
 
     public MemorySegment loadFromDisk(String fn) throws IOException {
-        MemorySegment segment = new MemorySegment();
+        MemorySegment segment = new MemorySegment(segmentStorage);
         File theFile = new File(directory, fn);
         loadFromDisk(theFile, segment);
         return segment;
@@ -77,7 +79,7 @@ public class MemorySegmentSerializer {
     public void loadFromDisk(File theFile, MemorySegment segment) throws IOException {
         RandomAccessFile raFile = new RandomAccessFile(theFile, "r");
         try {
-            segment.readFromPagingFile(raFile);
+            segment.readFromPagingFile(raFile, journalIdResolver);
         }
         finally {
             raFile.close();
@@ -88,7 +90,7 @@ public class MemorySegmentSerializer {
         File theFile = new File(directory, fn);
         RandomAccessFile raFile = new RandomAccessFile(theFile, "r");
         try {
-            MemorySegment segment = new MemorySegment();
+            MemorySegment segment = new MemorySegment(segmentStorage);
             segment.readHeaderFromDisk(raFile);
             return segment;
         }
@@ -129,7 +131,7 @@ public class MemorySegmentSerializer {
             raFile.seek(seg.getEntryListOffsetOnDisk());
             for (int i=0;i < seg.getNumberOfEntries();i++) {
                 FpqEntry entry = new FpqEntry();
-                entry.readFromPaging(raFile);
+                entry.readFromPaging(raFile, journalIdResolver);
                 if (target.equals(entry)) {
                     return true;
                 }
@@ -141,6 +143,22 @@ public class MemorySegmentSerializer {
         }
     }
 
+    public void addOfflineEntryIds(MemorySegment seg, EntryIdIndex index) throws IOException {
+        RandomAccessFile raFile = new RandomAccessFile(createPagingFile(seg), "r");
+        try {
+            // jump over header info - we already have it
+            raFile.seek(seg.getEntryListOffsetOnDisk());
+            for (int i=0;i < seg.getNumberOfEntries();i++) {
+                FpqEntry entry = new FpqEntry();
+                entry.readFromPaging(raFile, journalIdResolver);
+                index.add(entry.getId());
+            }
+        }
+        finally {
+            raFile.close();
+        }
+    }
+
     public File getDirectory() {
         return directory;
     }
@@ -149,6 +167,22 @@ public class MemorySegmentSerializer {
         this.directory = directory;
     }
 
+    public JournalIdResolver getJournalIdResolver() {
+        return journalIdResolver;
+    }
+
+    public void setJournalIdResolver(JournalIdResolver journalIdResolver) {
+        this.journalIdResolver = journalIdResolver;
+    }
+
+    public MemorySegmentStorage getSegmentStorage() {
+        return segmentStorage;
+    }
+
+    public void setSegmentStorage(MemorySegmentStorage segmentStorage) {
+        this.segmentStorage = segmentStorage;
+    }
+
     public void shutdown() {
         // ignore for now
     }
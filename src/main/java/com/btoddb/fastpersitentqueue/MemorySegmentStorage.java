@@ -0,0 +1,68 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+/**
+ * How a {@link MemorySegment} keeps its entries while in memory.
+ */
+public enum MemorySegmentStorage {
+    /**
+     * Entries stay on the heap as {@link FpqEntry} objects in a skip list ordered by entry id.
+     */
+    SKIP_LIST {
+        @Override
+        SegmentStore createStore() {
+            return new SkipListSegmentStore();
+        }
+    },
+
+    /**
+     * Entries stay on the heap as {@link FpqEntry} objects in a FIFO queue of array chunks, popped in push order.
+     * Cheaper to push and pop than {@link #SKIP_LIST}, but looking up a single entry scans the segment.
+     */
+    ARRAY_QUEUE {
+        @Override
+        SegmentStore createStore() {
+            return new ArrayQueueSegmentStore();
+        }
+    },
+
+    /**
+     * Entry data is appended to direct memory slabs and indexed by primitive arrays, so a queued entry costs no heap
+     * objects.  The {@link FpqEntry} and its byte[] are only created when the entry is popped.  Entries are popped
+     * in push order.  The JVM's direct memory limit (-XX:MaxDirectMemorySize) must have room for the active segments.
+     */
+    OFF_HEAP {
+        @Override
+        SegmentStore createStore() {
+            return new OffHeapSegmentStore();
+        }
+    };
+
+    abstract SegmentStore createStore();
+}
@@ -0,0 +1,336 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import com.eaio.uuid.UUID;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+
+/**
+ * Entry data in direct memory.  Payloads are appended to direct ByteBuffer slabs, and parallel primitive arrays
+ * hold each entry's id, journal sequence, slab, offset and length.  Entries live in [head, tail) of the arrays, in
+ * push order.
+ *
+ * Slabs start small and double up to {@link #MAX_SLAB_SIZE}, so a small segment doesn't reserve a big slab and a
+ * big one doesn't need thousands.  An entry larger than that gets a slab of its own.
+ *
+ * One monitor guards everything.  The work done under it is an array store and a memory copy, which is cheaper than
+ * the skip list's node allocation even when pushers and poppers contend.
+ */
+class OffHeapSegmentStore implements SegmentStore {
+    static final int MIN_SLAB_SIZE = 4 * 1024;
+    static final int MAX_SLAB_SIZE = 1024 * 1024;
+    private static final int INITIAL_INDEX_CAPACITY = 64;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    // id + journal UUID + data length, see FpqEntry.writeToPaging
+    private static final int PAGING_HEADER_SIZE = 8 + 16 + 4;
+
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private ByteBuffer currentSlab;
+    private long slabBytes;
+
+    private long[] ids;
+    private long[] journalSequences;
+    private int[] slabIndexes;
+    private int[] offsets;
+    private int[] lengths;
+    private int head;
+    private int tail;
+
+    @Override
+    public synchronized void add(Collection<FpqEntry> entries) {
+        ensureIndexCapacity(entries.size());
+        for (FpqEntry entry : entries) {
+            byte[] data = entry.getData();
+            ByteBuffer slab = slabWithRoomFor(data.length);
+            int offset = slab.position();
+            slab.put(data);
+            index(entry.getId(), entry.getJournalSequence(), offset, data.length);
+        }
+    }
+
+    @Override
+    public synchronized List<FpqEntry> poll(int max) {
+        int count = Math.min(max, tail - head);
+        ArrayList<FpqEntry> entryList = new ArrayList<FpqEntry>(count);
+        for (int i=0;i < count;i++) {
+            entryList.add(createEntry(head++));
+        }
+        if (head == tail) {
+            reset();
+        }
+        return entryList;
+    }
+
+    @Override
+    public synchronized boolean contains(long entryId) {
+        for (int i=head;i < tail;i++) {
+            if (entryId == ids[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void addIdsTo(EntryIdIndex index) {
+        for (int i=head;i < tail;i++) {
+            index.add(ids[i]);
+        }
+    }
+
+    @Override
+    public synchronized long getMinId() {
+        if (head == tail) {
+            return 0;
+        }
+        long min = Long.MAX_VALUE;
+        for (int i=head;i < tail;i++) {
+            min = Math.min(min, ids[i]);
+        }
+        return min;
+    }
+
+    @Override
+    public synchronized long getMaxId() {
+        long max = -1;
+        for (int i=head;i < tail;i++) {
+            max = Math.max(max, ids[i]);
+        }
+        return max;
+    }
+
+    @Override
+    public synchronized int size() {
+        return tail - head;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return head == tail;
+    }
+
+    @Override
+    public synchronized void clear() {
+        // the direct memory is freed when the slabs are garbage collected
+        slabs.clear();
+        currentSlab = null;
+        slabBytes = 0;
+        ids = null;
+        journalSequences = null;
+        slabIndexes = null;
+        offsets = null;
+        lengths = null;
+        head = 0;
+        tail = 0;
+    }
+
+    /**
+     * Record headers are staged in a buffer with small payloads, larger payloads are written straight from their slab.
+     */
+    @Override
+    public synchronized void writeTo(RandomAccessFile raFile, JournalIdResolver resolver) throws IOException {
+        FileChannel channel = raFile.getChannel();
+        ByteBuffer ioBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        for (int i=head;i < tail;i++) {
+            if (ioBuffer.remaining() < PAGING_HEADER_SIZE) {
+                flush(channel, ioBuffer);
+            }
+            UUID journalId = resolver.getJournalId(journalSequences[i]);
+            ioBuffer.putLong(ids[i]);
+            ioBuffer.putLong(journalId.getTime());
+            ioBuffer.putLong(journalId.getClockSeqAndNode());
+            ioBuffer.putInt(lengths[i]);
+
+            ByteBuffer data = slice(i);
+            if (ioBuffer.remaining() < data.remaining()) {
+                flush(channel, ioBuffer);
+            }
+            if (ioBuffer.remaining() >= data.remaining()) {
+                ioBuffer.put(data);
+            }
+            else {
+                writeFully(channel, data);
+            }
+        }
+        flush(channel, ioBuffer);
+    }
+
+    @Override
+    public synchronized void readFrom(RandomAccessFile raFile, JournalIdResolver resolver, long numberOfEntries) throws IOException {
+        FileChannel channel = raFile.getChannel();
+        ByteBuffer ioBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        ioBuffer.flip();
+        for (long i=0;i < numberOfEntries;i++) {
+            fill(channel, ioBuffer, PAGING_HEADER_SIZE);
+            long id = ioBuffer.getLong();
+            long journalSequence = resolver.getJournalSequence(new UUID(ioBuffer.getLong(), ioBuffer.getLong()));
+            int length = ioBuffer.getInt();
+
+            ensureIndexCapacity(1);
+            ByteBuffer slab = slabWithRoomFor(length);
+            int offset = slab.position();
+            int buffered = Math.min(length, ioBuffer.remaining());
+            ByteBuffer part = ioBuffer.duplicate();
+            part.limit(part.position() + buffered);
+            slab.put(part);
+            ioBuffer.position(ioBuffer.position() + buffered);
+            if (buffered < length) {
+                // rest of a large payload goes straight from the file into the slab
+                ByteBuffer rest = slab.duplicate();
+                rest.limit(offset + length);
+                readFully(channel, rest);
+                slab.position(offset + length);
+            }
+            index(id, journalSequence, offset, length);
+        }
+    }
+
+    @Override
+    public synchronized List<FpqEntry> getEntries() {
+        ArrayList<FpqEntry> entryList = new ArrayList<FpqEntry>(tail - head);
+        for (int i=head;i < tail;i++) {
+            entryList.add(createEntry(i));
+        }
+        return entryList;
+    }
+
+    /**
+     * @return bytes of direct memory held by the slabs
+     */
+    synchronized long getSlabBytes() {
+        return slabBytes;
+    }
+
+    private FpqEntry createEntry(int i) {
+        byte[] data = new byte[lengths[i]];
+        slice(i).get(data);
+        FpqEntry entry = new FpqEntry(ids[i], data);
+        entry.setJournalSequence(journalSequences[i]);
+        return entry;
+    }
+
+    private ByteBuffer slice(int i) {
+        ByteBuffer data = slabs.get(slabIndexes[i]).duplicate();
+        data.limit(offsets[i] + lengths[i]);
+        data.position(offsets[i]);
+        return data;
+    }
+
+    private ByteBuffer slabWithRoomFor(int length) {
+        if (null == currentSlab || currentSlab.remaining() < length) {
+            int size = null == currentSlab ? MIN_SLAB_SIZE : Math.min(currentSlab.capacity() * 2, MAX_SLAB_SIZE);
+            currentSlab = ByteBuffer.allocateDirect(Math.max(size, length));
+            slabs.add(currentSlab);
+            slabBytes += currentSlab.capacity();
+        }
+        return currentSlab;
+    }
+
+    private void index(long id, long journalSequence, int offset, int length) {
+        ids[tail] = id;
+        journalSequences[tail] = journalSequence;
+        slabIndexes[tail] = slabs.size() - 1;
+        offsets[tail] = offset;
+        lengths[tail] = length;
+        tail++;
+    }
+
+    private void ensureIndexCapacity(int additional) {
+        if (null == ids) {
+            int capacity = Math.max(INITIAL_INDEX_CAPACITY, additional);
+            ids = new long[capacity];
+            journalSequences = new long[capacity];
+            slabIndexes = new int[capacity];
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+        }
+        else if (tail + additional > ids.length) {
+            int capacity = Math.max(ids.length * 2, tail + additional);
+            ids = Arrays.copyOf(ids, capacity);
+            journalSequences = Arrays.copyOf(journalSequences, capacity);
+            slabIndexes = Arrays.copyOf(slabIndexes, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+    }
+
+    // everything popped - start over at the beginning of the current slab instead of growing
+    private void reset() {
+        head = 0;
+        tail = 0;
+        if (null != currentSlab) {
+            slabs.clear();
+            slabs.add(currentSlab);
+            slabBytes = currentSlab.capacity();
+            currentSlab.clear();
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer ioBuffer) throws IOException {
+        ioBuffer.flip();
+        writeFully(channel, ioBuffer);
+        ioBuffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void fill(FileChannel channel, ByteBuffer ioBuffer, int required) throws IOException {
+        if (ioBuffer.remaining() >= required) {
+            return;
+        }
+        ioBuffer.compact();
+        while (ioBuffer.position() < required) {
+            if (0 > channel.read(ioBuffer)) {
+                throw new EOFException("not enough data to read paged entry - file may be corrupted");
+            }
+        }
+        ioBuffer.flip();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (0 > channel.read(buffer)) {
+                throw new EOFException("not enough data to read paged entry - file may be corrupted");
+            }
+        }
+    }
+}
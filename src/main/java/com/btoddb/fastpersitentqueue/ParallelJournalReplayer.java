@@ -0,0 +1,217 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.btoddb.fastpersitentqueue.exceptions.FpqException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Replays journals by reading and decoding them on a bounded pool, then merging the decoded entries in ID order.
+ *
+ * - journals are submitted in the order given (write order, see JournalMgr), at most numberOfThreads ahead of
+ *   the merge
+ * - the merge holds numberOfThreads decoded journals at a time, so memory is bounded by about
+ *   2 * numberOfThreads journals
+ * - journals are read through a read-only memory mapping, so decoded entries are views of the mapping.  payloads
+ *   are only copied to the heap when the entry is pushed to a memory segment
+ * - journals written at the same time (striping) overlap in ID, which the merge handles as long as
+ *   no more than numberOfThreads journals overlap
+ */
+public class ParallelJournalReplayer implements Iterator<FpqEntry>, Iterable<FpqEntry> {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelJournalReplayer.class);
+
+    private final Iterator<JournalDescriptor> jdIter;
+    private final int windowSize;
+    private final ExecutorService execSrvc;
+    private final LinkedList<Future<List<FpqEntry>>> pending = new LinkedList<Future<List<FpqEntry>>>();
+    private final PriorityQueue<Cursor> mergeQueue = new PriorityQueue<Cursor>();
+
+    public ParallelJournalReplayer(Collection<JournalDescriptor> descriptors, int numberOfThreads) {
+        List<JournalDescriptor> finished = new ArrayList<JournalDescriptor>(descriptors.size());
+        for (JournalDescriptor jd : descriptors) {
+            if (jd.isWritingFinished()) {
+                finished.add(jd);
+            }
+            else {
+                logger.debug("trying to replay a journal that is not 'write finished' : " + jd.getId());
+            }
+        }
+
+        this.jdIter = finished.iterator();
+        this.windowSize = Math.max(1, numberOfThreads);
+        this.execSrvc = Executors.newFixedThreadPool(windowSize, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread t = new Thread(runnable);
+                t.setName("FPQ-JournalReplay");
+                return t;
+            }
+        });
+
+        submitReads();
+        while (mergeQueue.size() < windowSize && !pending.isEmpty()) {
+            addNextJournalToMerge();
+        }
+    }
+
+    @Override
+    public Iterator<FpqEntry> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !mergeQueue.isEmpty();
+    }
+
+    @Override
+    public FpqEntry next() {
+        Cursor cursor = mergeQueue.poll();
+        if (null == cursor) {
+            throw new NoSuchElementException();
+        }
+
+        FpqEntry entry = cursor.next();
+        if (cursor.hasNext()) {
+            mergeQueue.add(cursor);
+        }
+        else {
+            // a journal is done, so the next one (in UUID order) joins the merge
+            addNextJournalToMerge();
+        }
+        return entry;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException(this.getClass().getSimpleName() + " does not support remove");
+    }
+
+    public void close() {
+        execSrvc.shutdownNow();
+    }
+
+    private void submitReads() {
+        while (pending.size() < windowSize && jdIter.hasNext()) {
+            final JournalDescriptor jd = jdIter.next();
+            pending.add(execSrvc.submit(new Callable<List<FpqEntry>>() {
+                @Override
+                public List<FpqEntry> call() throws Exception {
+                    return readJournal(jd);
+                }
+            }));
+        }
+    }
+
+    private void addNextJournalToMerge() {
+        while (!pending.isEmpty()) {
+            List<FpqEntry> entries;
+            try {
+                entries = pending.removeFirst().get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FpqException("interrupted while waiting for journal to be read", e);
+            }
+            catch (ExecutionException e) {
+                Utils.logAndThrow(logger, "exception while reading journal for replay", e);
+                return;
+            }
+            finally {
+                submitReads();
+            }
+
+            if (!entries.isEmpty()) {
+                mergeQueue.add(new Cursor(entries));
+                return;
+            }
+        }
+    }
+
+    private List<FpqEntry> readJournal(JournalDescriptor jd) throws Exception {
+        JournalFile jf = jd.getFile();
+        List<FpqEntry> entries = new ArrayList<FpqEntry>();
+        try {
+            // entries are views of the mapping, payloads aren't copied until the entry is pushed
+            Iterator<FpqEntry> iter = jf.mappedIterator();
+            while (iter.hasNext()) {
+                entries.add(iter.next());
+            }
+            jd.replayFinished();
+        }
+        finally {
+            jf.close();
+        }
+        logger.debug("read {} entries from journal, {}", entries.size(), jd.getId());
+        return entries;
+    }
+
+    // ------------
+
+    private static class Cursor implements Comparable<Cursor> {
+        private final List<FpqEntry> entries;
+        private int index;
+
+        Cursor(List<FpqEntry> entries) {
+            this.entries = entries;
+        }
+
+        boolean hasNext() {
+            return index < entries.size();
+        }
+
+        FpqEntry next() {
+            FpqEntry entry = entries.get(index);
+            // let go of the entry, it now belongs to the caller
+            entries.set(index++, null);
+            return entry;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            long id1 = entries.get(index).getId();
+            long id2 = other.entries.get(other.index).getId();
+            return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+        }
+    }
+}
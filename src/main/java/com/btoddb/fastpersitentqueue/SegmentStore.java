@@ -0,0 +1,91 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.List;
+
+
+/**
+ * Holds the entries of a {@link MemorySegment} while it is in memory.  The segment does the bookkeeping (size,
+ * counts, status), the store only keeps the entries.  Implementations must be thread safe - pushes, pops and
+ * lookups on the same segment happen concurrently.
+ */
+interface SegmentStore {
+
+    void add(Collection<FpqEntry> entries);
+
+    /**
+     * Remove up to 'max' entries, oldest first.
+     *
+     * @param max
+     * @return removed entries, empty if none
+     */
+    List<FpqEntry> poll(int max);
+
+    boolean contains(long entryId);
+
+    void addIdsTo(EntryIdIndex index);
+
+    /**
+     * @return smallest entry id in the store, 0 if empty
+     */
+    long getMinId();
+
+    /**
+     * @return largest entry id in the store, -1 if empty
+     */
+    long getMaxId();
+
+    int size();
+
+    boolean isEmpty();
+
+    /**
+     * Drop all entries and give back the memory holding them.
+     */
+    void clear();
+
+    /**
+     * Write the entries, in pop order, in the paging file format of {@link FpqEntry#writeToPaging}.
+     *
+     * @param raFile
+     * @param resolver
+     * @throws IOException
+     */
+    void writeTo(RandomAccessFile raFile, JournalIdResolver resolver) throws IOException;
+
+    void readFrom(RandomAccessFile raFile, JournalIdResolver resolver, long numberOfEntries) throws IOException;
+
+    /**
+     * @return copy of the entries in pop order - for testing and diagnostics, not the push/pop path
+     */
+    List<FpqEntry> getEntries();
+}
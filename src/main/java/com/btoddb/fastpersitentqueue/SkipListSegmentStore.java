@@ -0,0 +1,122 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+
+/**
+ * Entries as objects on the heap, ordered by entry id.
+ */
+class SkipListSegmentStore implements SegmentStore {
+    private final ConcurrentSkipListMap<Long, FpqEntry> queue = new ConcurrentSkipListMap<Long, FpqEntry>();
+
+    // thread safe because ConcurrentSkipListMap says so
+    @Override
+    public void add(Collection<FpqEntry> entries) {
+        for (FpqEntry entry : entries) {
+            queue.put(entry.getId(), entry);
+        }
+    }
+
+    @Override
+    public List<FpqEntry> poll(int max) {
+        ArrayList<FpqEntry> entryList = new ArrayList<FpqEntry>(max);
+        Map.Entry<Long, FpqEntry> entry;
+        while (entryList.size() < max && null != (entry=queue.pollFirstEntry())) {
+            entryList.add(entry.getValue());
+        }
+        return entryList;
+    }
+
+    @Override
+    public boolean contains(long entryId) {
+        return queue.containsKey(entryId);
+    }
+
+    @Override
+    public void addIdsTo(EntryIdIndex index) {
+        for (Long id : queue.keySet()) {
+            index.add(id);
+        }
+    }
+
+    @Override
+    public long getMinId() {
+        Map.Entry<Long, FpqEntry> entry = queue.firstEntry();
+        return null != entry ? entry.getKey() : 0;
+    }
+
+    @Override
+    public long getMaxId() {
+        Map.Entry<Long, FpqEntry> entry = queue.lastEntry();
+        return null != entry ? entry.getKey() : -1;
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        queue.clear();
+    }
+
+    @Override
+    public void writeTo(RandomAccessFile raFile, JournalIdResolver resolver) throws IOException {
+        for (FpqEntry entry : queue.values()) {
+            entry.writeToPaging(raFile, resolver);
+        }
+    }
+
+    @Override
+    public void readFrom(RandomAccessFile raFile, JournalIdResolver resolver, long numberOfEntries) throws IOException {
+        for (long i=0;i < numberOfEntries;i++) {
+            FpqEntry entry = new FpqEntry();
+            entry.readFromPaging(raFile, resolver);
+            queue.put(entry.getId(), entry);
+        }
+    }
+
+    @Override
+    public List<FpqEntry> getEntries() {
+        return new ArrayList<FpqEntry>(queue.values());
+    }
+}
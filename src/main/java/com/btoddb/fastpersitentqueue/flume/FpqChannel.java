@@ -26,6 +26,7 @@ package com.btoddb.fastpersitentqueue.flume;
  * #L%
  */
 
+import com.btoddb.fastpersitentqueue.DurabilityMode;
 import com.btoddb.fastpersitentqueue.Fpq;
 import com.btoddb.fastpersitentqueue.Utils;
 import org.apache.flume.*;
@@ -51,11 +52,16 @@ public class FpqChannel extends BasicChannelSemantics {
     private long maxJournalFileSize;
     private int numberOfFlushWorkers;
     private long flushPeriodInMs;
+    private long flushMaxBytes = 4L * 1024L * 1024L;
     private long maxJournalDurationInMs;
     private File journalDirectory;
     private long maxMemorySegmentSizeInBytes;
     private File pagingDirectory;
     private int maxTransactionSize;
+    private DurabilityMode durabilityMode;
+    private long groupSyncMaxWaitInMs;
+    private long groupSyncMaxBytes;
+    private boolean compressedJournalsEnabled;
 
     private ChannelCounter channelCounter;
 
@@ -71,11 +77,16 @@ public class FpqChannel extends BasicChannelSemantics {
         setMaxJournalFileSize(context.getLong("maxJournalFileSize", 10000000L));
         setNumberOfFlushWorkers(context.getInteger("numberOfFlushWorkers", 4));
         setFlushPeriodInMs(context.getLong("flushPeriodInMs", 10000L));
+        setFlushMaxBytes(context.getLong("flushMaxBytes", 4L * 1024L * 1024L));
         setMaxJournalDurationInMs(context.getLong("maxJournalDurationInMs", 30000L));
         setJournalDirectory(new File(context.getString("journalDirectory")));
         setMaxMemorySegmentSizeInBytes(context.getLong("maxMemorySegmentSizeInBytes", 10000000L));
         setPagingDirectory(new File(context.getString("pagingDirectory")));
         setMaxTransactionSize(context.getInteger("transactionCapacity", 2000));
+        setDurabilityMode(DurabilityMode.valueOf(context.getString("durabilityMode", DurabilityMode.PERIODIC.name()).toUpperCase()));
+        setGroupSyncMaxWaitInMs(context.getLong("groupSyncMaxWaitInMs", 5L));
+        setGroupSyncMaxBytes(context.getLong("groupSyncMaxBytes", 1024L * 1024L));
+        setCompressedJournalsEnabled(context.getBoolean("compressedJournalsEnabled", false));
 
         if (channelCounter == null) {
             channelCounter = new ChannelCounter(getName());
@@ -89,11 +100,16 @@ public class FpqChannel extends BasicChannelSemantics {
         fpq.setMaxJournalFileSize(maxJournalFileSize);
         fpq.setNumberOfFlushWorkers(numberOfFlushWorkers);
         fpq.setFlushPeriodInMs(flushPeriodInMs);
+        fpq.setFlushMaxBytes(flushMaxBytes);
         fpq.setMaxJournalDurationInMs(maxJournalDurationInMs);
         fpq.setJournalDirectory(journalDirectory);
         fpq.setMaxMemorySegmentSizeInBytes(maxMemorySegmentSizeInBytes);
         fpq.setPagingDirectory(pagingDirectory);
         fpq.setMaxTransactionSize(maxTransactionSize);
+        fpq.setDurabilityMode(durabilityMode);
+        fpq.setGroupSyncMaxWaitInMs(groupSyncMaxWaitInMs);
+        fpq.setGroupSyncMaxBytes(groupSyncMaxBytes);
+        fpq.setCompressedJournalsEnabled(compressedJournalsEnabled);
 
         try {
             fpq.init();
@@ -154,6 +170,14 @@ public class FpqChannel extends BasicChannelSemantics {
         this.flushPeriodInMs = flushPeriodInMs;
     }
 
+    public long getFlushMaxBytes() {
+        return flushMaxBytes;
+    }
+
+    public void setFlushMaxBytes(long flushMaxBytes) {
+        this.flushMaxBytes = flushMaxBytes;
+    }
+
     public long getMaxJournalDurationInMs() {
         return maxJournalDurationInMs;
     }
@@ -194,4 +218,36 @@ public class FpqChannel extends BasicChannelSemantics {
         this.maxTransactionSize = maxTransactionSize;
     }
 
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    public void setDurabilityMode(DurabilityMode durabilityMode) {
+        this.durabilityMode = durabilityMode;
+    }
+
+    public long getGroupSyncMaxWaitInMs() {
+        return groupSyncMaxWaitInMs;
+    }
+
+    public void setGroupSyncMaxWaitInMs(long groupSyncMaxWaitInMs) {
+        this.groupSyncMaxWaitInMs = groupSyncMaxWaitInMs;
+    }
+
+    public long getGroupSyncMaxBytes() {
+        return groupSyncMaxBytes;
+    }
+
+    public void setGroupSyncMaxBytes(long groupSyncMaxBytes) {
+        this.groupSyncMaxBytes = groupSyncMaxBytes;
+    }
+
+    public boolean isCompressedJournalsEnabled() {
+        return compressedJournalsEnabled;
+    }
+
+    public void setCompressedJournalsEnabled(boolean compressedJournalsEnabled) {
+        this.compressedJournalsEnabled = compressedJournalsEnabled;
+    }
+
 }
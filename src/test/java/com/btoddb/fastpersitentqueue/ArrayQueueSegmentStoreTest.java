@@ -0,0 +1,183 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.btoddb.fastpersitentqueue.TestUtils.createEntries;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ *
+ */
+public class ArrayQueueSegmentStoreTest {
+    ArrayQueueSegmentStore store;
+
+    @Test
+    public void testPollInPushOrderAcrossChunks() throws Exception {
+        int numEntries = ArrayQueueSegmentStore.CHUNK_SIZE * 2 + 10;
+        store.add(createEntries(1, numEntries, 10));
+        assertThat(store.size(), is(numEntries));
+        assertThat(store.getEntries().size(), is(numEntries));
+        assertThat(store.getMinId(), is(1L));
+        assertThat(store.getMaxId(), is((long)numEntries));
+
+        long expectedId = 1;
+        List<FpqEntry> popped;
+        while (!(popped = store.poll(100)).isEmpty()) {
+            for (FpqEntry entry : popped) {
+                assertThat(entry.getId(), is(expectedId++));
+            }
+        }
+        assertThat(expectedId, is(numEntries+1L));
+        assertThat(store.isEmpty(), is(true));
+        assertThat(store.getEntries(), is(empty()));
+
+        // keeps working after draining to the end of a chunk
+        store.add(createEntries(numEntries+1, 5, 10));
+        assertThat(store.poll(10).size(), is(5));
+    }
+
+    @Test
+    public void testContains() throws Exception {
+        store.add(createEntries(1, 10, 10));
+        store.poll(5);
+        assertThat(store.contains(5), is(false));
+        assertThat(store.contains(6), is(true));
+        assertThat(store.contains(10), is(true));
+        assertThat(store.contains(11), is(false));
+
+        EntryIdIndex index = new EntryIdIndex();
+        store.addIdsTo(index);
+        assertThat(index.contains(5), is(false));
+        assertThat(index.contains(6), is(true));
+    }
+
+    @Test
+    public void testMinAndMaxIdAfterRollback() throws Exception {
+        store.add(createEntries(1, 10, 10));
+        List<FpqEntry> popped = store.poll(3);
+        assertThat(store.getMinId(), is(4L));
+        assertThat(store.getMaxId(), is(10L));
+
+        // a rolled back pop puts older entries behind newer ones
+        store.add(createEntries(11, 2, 10));
+        store.add(popped);
+        assertThat(store.getMinId(), is(1L));
+        assertThat(store.getMaxId(), is(12L));
+        assertThat(store.contains(2), is(true));
+
+        store.poll(9);
+        assertThat(store.getMinId(), is(1L));
+        assertThat(store.getMaxId(), is(3L));
+
+        store.poll(10);
+        assertThat(store.getMinId(), is(0L));
+        assertThat(store.getMaxId(), is(-1L));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        store.add(createEntries(1, 10, 10));
+        store.clear();
+        assertThat(store.isEmpty(), is(true));
+        assertThat(store.poll(10), is(empty()));
+        assertThat(store.getMaxId(), is(-1L));
+
+        store.add(createEntries(11, 1, 10));
+        assertThat(store.poll(10).get(0).getId(), is(11L));
+    }
+
+    @Test
+    public void testConcurrentPushAndPop() throws Exception {
+        final int numPushers = 4;
+        final int entriesPerPusher = 20000;
+        final AtomicLong idGen = new AtomicLong();
+        final AtomicInteger pushersDone = new AtomicInteger();
+        final ConcurrentLinkedQueue<Long> poppedIds = new ConcurrentLinkedQueue<Long>();
+
+        ExecutorService execSrvc = Executors.newFixedThreadPool(numPushers * 2);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i=0;i < numPushers;i++) {
+            futures.add(execSrvc.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j=0;j < entriesPerPusher;j+=10) {
+                        store.add(createEntries(idGen.getAndAdd(10)+1, 10, 10));
+                    }
+                    pushersDone.incrementAndGet();
+                }
+            }));
+            futures.add(execSrvc.submit(new Runnable() {
+                @Override
+                public void run() {
+                    while (numPushers > pushersDone.get() || !store.isEmpty()) {
+                        for (FpqEntry entry : store.poll(7)) {
+                            poppedIds.add(entry.getId());
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get(30, TimeUnit.SECONDS);
+        }
+        execSrvc.shutdown();
+
+        // every entry popped exactly once
+        assertThat(poppedIds.size(), is(numPushers * entriesPerPusher));
+        EntryIdIndex index = new EntryIdIndex();
+        for (Long id : poppedIds) {
+            index.add(id);
+        }
+        for (long id=1;id <= numPushers * entriesPerPusher;id++) {
+            assertThat(index.contains(id), is(true));
+        }
+    }
+
+    // --------------
+
+    @Before
+    public void setup() {
+        store = new ArrayQueueSegmentStore();
+    }
+}
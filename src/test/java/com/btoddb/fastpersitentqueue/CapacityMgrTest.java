@@ -0,0 +1,233 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.btoddb.fastpersitentqueue.exceptions.FpqException;
+import com.btoddb.fastpersitentqueue.exceptions.FpqQueueFull;
+import com.eaio.uuid.UUID;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.btoddb.fastpersitentqueue.TestUtils.createEntries;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
+
+
+/**
+ *
+ */
+public class CapacityMgrTest {
+    File theDir;
+    CapacityMgr mgr;
+
+    @Test
+    public void testRejectWhenOverByteLimit() throws Exception {
+        // each entry is 20 bytes of overhead + 10 bytes of data
+        mgr.setMaxQueueSizeInBytes(90);
+        mgr.setPolicy(CapacityPolicy.REJECT);
+        mgr.init();
+
+        mgr.reserve(createEntries(0, 3, 10));
+        assertThat(mgr.getSizeInBytes(), is(90L));
+        try {
+            mgr.reserve(createEntries(0, 1, 10));
+            fail("should have thrown FpqQueueFull because queue is at capacity");
+        }
+        catch (FpqQueueFull e) {
+            assertThat(e.getMessage(), containsString("maxQueueSizeInBytes = 90"));
+        }
+        assertThat(mgr.getPushesRejected(), is(1L));
+
+        mgr.release(createEntries(0, 1, 10));
+        mgr.reserve(createEntries(0, 1, 10));
+        assertThat(mgr.getNumberOfEntries(), is(3L));
+    }
+
+    @Test
+    public void testBlockUntilReleased() throws Exception {
+        mgr.setMaxQueueSizeInEntries(2);
+        mgr.setBlockTimeoutInMs(10000);
+        mgr.init();
+        mgr.setInitialUsage(2, 60);
+
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e) {
+                    Thread.interrupted();
+                }
+                mgr.release(createEntries(0, 1, 10));
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        releaser.start();
+        mgr.reserve(createEntries(0, 1, 10));
+        releaser.join();
+
+        assertThat(System.currentTimeMillis() - start, is(greaterThanOrEqualTo(150L)));
+        assertThat(mgr.getNumberOfEntries(), is(2L));
+        assertThat(mgr.getPushesRejected(), is(0L));
+    }
+
+    @Test
+    public void testBlockTimesOut() throws Exception {
+        mgr.setMaxQueueSizeInEntries(1);
+        mgr.setBlockTimeoutInMs(200);
+        mgr.init();
+        mgr.reserve(createEntries(0, 1, 10));
+
+        long start = System.currentTimeMillis();
+        try {
+            mgr.reserve(createEntries(0, 1, 10));
+            fail("should have thrown FpqQueueFull because nothing released capacity");
+        }
+        catch (FpqQueueFull e) {
+            assertThat(e.getMessage(), containsString("timed out"));
+        }
+        assertThat(System.currentTimeMillis() - start, is(greaterThanOrEqualTo(150L)));
+        assertThat(mgr.getNumberOfEntries(), is(1L));
+    }
+
+    @Test
+    public void testShutdownFailsBlockedPush() throws Exception {
+        mgr.setMaxQueueSizeInEntries(1);
+        mgr.setBlockTimeoutInMs(60000);
+        mgr.init();
+        mgr.reserve(createEntries(0, 1, 10));
+
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e) {
+                    Thread.interrupted();
+                }
+                mgr.shutdown();
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        stopper.start();
+        try {
+            mgr.reserve(createEntries(0, 1, 10));
+            fail("should have thrown FpqException because the queue is shutting down");
+        }
+        catch (FpqException e) {
+            assertThat(e.getMessage(), containsString("shutting down"));
+        }
+        stopper.join();
+
+        assertThat(System.currentTimeMillis() - start, is(lessThan(5000L)));
+        assertThat(mgr.getNumberOfEntries(), is(1L));
+    }
+
+    @Test
+    public void testPushThatCanNeverFitIsRejected() throws Exception {
+        mgr.setMaxQueueSizeInEntries(2);
+        mgr.setBlockTimeoutInMs(60000);
+        mgr.init();
+
+        try {
+            mgr.reserve(createEntries(0, 3, 10));
+            fail("should have thrown FpqQueueFull without waiting");
+        }
+        catch (FpqQueueFull e) {
+            assertThat(e.getMessage(), containsString("can never fit"));
+        }
+    }
+
+    @Test
+    public void testDiskReservation() throws Exception {
+        File journalDir = new File(theDir, "journal");
+        File pagingDir = new File(theDir, "paging");
+        mgr.setDirectories(Arrays.asList(journalDir, pagingDir, journalDir));
+        mgr.setDiskReservationInBytes(3 * 1024 * 1024 + 100);
+        mgr.init();
+
+        assertThat(mgr.getDirectories().size(), is(2));
+        assertThat(new File(journalDir, CapacityMgr.RESERVE_FILE_NAME).length(), is(3L * 1024 * 1024 + 100));
+        assertThat(new File(pagingDir, CapacityMgr.RESERVE_FILE_NAME).length(), is(3L * 1024 * 1024 + 100));
+
+        // turning it off removes the reserve
+        CapacityMgr mgr2 = new CapacityMgr(new JmxMetrics(new Fpq()));
+        mgr2.setDirectories(Arrays.asList(journalDir, pagingDir));
+        mgr2.init();
+        assertThat(new File(journalDir, CapacityMgr.RESERVE_FILE_NAME).exists(), is(false));
+        assertThat(new File(pagingDir, CapacityMgr.RESERVE_FILE_NAME).exists(), is(false));
+    }
+
+    @Test
+    public void testLowDiskReleasesReservation() throws Exception {
+        File journalDir = new File(theDir, "journal");
+        mgr.setDirectories(Collections.singletonList(journalDir));
+        mgr.setDiskReservationInBytes(1024);
+        mgr.setMinFreeDiskSpaceInBytes(Long.MAX_VALUE / 4);
+        mgr.setPolicy(CapacityPolicy.REJECT);
+        mgr.init();
+        assertThat(new File(journalDir, CapacityMgr.RESERVE_FILE_NAME).exists(), is(true));
+
+        try {
+            mgr.reserve(createEntries(0, 1, 10));
+            fail("should have thrown FpqQueueFull because disk is low");
+        }
+        catch (FpqQueueFull e) {
+            assertThat(e.getMessage(), containsString("minFreeDiskSpaceInBytes"));
+        }
+        assertThat(new File(journalDir, CapacityMgr.RESERVE_FILE_NAME).exists(), is(false));
+    }
+
+    // -----------
+
+    @Before
+    public void setup() throws IOException {
+        theDir = new File("tmp/junitTmp_"+new UUID().toString());
+        FileUtils.forceMkdir(theDir);
+        mgr = new CapacityMgr(new JmxMetrics(new Fpq()));
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(theDir);
+    }
+}
@@ -0,0 +1,138 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import com.eaio.uuid.UUID;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+
+/**
+ *
+ */
+public class ConsumptionLogTest {
+    File theDir;
+    File journalFile;
+
+    @Test
+    public void testAppendThenLoad() throws Exception {
+        ConsumptionLog log1 = new ConsumptionLog(journalFile, "abc");
+        assertThat(log1.load().isEmpty(), is(true));
+        log1.append(new long[] {1, 2, 3}, 3);
+        log1.append(new long[] {7, 9, 0}, 2);
+        log1.close();
+        assertThat(log1.getFile().getName(), is("consumed-abc"));
+
+        ConsumptionLog log2 = new ConsumptionLog(journalFile, "abc");
+        EntryIdIndex ids = log2.load();
+        assertThat(ids.size(), is(5L));
+        assertThat(ids.toArray(), is(new long[] {1, 2, 3, 7, 9}));
+
+        // appends go after what was loaded
+        log2.append(new long[] {10}, 1);
+        log2.close();
+        assertThat(new ConsumptionLog(journalFile, "abc").load().size(), is(6L));
+    }
+
+    @Test
+    public void testTornBatchIsTruncated() throws Exception {
+        ConsumptionLog log1 = new ConsumptionLog(journalFile, "abc");
+        log1.append(new long[] {1, 2}, 2);
+        log1.append(new long[] {3, 4}, 2);
+        log1.close();
+        long goodLength = log1.getFile().length();
+
+        // second batch's checksum is garbage, and a partial third batch
+        RandomAccessFile raFile = new RandomAccessFile(log1.getFile(), "rw");
+        try {
+            raFile.seek(goodLength - 4);
+            raFile.writeInt(12345);
+            raFile.writeInt(2);
+            raFile.writeLong(5);
+        }
+        finally {
+            raFile.close();
+        }
+
+        ConsumptionLog log2 = new ConsumptionLog(journalFile, "abc");
+        assertThat(log2.load().toArray(), is(new long[] {1, 2}));
+        assertThat(log2.getFile().length(), is(goodLength / 2));
+
+        log2.append(new long[] {6}, 1);
+        log2.close();
+        assertThat(new ConsumptionLog(journalFile, "abc").load().toArray(), is(new long[] {1, 2, 6}));
+    }
+
+    @Test
+    public void testRewrite() throws Exception {
+        ConsumptionLog log1 = new ConsumptionLog(journalFile, "abc");
+        log1.append(new long[] {1, 2, 3, 4}, 4);
+
+        EntryIdIndex keep = new EntryIdIndex();
+        keep.add(2);
+        keep.add(4);
+        log1.rewrite(keep);
+        log1.append(new long[] {5}, 1);
+        log1.close();
+
+        assertThat(new ConsumptionLog(journalFile, "abc").load().toArray(), is(new long[] {2, 4, 5}));
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        ConsumptionLog log1 = new ConsumptionLog(journalFile, "abc");
+        log1.append(new long[] {1}, 1);
+        log1.delete();
+        assertThat(log1.getFile().exists(), is(false));
+
+        // late takes don't bring it back
+        log1.append(new long[] {2}, 1);
+        assertThat(log1.getFile().exists(), is(false));
+    }
+
+    @Before
+    public void setup() throws IOException {
+        theDir = new File("tmp/junitTmp_"+new UUID().toString());
+        FileUtils.forceMkdir(theDir);
+        journalFile = new File(theDir, "journal-abc");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(theDir);
+    }
+}
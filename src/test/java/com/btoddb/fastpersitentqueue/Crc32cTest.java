@@ -0,0 +1,84 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.util.zip.Checksum;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+
+/**
+ *
+ */
+public class Crc32cTest {
+
+    @Test
+    public void testKnownValue() {
+        Checksum crc = new Crc32c();
+        byte[] data = "123456789".getBytes();
+        crc.update(data, 0, data.length);
+        assertThat(crc.getValue(), is(0xE3069283L));
+    }
+
+    @Test
+    public void testSingleBytesMatchArray() {
+        byte[] data = new byte[1000];
+        for (int i=0;i < data.length;i++) {
+            data[i] = (byte) (i * 31);
+        }
+        Checksum crc1 = new Crc32c();
+        crc1.update(data, 0, data.length);
+        Checksum crc2 = new Crc32c();
+        for (byte b : data) {
+            crc2.update(b);
+        }
+        assertThat(crc2.getValue(), is(crc1.getValue()));
+    }
+
+    @Test
+    public void testReset() {
+        Checksum crc = new Crc32c();
+        crc.update(new byte[] {1, 2, 3}, 0, 3);
+        crc.reset();
+        byte[] data = "123456789".getBytes();
+        crc.update(data, 0, data.length);
+        assertThat(crc.getValue(), is(0xE3069283L));
+    }
+
+    @Test
+    public void testCreateMatchesPortableVersion() {
+        byte[] data = "fast persistent queue".getBytes();
+        Checksum crc1 = Crc32c.create();
+        crc1.update(data, 0, data.length);
+        Checksum crc2 = new Crc32c();
+        crc2.update(data, 0, data.length);
+        assertThat(crc1.getValue(), is(crc2.getValue()));
+    }
+}
@@ -0,0 +1,146 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.eaio.uuid.UUID;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static com.btoddb.fastpersitentqueue.TestUtils.createPatternData;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+
+/**
+ * Runs the writer on a normal channel - the block handling is the same with or without O_DIRECT.
+ */
+public class DirectIoWriterTest {
+    private static final int BLOCK_SIZE = 512;
+
+    File theDir;
+    File theFile;
+    FileChannel channel;
+
+    @Test
+    public void testFlushWritesWholeBlocks() throws Exception {
+        DirectIoWriter writer = new DirectIoWriter(channel, BLOCK_SIZE, 2048);
+        byte[] data = createPatternData(700);
+        writer.write(ByteBuffer.wrap(data));
+        assertThat(theFile.length(), is(0L));
+
+        writer.flush();
+        assertThat(theFile.length(), is(2L * BLOCK_SIZE));
+        assertThat(writer.position(), is(700L));
+
+        // the padding is zeros, so replay sees the end of data
+        byte[] contents = FileUtils.readFileToByteArray(theFile);
+        assertThat(Arrays.copyOf(contents, 700), is(data));
+        assertThat(Arrays.copyOfRange(contents, 700, 2 * BLOCK_SIZE), is(new byte[2 * BLOCK_SIZE - 700]));
+
+        writer.close();
+        assertThat(FileUtils.readFileToByteArray(theFile), is(data));
+    }
+
+    @Test
+    public void testPartialBlockRewrittenByNextFlush() throws Exception {
+        DirectIoWriter writer = new DirectIoWriter(channel, BLOCK_SIZE, 2048);
+        byte[] data = createPatternData(5000);
+        int pos = 0;
+        for (int size : new int[] {10, 600, 1, 2047, 2048, 294}) {
+            writer.write(ByteBuffer.wrap(data, pos, size));
+            writer.flush();
+            pos += size;
+            assertThat(writer.position(), is((long) pos));
+            assertThat(Arrays.copyOf(FileUtils.readFileToByteArray(theFile), pos), is(Arrays.copyOf(data, pos)));
+        }
+        writer.close();
+        assertThat(FileUtils.readFileToByteArray(theFile), is(data));
+    }
+
+    @Test
+    public void testWriteLargerThanBuffer() throws Exception {
+        DirectIoWriter writer = new DirectIoWriter(channel, BLOCK_SIZE, 1024);
+        byte[] data = createPatternData(10000);
+        writer.write(new ByteBuffer[] {ByteBuffer.wrap(data, 0, 3), ByteBuffer.wrap(data, 3, 9997)});
+        writer.close();
+        assertThat(FileUtils.readFileToByteArray(theFile), is(data));
+    }
+
+    @Test
+    public void testWriteAtInBuffer() throws Exception {
+        DirectIoWriter writer = new DirectIoWriter(channel, BLOCK_SIZE, 2048);
+        byte[] data = createPatternData(100);
+        writer.write(ByteBuffer.wrap(data));
+        writer.flush();
+
+        writer.writeAt(4, ByteBuffer.wrap(new byte[] {-1, -1}));
+        writer.close();
+        data[4] = -1;
+        data[5] = -1;
+        assertThat(FileUtils.readFileToByteArray(theFile), is(data));
+    }
+
+    @Test
+    public void testWriteAtAlreadyWrittenBlock() throws Exception {
+        DirectIoWriter writer = new DirectIoWriter(channel, BLOCK_SIZE, 1024);
+        byte[] data = createPatternData(3000);
+        writer.write(ByteBuffer.wrap(data));
+        writer.flush();
+
+        // first block is no longer in the buffer
+        writer.writeAt(4, ByteBuffer.wrap(new byte[] {-1, -1}));
+        writer.close();
+        data[4] = -1;
+        data[5] = -1;
+        assertThat(FileUtils.readFileToByteArray(theFile), is(data));
+    }
+
+    // --------------
+
+    @Before
+    public void setup() throws IOException {
+        theDir = new File("tmp/junitTmp_"+new UUID().toString());
+        FileUtils.forceMkdir(theDir);
+        theFile = new File(theDir, new UUID().toString());
+        channel = FileChannel.open(theFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        channel.close();
+        FileUtils.deleteDirectory(theDir);
+    }
+}
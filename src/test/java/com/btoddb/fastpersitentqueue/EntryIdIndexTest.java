@@ -0,0 +1,156 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.eaio.uuid.UUID;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+
+/**
+ *
+ */
+public class EntryIdIndexTest {
+    File theDir;
+
+    @Test
+    public void testSparse() {
+        EntryIdIndex index = new EntryIdIndex();
+        index.add(5);
+        index.add(1000000);
+        index.add(3);
+        index.add(5);
+        assertThat(index.size(), is(3L));
+        assertThat(index.contains(3), is(true));
+        assertThat(index.contains(5), is(true));
+        assertThat(index.contains(1000000), is(true));
+        assertThat(index.contains(4), is(false));
+        assertThat(index.contains(999999), is(false));
+    }
+
+    @Test
+    public void testDenseChunkConvertsToBitmap() {
+        EntryIdIndex index = new EntryIdIndex();
+        int numIds = EntryIdIndex.ARRAY_CONTAINER_MAX * 3;
+        // every other ID, added out of order, so both array inserts and bitmap sets get used
+        for (long id=numIds*2;id > 0;id-=2) {
+            index.add(id);
+        }
+        assertThat(index.size(), is((long) numIds));
+        for (long id=1;id <= numIds*2;id++) {
+            assertThat("id = " + id, index.contains(id), is(0 == id % 2));
+        }
+    }
+
+    @Test
+    public void testAddAll() {
+        EntryIdIndex index1 = new EntryIdIndex();
+        EntryIdIndex index2 = new EntryIdIndex();
+        for (long id=1;id <= 10000;id++) {
+            index1.add(id);
+        }
+        index2.add(20000);
+        index2.addAll(index1);
+        assertThat(index2.size(), is(10001L));
+        assertThat(index2.contains(1), is(true));
+        assertThat(index2.contains(10000), is(true));
+        assertThat(index2.contains(20000), is(true));
+        assertThat(index2.contains(15000), is(false));
+    }
+
+    @Test
+    public void testAddAllWithFilter() {
+        EntryIdIndex index1 = new EntryIdIndex();
+        EntryIdIndex filter = new EntryIdIndex();
+        for (long id=1;id <= 10000;id++) {
+            index1.add(id);
+            if (0 == id % 3) {
+                filter.add(id);
+            }
+        }
+        filter.add(20000);
+
+        EntryIdIndex index2 = new EntryIdIndex();
+        index2.addAll(index1, filter);
+        assertThat(index2.size(), is(3333L));
+        assertThat(index2.contains(3), is(true));
+        assertThat(index2.contains(9999), is(true));
+        assertThat(index2.contains(10000), is(false));
+        assertThat(index2.contains(20000), is(false));
+    }
+
+    @Test
+    public void testWriteThenRead() throws Exception {
+        EntryIdIndex index1 = new EntryIdIndex();
+        for (long id=100;id < 100+EntryIdIndex.ARRAY_CONTAINER_MAX*2;id++) {
+            index1.add(id);
+        }
+        index1.add(Long.MAX_VALUE - 1);
+
+        File theFile = new File(theDir, "index");
+        RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
+        try {
+            index1.writeToDisk(raFile);
+            raFile.writeLong(123L);
+            raFile.seek(0);
+
+            EntryIdIndex index2 = EntryIdIndex.readFromDisk(raFile);
+            assertThat(raFile.readLong(), is(123L));
+            assertThat(index2.size(), is(index1.size()));
+            assertThat(index2.contains(99), is(false));
+            assertThat(index2.contains(100), is(true));
+            assertThat(index2.contains(99+EntryIdIndex.ARRAY_CONTAINER_MAX*2), is(true));
+            assertThat(index2.contains(100+EntryIdIndex.ARRAY_CONTAINER_MAX*2), is(false));
+            assertThat(index2.contains(Long.MAX_VALUE - 1), is(true));
+        }
+        finally {
+            raFile.close();
+        }
+    }
+
+    // ---------------
+
+    @Before
+    public void setup() throws IOException {
+        theDir = new File("tmp/junitTmp_"+new UUID().toString());
+        FileUtils.forceMkdir(theDir);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(theDir);
+    }
+}
@@ -27,6 +27,7 @@ package com.btoddb.fastpersitentqueue;
  */
 
 import com.btoddb.fastpersitentqueue.exceptions.FpqException;
+import com.btoddb.fastpersitentqueue.exceptions.FpqQueueFull;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.junit.After;
@@ -153,6 +154,31 @@ public class FpqIT {
         assertThat(fpq1.getJournalMgr().getCurrentJournalDescriptor().getNumberOfUnconsumedEntries(), is(0L));
     }
 
+    @Test
+    public void testPopAcrossSegments() throws Exception {
+        fpq1.setMaxMemorySegmentSizeInBytes(1000);
+        fpq1.init();
+
+        // a transaction's entries go to one segment, so push one at a time to spread them over several
+        for (int i=0;i < 20;i++) {
+            fpq1.beginTransaction();
+            fpq1.push(new byte[100]);
+            fpq1.commit();
+        }
+        assertThat(fpq1.getMemoryMgr().getSegments().size(), is(greaterThan(1)));
+
+        fpq1.beginTransaction();
+        Collection<FpqEntry> entries = fpq1.pop(18);
+        assertThat(entries, hasSize(18));
+        assertThat(fpq1.getContext().getQueue(), hasSize(18));
+        assertThat(fpq1.getMemoryMgr().size(), is(2L));
+        fpq1.commit();
+
+        fpq1.beginTransaction();
+        assertThat(fpq1.pop(10), hasSize(2));
+        fpq1.commit();
+    }
+
     @Test
     public void testPushAndPopMultipleTimesOneContext() throws Exception {
         fpq1.init();
@@ -460,7 +486,12 @@ public class FpqIT {
         assertThat(fpq1.getMemoryMgr().getSegments(), hasSize(1));
         assertThat(fpq1.getJournalMgr().getJournalFiles().entrySet(), hasSize(1));
         assertThat(FileUtils.listFiles(fpq1.getPagingDirectory(), TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE), is(empty()));
-        assertThat(FileUtils.listFiles(fpq1.getJournalDirectory(), TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE), hasSize(1));
+        // the current journal and the spare waiting to replace it
+        long end = System.currentTimeMillis() + 5000;
+        while (null == fpq1.getJournalMgr().getSpareJournal(0) && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertThat(FileUtils.listFiles(fpq1.getJournalDirectory(), TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE), hasSize(2));
     }
 
     // --------------
@@ -525,6 +556,64 @@ public class FpqIT {
         assertThat(sum, is(expectedSum));
     }
 
+    @Test
+    public void testCapacityLimitRejectsPush() throws Exception {
+        fpq1.setMaxQueueSizeInEntries(3);
+        fpq1.setCapacityPolicy(CapacityPolicy.REJECT);
+        fpq1.init();
+
+        fpq1.beginTransaction();
+        fpq1.push(Arrays.asList("one".getBytes(), "two".getBytes(), "three".getBytes()));
+        fpq1.commit();
+
+        fpq1.beginTransaction();
+        fpq1.push("four".getBytes());
+        try {
+            fpq1.commit();
+            fail("should have thrown FpqQueueFull because queue is at capacity");
+        }
+        catch (FpqQueueFull e) {
+            assertThat(e.getMessage(), containsString("maxQueueSizeInEntries = 3"));
+        }
+        assertThat(fpq1.getPushesRejected(), is(1L));
+
+        // transaction is left open for the caller to roll back
+        assertThat(fpq1.isTransactionActive(), is(true));
+        fpq1.rollback();
+
+        fpq1.beginTransaction();
+        assertThat(new String(fpq1.pop(1).iterator().next().getData()), is("one"));
+        fpq1.commit();
+
+        fpq1.beginTransaction();
+        fpq1.push("four".getBytes());
+        fpq1.commit();
+
+        assertThat(fpq1.getNumberOfEntries(), is(3L));
+    }
+
+    @Test
+    public void testCapacityLimitDropsOldest() throws Exception {
+        fpq1.setMaxQueueSizeInEntries(3);
+        fpq1.setCapacityPolicy(CapacityPolicy.DROP_OLDEST);
+        fpq1.init();
+
+        for (String data : new String[] {"one", "two", "three", "four", "five"}) {
+            fpq1.beginTransaction();
+            fpq1.push(data.getBytes());
+            fpq1.commit();
+        }
+
+        assertThat(fpq1.getNumberOfEntries(), is(3L));
+        assertThat(fpq1.getEntriesDropped(), is(2L));
+
+        fpq1.beginTransaction();
+        assertThat(new String(fpq1.pop(1).iterator().next().getData()), is("three"));
+        assertThat(new String(fpq1.pop(1).iterator().next().getData()), is("four"));
+        assertThat(new String(fpq1.pop(1).iterator().next().getData()), is("five"));
+        fpq1.commit();
+    }
+
     private byte[] createDataWithId(int size, int id) {
         return ByteBuffer.allocate(size).putInt(id).array();
     }
@@ -85,7 +85,7 @@ public class InMemorySegmentMgrTest {
         assertThat(seg.getStatus(), is(MemorySegment.Status.OFFLINE));
         assertThat(seg.getNumberOfOnlineEntries(), is(7L));
         assertThat(seg.getNumberOfEntries(), is(7L));
-        assertThat(seg.getQueue().keySet(), is(empty()));
+        assertThat(seg.getQueuedEntries(), is(empty()));
 
         // this one is still active
         seg = iter.next();
@@ -124,11 +124,116 @@ public class InMemorySegmentMgrTest {
         assertThat(seg.getStatus(), is(MemorySegment.Status.READY));
         assertThat(seg.getNumberOfOnlineEntries(), is(0L));
         assertThat(seg.getNumberOfEntries(), is(0L));
-        assertThat(seg.getQueue().keySet(), is(empty()));
+        assertThat(seg.getQueuedEntries(), is(empty()));
 
         assertThat(FileUtils.listFiles(theDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE), is(empty()));
     }
 
+    @Test
+    public void testPopAcrossSegments() throws Exception {
+        mgr.init();
+
+        // 7 entries per segment, so spread over 3 segments
+        for (int i=0;i < 20;i++) {
+            mgr.push(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        }
+        assertThat(mgr.getSegments(), hasSize(3));
+
+        Collection<FpqEntry> entries = mgr.pop(18);
+        assertThat(entries, hasSize(18));
+        long expectedId = 1;
+        for (FpqEntry entry : entries) {
+            assertThat(entry.getId(), is(expectedId++));
+        }
+
+        // only 2 left - partial batch
+        entries = mgr.pop(10);
+        assertThat(entries, hasSize(2));
+        assertThat(mgr.getNumberOfEntries(), is(0L));
+        assertThat(mgr.pop(10), is(nullValue()));
+    }
+
+    @Test
+    public void testStandbySegmentPromotedWhenSegmentFinishes() throws Exception {
+        mgr.init();
+        assertThat(mgr.getSegments(), hasSize(1));
+        MemorySegment standby = mgr.getStandbySegment();
+        assertThat(standby, is(notNullValue()));
+        assertThat(mgr.getSegments(), not(hasItem(standby)));
+
+        // 7 entries per segment, the 8th finishes the first segment
+        for (int i=0;i < 8;i++) {
+            mgr.push(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        }
+
+        assertThat(mgr.getSegments(), hasSize(2));
+        assertThat(mgr.getNumberOfActiveSegments(), is(2));
+        Iterator<MemorySegment> iter = mgr.getSegments().iterator();
+        MemorySegment first = iter.next();
+        MemorySegment second = iter.next();
+        assertThat(second, is(sameInstance(standby)));
+        assertThat(second.getId().compareTo(first.getId()) > 0, is(true));
+        assertThat(second.getNumberOfEntries(), is(1L));
+
+        assertThat(mgr.getStandbySegment(), is(notNullValue()));
+        assertThat(mgr.getStandbySegment(), is(not(sameInstance(standby))));
+    }
+
+    @Test
+    public void testPrefetchLoadsOfflineSegmentWhenConsumersAreClose() throws Exception {
+        // prefetch is run by the test, and the long period makes any popping "close"
+        mgr.setSegmentPrefetchDepth(3);
+        mgr.setSegmentPrefetchPeriodInMs(3600000);
+        mgr.init();
+
+        // 7 entries per segment - 6 segments, the 4th and 5th are paged out
+        for (int i=0;i < 40;i++) {
+            mgr.push(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        }
+        long end = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < end && mgr.getNumberOfActiveSegments() > 4) {
+            Thread.sleep(100);
+        }
+        List<MemorySegment> segList = new ArrayList<MemorySegment>(mgr.getSegments());
+        assertThat(segList, hasSize(6));
+        assertThat(segList.get(3).getStatus(), is(MemorySegment.Status.OFFLINE));
+        assertThat(segList.get(4).getStatus(), is(MemorySegment.Status.OFFLINE));
+
+        // nobody popping, so no hurry
+        mgr.prefetchSegments();
+        assertThat(mgr.getNumberOfPrefetches(), is(0L));
+        assertThat(segList.get(3).getStatus(), is(MemorySegment.Status.OFFLINE));
+
+        Thread.sleep(10);
+        assertThat(mgr.pop(5), hasSize(5));
+        mgr.prefetchSegments();
+        assertThat(mgr.getNumberOfPrefetches(), is(1L));
+
+        end = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < end && MemorySegment.Status.READY != segList.get(3).getStatus()) {
+            Thread.sleep(10);
+        }
+        assertThat(segList.get(3).getStatus(), is(MemorySegment.Status.READY));
+        assertThat(segList.get(3).getNumberOfOnlineEntries(), is(7L));
+
+        // 3 segments ahead of the one being popped - no deeper
+        mgr.prefetchSegments();
+        assertThat(mgr.getNumberOfPrefetches(), is(1L));
+        assertThat(segList.get(4).getStatus(), is(MemorySegment.Status.OFFLINE));
+    }
+
+    @Test
+    public void testNegativePrefetchDepth() throws Exception {
+        mgr.setSegmentPrefetchDepth(-1);
+        try {
+            mgr.init();
+            fail("should have thrown FpqException because segmentPrefetchDepth is negative");
+        }
+        catch (FpqException e) {
+            assertThat(e.getMessage(), containsString("segmentPrefetchDepth"));
+        }
+    }
+
     @Test
     public void testShutdown() throws Exception {
         mgr.init();
@@ -153,7 +258,7 @@ public class InMemorySegmentMgrTest {
         mgr.shutdown();
 
         mgr = new InMemorySegmentMgr(null);
-        mgr.setMaxSegmentSizeInBytes(1000);
+        mgr.setMaxSegmentSizeInBytes(900);
         mgr.setPagingDirectory(theDir);
         mgr.init();
 
@@ -184,6 +289,28 @@ public class InMemorySegmentMgrTest {
         assertThat(mgr.isEntryQueued(new FpqEntry(numEntries+1, new byte[10])), is(false));
     }
 
+    @Test
+    public void testQueuedEntryIndexWithPagedSegments() throws Exception {
+        mgr.init();
+
+        for (int i=1;i <= numEntries;i++) {
+            mgr.push(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        }
+
+        long end = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < end && mgr.getNumberOfActiveSegments() > 4) {
+            Thread.sleep(100);
+        }
+        assertThat(mgr.getSegments(), hasSize(5));
+
+        EntryIdIndex index = mgr.createQueuedEntryIndex();
+        assertThat((long) index.size(), is(numEntries));
+        for (int i=1;i <= numEntries;i++) {
+            assertThat("i = "+i+" (out of " + numEntries + ") should have been found", index.contains(i), is(true));
+        }
+        assertThat(index.contains(numEntries+1), is(false));
+    }
+
     @Test
     public void testIsEntryQueuedNoPagedSegments() throws Exception {
         mgr.init();
@@ -346,7 +473,7 @@ public class InMemorySegmentMgrTest {
         FileUtils.forceMkdir(theDir);
 
         mgr = new InMemorySegmentMgr(null);
-        mgr.setMaxSegmentSizeInBytes(1000);
+        mgr.setMaxSegmentSizeInBytes(900);
         mgr.setPagingDirectory(theDir);
     }
 
@@ -37,11 +37,15 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.fail;
 
 
@@ -75,7 +79,7 @@ public class JournalFileTest {
     public void testInitForReadingThenClose() throws IOException {
         UUID id = new UUID();
         RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
-        raFile.writeInt(1);
+        raFile.writeInt(JournalFile.VERSION);
         Utils.writeUuidToFile(raFile, id);
         raFile.writeLong(123);
         raFile.close();
@@ -111,7 +115,7 @@ public class JournalFileTest {
         jf1.initForWriting(new UUID());
         FpqEntry entry1 = new FpqEntry(idGen.incrementAndGet(), data.getBytes());
         jf1.append(entry1);
-        assertThat(jf1.getFilePosition(), is(JournalFile.HEADER_SIZE+12L+entry1.getData().length));
+        assertThat(jf1.getFilePosition(), is((long) JournalFile.HEADER_SIZE+JournalFile.ENTRY_HEADER_SIZE+entry1.getData().length));
         jf1.close();
 
         JournalFile jf2 = new JournalFile(theFile);
@@ -151,7 +155,7 @@ public class JournalFileTest {
 
         // mess up the UUID
         RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
-        Utils.writeInt(raFile, 2);
+        Utils.writeInt(raFile, 99);
         raFile.close();
 //        Utils.writeUuidToFile(raFile, id);
 //        Utils.writeLong(raFile, numberOfEntries.get());
@@ -201,7 +205,7 @@ public class JournalFileTest {
 
         // mess up the UUID
         RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
-        Utils.writeInt(raFile, 1);
+        Utils.writeInt(raFile, JournalFile.VERSION);
         Utils.writeUuidToFile(raFile, jf1.getId());
         Utils.writeLong(raFile, 123L);
         raFile.close();
@@ -239,8 +243,674 @@ public class JournalFileTest {
         assertThat(count, is(5));
     }
 
+    @Test
+    public void testAppendBatchLargerThanWriteBuffer() throws Exception {
+        // mix of small entries and entries too large to buffer, forcing buffer flushes and gathering writes
+        int[] sizes = {10, JournalFile.WRITE_BUFFER_SIZE - 20, 100, JournalFile.WRITE_BUFFER_SIZE * 3, 1, 0, 5000};
+        List<FpqEntry> entries = new ArrayList<FpqEntry>();
+        long expectedLength = JournalFile.HEADER_SIZE;
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            Arrays.fill(data, (byte) size);
+            entries.add(new FpqEntry(idGen.incrementAndGet(), data));
+            expectedLength += JournalFile.ENTRY_HEADER_SIZE + size;
+        }
+
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID());
+        jf1.append(entries);
+        assertThat(jf1.getFilePosition(), is(expectedLength));
+        assertThat(jf1.getNumberOfEntries(), is((long) sizes.length));
+        jf1.close();
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getNumberOfEntries(), is((long) sizes.length));
+        Iterator<FpqEntry> expectedIter = entries.iterator();
+        for (FpqEntry entry : jf2) {
+            FpqEntry expected = expectedIter.next();
+            assertThat(entry.getId(), is(expected.getId()));
+            assertThat(entry.getData(), is(expected.getData()));
+        }
+        assertThat(expectedIter.hasNext(), is(false));
+        jf2.close();
+    }
+
+    @Test
+    public void testMemoryMappedAppendThenRead() throws Exception {
+        int numEntries = 100;
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID(), 1000000);
+        assertThat(theFile.length(), is(1000000L));
+        long expectedPosition = JournalFile.HEADER_SIZE;
+        for (int i=0;i < numEntries;i++) {
+            FpqEntry entry = new FpqEntry(idGen.incrementAndGet(), String.valueOf(i).getBytes());
+            jf1.append(entry);
+            expectedPosition += JournalFile.ENTRY_HEADER_SIZE + entry.getData().length;
+        }
+        assertThat(jf1.getFilePosition(), is(expectedPosition));
+        jf1.close();
+
+        // unused preallocated space is given back on close
+        assertThat(theFile.length(), is(expectedPosition));
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getId(), is(jf1.getId()));
+        assertThat(jf2.getNumberOfEntries(), is((long) numEntries));
+        int count = 0;
+        for (FpqEntry entry : jf2) {
+            assertThat(new String(entry.getData()), is(String.valueOf(count)));
+            count++;
+        }
+        assertThat(count, is(numEntries));
+        jf2.close();
+    }
+
+    @Test
+    public void testMemoryMappedGrowsWhenBatchDoesNotFit() throws Exception {
+        List<FpqEntry> entries = new ArrayList<FpqEntry>();
+        for (int i=0;i < 10;i++) {
+            entries.add(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        }
+
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID(), 500);
+        jf1.append(entries);
+        assertThat(jf1.getFilePosition(), is(JournalFile.HEADER_SIZE + 10L * (JournalFile.ENTRY_HEADER_SIZE + 100)));
+        jf1.close();
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getNumberOfEntries(), is(10L));
+        jf2.close();
+    }
+
+    @Test
+    public void testMemoryMappedNotClosedStopsAtPreallocatedTail() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID(), 100000);
+        for (int i=0;i < 5;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), String.valueOf(i).getBytes()));
+        }
+        jf1.forceFlush();
+
+        // simulate crash - header count never written and the file never truncated
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getNumberOfEntries(), is(5L));
+        int count = 0;
+        for (FpqEntry entry : jf2) {
+            assertThat(new String(entry.getData()), is(String.valueOf(count)));
+            count++;
+        }
+        assertThat(count, is(5));
+        jf2.close();
+        jf1.close();
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID());
+        for (int i=0;i < 5;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        }
+        long goodLength = jf1.getFilePosition();
+        jf1.append(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        jf1.forceFlush();
+
+        // simulate crash mid-write - header count never written and last record only partially on disk
+        RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
+        raFile.setLength(goodLength + JournalFile.ENTRY_HEADER_SIZE + 50);
+        raFile.close();
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getNumberOfEntries(), is(5L));
+        jf2.close();
+        assertThat(theFile.length(), is(goodLength));
+        jf1.close();
+    }
+
+    @Test
+    public void testCorruptRecordStopsReplay() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID());
+        for (int i=0;i < 5;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), String.valueOf(i).getBytes()));
+        }
+        jf1.close();
+
+        // flip a data byte in the 3rd record
+        long recordSize = JournalFile.ENTRY_HEADER_SIZE + 1;
+        long thirdRecordStart = JournalFile.HEADER_SIZE + 2 * recordSize;
+        RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
+        raFile.seek(thirdRecordStart + JournalFile.ENTRY_HEADER_SIZE);
+        raFile.write('x');
+        raFile.close();
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        int count = 0;
+        for (FpqEntry entry : jf2) {
+            assertThat(new String(entry.getData()), is(String.valueOf(count)));
+            count++;
+        }
+        assertThat(count, is(2));
+        jf2.close();
+        assertThat(theFile.length(), is(thirdRecordStart));
+    }
+
+    @Test
+    public void testGarbageLengthIsNotAllocated() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID());
+        jf1.append(new FpqEntry(idGen.incrementAndGet(), new byte[10]));
+        jf1.close();
+
+        // length field of the only record
+        RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
+        raFile.seek(JournalFile.HEADER_SIZE + 12);
+        raFile.writeInt(Integer.MAX_VALUE);
+        raFile.close();
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.readNextEntry(), is(nullValue()));
+        jf2.close();
+    }
+
+    @Test
+    public void testReadVersion1Journal() throws Exception {
+        UUID id = new UUID();
+        RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
+        raFile.writeInt(JournalFile.VERSION_1);
+        Utils.writeUuidToFile(raFile, id);
+        raFile.writeLong(2);
+        for (int i=0;i < 2;i++) {
+            raFile.writeLong(idGen.incrementAndGet());
+            raFile.writeInt(1);
+            raFile.write(String.valueOf(i).getBytes());
+        }
+        raFile.close();
+
+        JournalFile jf = new JournalFile(theFile);
+        jf.initForReading();
+        assertThat(jf.getVersion(), is(JournalFile.VERSION_1));
+        int count = 0;
+        for (FpqEntry entry : jf) {
+            assertThat(new String(entry.getData()), is(String.valueOf(count)));
+            count++;
+        }
+        assertThat(count, is(2));
+        jf.close();
+    }
+
+    @Test
+    public void testMappedIteratorDoesNotCopyData() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID());
+        for (int i=0;i < 10;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), String.valueOf(i).getBytes()));
+        }
+        jf1.close();
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.setSequence(7);
+        Iterator<FpqEntry> iter = jf2.mappedIterator();
+        assertThat(jf2.getId(), is(jf1.getId()));
+        assertThat(jf2.getNumberOfEntries(), is(10L));
+
+        int count = 0;
+        while (iter.hasNext()) {
+            FpqEntry entry = iter.next();
+            assertThat(entry.getId(), is((long) count + 1));
+            assertThat(entry.getJournalSequence(), is(7L));
+            assertThat(entry.isDataMaterialized(), is(false));
+            assertThat(entry.getDataLength(), is(1));
+
+            entry.materializeData();
+            assertThat(entry.isDataMaterialized(), is(true));
+            assertThat(new String(entry.getData()), is(String.valueOf(count)));
+            count++;
+        }
+        assertThat(count, is(10));
+        jf2.close();
+    }
+
+    @Test
+    public void testMappedIteratorTruncatesTornTail() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID());
+        for (int i=0;i < 5;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        }
+        long goodLength = jf1.getFilePosition();
+        jf1.append(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        jf1.close();
+
+        RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
+        raFile.setLength(goodLength + JournalFile.ENTRY_HEADER_SIZE + 50);
+        raFile.close();
+
+        JournalFile jf2 = new JournalFile(theFile);
+        Iterator<FpqEntry> iter = jf2.mappedIterator();
+        int count = 0;
+        while (iter.hasNext()) {
+            assertThat(iter.next().getData().length, is(100));
+            count++;
+        }
+        assertThat(count, is(5));
+        assertThat(theFile.length(), is(goodLength));
+    }
+
+    @Test
+    public void testMappedIteratorStopsAtPreallocatedTail() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID(), 10000);
+        for (int i=0;i < 3;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), new byte[10]));
+        }
+        jf1.forceFlush();
+
+        // never closed, so the zeroed tail is still there
+        JournalFile jf2 = new JournalFile(theFile);
+        Iterator<FpqEntry> iter = jf2.mappedIterator();
+        int count = 0;
+        while (iter.hasNext()) {
+            iter.next();
+            count++;
+        }
+        assertThat(count, is(3));
+        jf1.close();
+    }
+
+    @Test
+    public void testMappedIteratorReadsVersion1Journal() throws Exception {
+        RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
+        raFile.writeInt(JournalFile.VERSION_1);
+        Utils.writeUuidToFile(raFile, new UUID());
+        raFile.writeLong(2);
+        for (int i=0;i < 2;i++) {
+            raFile.writeLong(idGen.incrementAndGet());
+            raFile.writeInt(1);
+            raFile.write(String.valueOf(i).getBytes());
+        }
+        raFile.close();
+
+        JournalFile jf = new JournalFile(theFile);
+        Iterator<FpqEntry> iter = jf.mappedIterator();
+        assertThat(jf.getVersion(), is(JournalFile.VERSION_1));
+        int count = 0;
+        while (iter.hasNext()) {
+            assertThat(new String(iter.next().getData()), is(String.valueOf(count)));
+            count++;
+        }
+        assertThat(count, is(2));
+    }
+
+    @Test
+    public void testCompressedAppendThenRead() throws Exception {
+        int numBatches = 10;
+        int batchSize = 50;
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID(), 0, true);
+        assertThat(jf1.getVersion(), is(JournalFile.VERSION_COMPRESSED));
+        long rawSize = 0;
+        for (int i=0;i < numBatches;i++) {
+            List<FpqEntry> batch = new ArrayList<FpqEntry>();
+            for (int j=0;j < batchSize;j++) {
+                batch.add(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(i * batchSize + j)));
+                rawSize += batch.get(j).getJournalSize();
+            }
+            jf1.append(batch);
+        }
+        jf1.close();
+        assertThat(theFile.length(), is(lessThan(rawSize / 2)));
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getVersion(), is(JournalFile.VERSION_COMPRESSED));
+        assertThat(jf2.getNumberOfEntries(), is((long) numBatches * batchSize));
+        int count = 0;
+        for (FpqEntry entry : jf2) {
+            assertThat(entry.getId(), is((long) count + 1));
+            assertThat(entry.getData(), is(createJsonEvent(count)));
+            count++;
+        }
+        assertThat(count, is(numBatches * batchSize));
+        jf2.close();
+
+        JournalFile jf3 = new JournalFile(theFile);
+        Iterator<FpqEntry> iter = jf3.mappedIterator();
+        count = 0;
+        while (iter.hasNext()) {
+            assertThat(iter.next().getData(), is(createJsonEvent(count)));
+            count++;
+        }
+        assertThat(count, is(numBatches * batchSize));
+    }
+
+    @Test
+    public void testCompressedMemoryMappedAppendThenRead() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID(), 100000, true);
+        for (int i=0;i < 20;i++) {
+            jf1.append(Arrays.asList(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(2 * i)),
+                                     new FpqEntry(idGen.incrementAndGet(), createJsonEvent(2 * i + 1))));
+        }
+        jf1.close();
+        assertThat(theFile.length(), is(lessThan(100000L)));
+
+        JournalFile jf2 = new JournalFile(theFile);
+        int count = 0;
+        for (FpqEntry entry : jf2) {
+            assertThat(entry.getData(), is(createJsonEvent(count)));
+            count++;
+        }
+        assertThat(count, is(40));
+        jf2.close();
+    }
+
+    @Test
+    public void testCompressedTornBlockIsTruncated() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID(), 0, true);
+        jf1.append(Arrays.asList(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(0)),
+                                 new FpqEntry(idGen.incrementAndGet(), createJsonEvent(1))));
+        long goodLength = jf1.getFilePosition();
+        jf1.append(Arrays.asList(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(2)),
+                                 new FpqEntry(idGen.incrementAndGet(), createJsonEvent(3))));
+        jf1.forceFlush();
+
+        // the second block is only partially on disk
+        RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
+        raFile.setLength(jf1.getFilePosition() - 5);
+        raFile.close();
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getNumberOfEntries(), is(2L));
+        jf2.close();
+        assertThat(theFile.length(), is(goodLength));
+        jf1.close();
+    }
+
+    @Test
+    public void testSkippedEntriesAreNotReturned() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID());
+        for (int i=0;i < 10;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(i)));
+        }
+        jf1.close();
+
+        EntryIdIndex skipped = new EntryIdIndex();
+        skipped.add(1);
+        skipped.add(4);
+        skipped.add(5);
+        skipped.add(10);
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.setSkippedEntries(skipped);
+        List<Long> ids = new ArrayList<Long>();
+        for (FpqEntry entry : jf2) {
+            assertThat(entry.getData(), is(createJsonEvent((int) entry.getId() - 1)));
+            ids.add(entry.getId());
+        }
+        jf2.close();
+        assertThat(ids, is(Arrays.asList(2L, 3L, 6L, 7L, 8L, 9L)));
+        // still in the file
+        assertThat(jf2.getNumberOfEntries(), is(10L));
+
+        JournalFile jf3 = new JournalFile(theFile);
+        jf3.setSkippedEntries(skipped);
+        ids.clear();
+        Iterator<FpqEntry> iter = jf3.mappedIterator();
+        while (iter.hasNext()) {
+            ids.add(iter.next().getId());
+        }
+        assertThat(ids, is(Arrays.asList(2L, 3L, 6L, 7L, 8L, 9L)));
+    }
+
+    @Test
+    public void testSkippedEntriesInCompressedJournal() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID(), 0, true);
+        for (int i=0;i < 4;i++) {
+            jf1.append(Arrays.asList(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(2 * i)),
+                                     new FpqEntry(idGen.incrementAndGet(), createJsonEvent(2 * i + 1))));
+        }
+        jf1.close();
+
+        EntryIdIndex skipped = new EntryIdIndex();
+        // a whole block, and half of one
+        skipped.add(3);
+        skipped.add(4);
+        skipped.add(7);
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.setSkippedEntries(skipped);
+        List<Long> ids = new ArrayList<Long>();
+        for (FpqEntry entry : jf2) {
+            ids.add(entry.getId());
+        }
+        jf2.close();
+        assertThat(ids, is(Arrays.asList(1L, 2L, 5L, 6L, 8L)));
+    }
+
+    @Test
+    public void testCheckpointWithoutClose() throws Exception {
+        checkCheckpointWithoutClose(new JournalFile(theFile), 0);
+    }
+
+    @Test
+    public void testMemoryMappedCheckpointWithoutClose() throws Exception {
+        checkCheckpointWithoutClose(new JournalFile(theFile), 100000);
+    }
+
+    @Test
+    public void testDirectIoCheckpointWithoutClose() throws Exception {
+        JournalFile jf = new JournalFile(theFile);
+        jf.setDirectIoEnabled(true);
+        checkCheckpointWithoutClose(jf, 0);
+    }
+
+    private void checkCheckpointWithoutClose(JournalFile jf1, long preallocateSize) throws Exception {
+        jf1.initForWriting(new UUID(), preallocateSize, false);
+        for (int i=0;i < 10;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(i)));
+        }
+        long checkpointPosition = jf1.getFilePosition();
+        // captures the checkpoint, the next fsync writes it
+        jf1.forceFlush();
+        for (int i=10;i < 15;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(i)));
+        }
+        jf1.forceFlush();
+        for (int i=15;i < 18;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(i)));
+        }
+
+        long headerCount = readHeaderEntryCount();
+        assertThat(headerCount < 0, is(true));
+        assertThat(JournalFile.getCheckpointCount(headerCount), is(10L));
+        assertThat(JournalFile.getCheckpointPosition(headerCount), is(checkpointPosition));
+
+        // as if the process died here
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getNumberOfEntries(), is(18L));
+        int count = 0;
+        for (FpqEntry entry : jf2) {
+            assertThat(entry.getData(), is(createJsonEvent(count)));
+            count++;
+        }
+        assertThat(count, is(18));
+        jf2.close();
+
+        // close replaces the checkpoint with the exact count
+        jf1.close();
+        assertThat(readHeaderEntryCount(), is(18L));
+    }
+
+    @Test
+    public void testInvalidCheckpointCountsAllEntries() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForWriting(new UUID());
+        for (int i=0;i < 5;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(i)));
+        }
+        jf1.close();
+
+        RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
+        try {
+            raFile.seek(JournalFile.ENTRY_COUNT_OFFSET);
+            raFile.writeLong(JournalFile.createCheckpoint(3, theFile.length() + 1));
+        }
+        finally {
+            raFile.close();
+        }
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getNumberOfEntries(), is(5L));
+        jf2.close();
+    }
+
+    private long readHeaderEntryCount() throws IOException {
+        RandomAccessFile raFile = new RandomAccessFile(theFile, "r");
+        try {
+            raFile.seek(JournalFile.ENTRY_COUNT_OFFSET);
+            return raFile.readLong();
+        }
+        finally {
+            raFile.close();
+        }
+    }
+
+    @Test
+    public void testRewriteRecycledFileAfterClose() throws Exception {
+        File recycledFile = writeJournalToRecycle(50);
+        long recycledLength = recycledFile.length();
+
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForRewriting(recycledFile, new UUID(), 0, false);
+        assertThat(recycledFile.exists(), is(false));
+        for (int i=0;i < 3;i++) {
+            jf1.append(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(i)));
+        }
+        jf1.close();
+        assertThat(theFile.length(), is(lessThan(recycledLength)));
+
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getNumberOfEntries(), is(3L));
+        int count = 0;
+        for (FpqEntry entry : jf2) {
+            assertThat(entry.getData(), is(createJsonEvent(count)));
+            count++;
+        }
+        assertThat(count, is(3));
+        jf2.close();
+    }
+
+    @Test
+    public void testRewriteRecycledFileWithoutClose() throws Exception {
+        File recycledFile = writeJournalToRecycle(50);
+
+        JournalFile jf1 = new JournalFile(theFile);
+        UUID id = new UUID();
+        jf1.initForRewriting(recycledFile, id, 0, false);
+        long firstId = idGen.incrementAndGet();
+        jf1.append(new FpqEntry(firstId, createJsonEvent(0)));
+        jf1.append(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(1)));
+        jf1.forceFlush();
+        long endOfData = jf1.getFilePosition();
+
+        // the old journal's records past the new data must not be replayed
+        assertThat(jf1.readFirstEntryId(), is(firstId));
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getId(), is(id));
+        assertThat(jf2.getNumberOfEntries(), is(2L));
+        jf2.close();
+        assertThat(theFile.length(), is(endOfData));
+        jf1.close();
+    }
+
+    @Test
+    public void testRewriteRecycledFileWithNoEntries() throws Exception {
+        File recycledFile = writeJournalToRecycle(5);
+
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.initForRewriting(recycledFile, new UUID(), 0, false);
+        jf1.forceFlush();
+
+        assertThat(jf1.readFirstEntryId(), is(Long.MAX_VALUE));
+        jf1.close();
+        assertThat(theFile.length(), is((long) JournalFile.HEADER_SIZE));
+    }
+
+    @Test
+    public void testDirectIoAppendThenRead() throws Exception {
+        JournalFile jf1 = new JournalFile(theFile);
+        jf1.setDirectIoEnabled(true);
+        jf1.initForWriting(new UUID());
+        // falls back to normal writes if the JVM or file system can't do direct I/O
+        if (!DirectIoWriter.isSupported()) {
+            assertThat(jf1.isDirectIo(), is(false));
+        }
+
+        for (int i=0;i < 100;i++) {
+            jf1.append(Arrays.asList(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(2 * i)),
+                                     new FpqEntry(idGen.incrementAndGet(), createJsonEvent(2 * i + 1))));
+        }
+        // bigger than the write buffer
+        jf1.append(new FpqEntry(idGen.incrementAndGet(), new byte[JournalFile.WRITE_BUFFER_SIZE * 2]));
+        long endOfData = jf1.getFilePosition();
+
+        // entries are readable before close
+        JournalFile jf2 = new JournalFile(theFile);
+        jf2.initForReading();
+        assertThat(jf2.getNumberOfEntries(), is(201L));
+        jf2.close();
+
+        jf1.close();
+        assertThat(theFile.length(), is(endOfData));
+
+        JournalFile jf3 = new JournalFile(theFile);
+        jf3.initForReading();
+        assertThat(jf3.getNumberOfEntries(), is(201L));
+        int count = 0;
+        for (FpqEntry entry : jf3) {
+            if (200 > count) {
+                assertThat(entry.getData(), is(createJsonEvent(count)));
+            }
+            count++;
+        }
+        assertThat(count, is(201));
+        jf3.close();
+    }
+
     // ---------------
 
+    private File writeJournalToRecycle(int numEntries) throws IOException {
+        File recycledFile = generateLogFileName();
+        JournalFile jf = new JournalFile(recycledFile);
+        jf.initForWriting(new UUID());
+        for (int i=0;i < numEntries;i++) {
+            jf.append(new FpqEntry(idGen.incrementAndGet(), createJsonEvent(1000 + i)));
+        }
+        jf.close();
+        return recycledFile;
+    }
+
+    private byte[] createJsonEvent(int i) {
+        return String.format("{\"id\":%d,\"host\":\"web-%d.example.com\",\"level\":\"INFO\",\"message\":\"request completed\",\"status\":200}", i, i % 8).getBytes();
+    }
+
     @Before
     public void setup() throws IOException {
         theDir = new File("tmp/junitTmp_"+new UUID().toString());
@@ -0,0 +1,152 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.eaio.uuid.UUID;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+
+/**
+ *
+ */
+public class JournalFlusherTest {
+    File theDir;
+    JournalFile jf;
+    ExecutorService exec;
+
+    @Test
+    public void testUnsyncedBytes() throws Exception {
+        // new header isn't durable until the first fsync
+        assertThat(jf.getUnsyncedBytes(), is((long) JournalFile.HEADER_SIZE));
+        jf.forceFlush();
+        assertThat(jf.getUnsyncedBytes(), is(0L));
+
+        jf.append(new FpqEntry(1, new byte[100]));
+        assertThat(jf.getUnsyncedBytes(), is((long) JournalFile.ENTRY_HEADER_SIZE + 100));
+        jf.forceFlush();
+        assertThat(jf.getUnsyncedBytes(), is(0L));
+    }
+
+    @Test
+    public void testIdleJournalIsNotSynced() throws Exception {
+        JournalFlusher flusher = startFlusher(50, 1000000);
+
+        waitForSync(2000);
+        assertThat(flusher.getNumberOfFsyncs(), is(1L));
+
+        Thread.sleep(300);
+        assertThat(flusher.getNumberOfFsyncs(), is(1L));
+    }
+
+    @Test
+    public void testSyncedAfterPeriod() throws Exception {
+        jf.forceFlush();
+        JournalFlusher flusher = startFlusher(200, 1000000);
+
+        long start = System.currentTimeMillis();
+        jf.append(new FpqEntry(1, new byte[100]));
+        waitForSync(5000);
+
+        assertThat(System.currentTimeMillis() - start, is(greaterThan(100L)));
+        assertThat(flusher.getNumberOfFsyncs(), is(1L));
+    }
+
+    @Test
+    public void testSyncedEarlyWhenMaxBytesWritten() throws Exception {
+        jf.forceFlush();
+        JournalFlusher flusher = startFlusher(60000, 1000);
+
+        long start = System.currentTimeMillis();
+        jf.append(new FpqEntry(1, new byte[2000]));
+        flusher.journalWritten(jf);
+        waitForSync(5000);
+
+        assertThat(System.currentTimeMillis() - start, is(lessThan(5000L)));
+        assertThat(flusher.getNumberOfFsyncs(), is(1L));
+    }
+
+    @Test
+    public void testShutdownSyncsPendingWrites() throws Exception {
+        jf.forceFlush();
+        JournalFlusher flusher = startFlusher(60000, 1000000);
+
+        jf.append(new FpqEntry(1, new byte[100]));
+        flusher.shutdown();
+        exec.shutdown();
+        assertThat(exec.awaitTermination(5, TimeUnit.SECONDS), is(true));
+
+        assertThat(jf.getUnsyncedBytes(), is(0L));
+        assertThat(flusher.getNumberOfFsyncs(), is(1L));
+    }
+
+    // -----------
+
+    private JournalFlusher startFlusher(long flushPeriodInMs, long flushMaxBytes) {
+        JournalFlusher flusher = new JournalFlusher(flushPeriodInMs, flushMaxBytes, null);
+        flusher.add(jf);
+        exec.submit(flusher);
+        return flusher;
+    }
+
+    private void waitForSync(long timeoutInMs) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + timeoutInMs;
+        while (0 < jf.getUnsyncedBytes() && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertThat(jf.getUnsyncedBytes(), is(0L));
+    }
+
+    @Before
+    public void setup() throws IOException {
+        theDir = new File("tmp/junitTmp_"+new UUID().toString());
+        FileUtils.forceMkdir(theDir);
+        jf = new JournalFile(new File(theDir, "journal"));
+        jf.initForWriting(new UUID());
+        exec = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        exec.shutdownNow();
+        jf.close();
+        FileUtils.deleteDirectory(theDir);
+    }
+}
@@ -26,7 +26,9 @@ package com.btoddb.fastpersitentqueue;
  * #L%
  */
 
+import com.btoddb.fastpersitentqueue.exceptions.FpqException;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.PrefixFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.junit.After;
 import org.junit.Before;
@@ -42,6 +44,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
 
 
 /**
@@ -172,7 +175,7 @@ public class JournalMgrIT {
         byte[] data = new byte[9];
         long now = System.currentTimeMillis();
 
-        mgr.setMaxJournalFileSize(50);
+        mgr.setMaxJournalFileSize(58);
         mgr.init();
         assertThat(mgr.getCurrentJournalDescriptor().getStartTime(), is(0L));
 
@@ -187,30 +190,426 @@ public class JournalMgrIT {
     }
 
     @Test
-    public void testReportConsumption() throws IOException {
-        mgr.setMaxJournalFileSize(51);
+    public void testRollSwapsInSpareJournal() throws Exception {
+        mgr.setMaxJournalFileSize(58);
+        mgr.init();
+
+        // spare is created in the background
+        JournalFile spare = waitForSpareJournal(0);
+        assertThat(spare, is(notNullValue()));
+        assertThat(spare.isOpen(), is(true));
+        assertThat(mgr.getJournalIdMap(), not(hasKey(spare.getId())));
+
+        JournalDescriptor jd1 = mgr.getCurrentJournalDescriptor();
+        mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9]));
+        mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9]));
+        assertThat(mgr.getCurrentJournalDescriptor().getFile(), is(sameInstance(spare)));
+        assertThat(mgr.getJournalIdMap(), hasKey(spare.getId()));
+
+        // the finished journal is closed, and a new spare created, by the roller
+        long end = System.currentTimeMillis() + 5000;
+        while ((jd1.getFile().isOpen() || null == mgr.getSpareJournal(0)) && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertThat(jd1.getFile().isOpen(), is(false));
+        assertThat(mgr.getSpareJournal(0), is(not(sameInstance(spare))));
+        assertThat(mgr.getSpareJournal(0), is(notNullValue()));
+    }
+
+    @Test
+    public void testRecycleDrainedJournal() throws Exception {
+        mgr.setMaxJournalFileSize(58);
+        mgr.setJournalRecyclingEnabled(true);
+        mgr.init();
+
+        JournalDescriptor jd1 = mgr.getCurrentJournalDescriptor();
+        FpqEntry entry1 = mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9]));
+        FpqEntry entry2 = mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9]));
+        long end = System.currentTimeMillis() + 5000;
+        while (jd1.getFile().isOpen() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+
+        // drained journal goes into the pool instead of being deleted
+        mgr.reportTake(Arrays.asList(entry1, entry2));
+        end = System.currentTimeMillis() + 5000;
+        while (0 == mgr.getNumberOfRecycledJournalFiles() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertThat(mgr.getNumberOfRecycledJournalFiles(), is(1));
+        assertThat(jd1.getFile().getFile().exists(), is(false));
+        assertThat(FileUtils.listFiles(theDir, new PrefixFileFilter("recycled-"), TrueFileFilter.INSTANCE), hasSize(1));
+
+        // next roll swaps in the spare, and the roller creates the new spare from the pool
+        FpqEntry entry3 = mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9]));
+        FpqEntry entry4 = mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9]));
+        end = System.currentTimeMillis() + 5000;
+        while (0 == mgr.getJournalsRecycled() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertThat(mgr.getJournalsRecycled(), is(1L));
+        assertThat(mgr.getNumberOfRecycledJournalFiles(), is(0));
+        assertThat(FileUtils.listFiles(theDir, new PrefixFileFilter("recycled-"), TrueFileFilter.INSTANCE), is(empty()));
+        mgr.shutdown();
+
+        // only the entries written after the file was recycled are replayed
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.setJournalRecyclingEnabled(true);
+        mgr2.init();
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            for (FpqEntry entry : mgr2.createReplayIterable()) {
+                ids.add(entry.getId());
+            }
+            assertThat(ids, contains(entry3.getId(), entry4.getId()));
+        }
+        finally {
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testRecycledFilesFromLastRunAreReused() throws Exception {
+        JournalFile leftOver = createRecycledFile();
+        mgr.setJournalRecyclingEnabled(true);
+        mgr.init();
+
+        // never loaded as a journal, the first new journal (or spare) reuses it
+        assertThat(mgr.getJournalIdMap(), not(hasKey(leftOver.getId())));
+        assertThat(mgr.getNumberOfEntries(), is(0L));
+        long end = System.currentTimeMillis() + 5000;
+        while (0 == mgr.getJournalsRecycled() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertThat(mgr.getJournalsRecycled(), is(1L));
+        assertThat(leftOver.getFile().exists(), is(false));
+    }
+
+    @Test
+    public void testRecycledFilesRemovedWhenRecyclingDisabled() throws Exception {
+        JournalFile leftOver = createRecycledFile();
+        mgr.init();
+
+        assertThat(mgr.getJournalIdMap(), not(hasKey(leftOver.getId())));
+        assertThat(leftOver.getFile().exists(), is(false));
+        assertThat(mgr.getJournalsRecycled(), is(0L));
+    }
+
+    @Test
+    public void testCompactMostlyConsumedJournal() throws Exception {
+        // rolls after 20 entries
+        mgr.setMaxJournalFileSize(JournalFile.HEADER_SIZE + 20 * (JournalFile.ENTRY_HEADER_SIZE + 9));
+        mgr.setJournalCompactionEnabled(true);
+        mgr.init();
+
+        JournalDescriptor jd1 = mgr.getCurrentJournalDescriptor();
+        List<FpqEntry> entries = new ArrayList<FpqEntry>();
+        for (int i=0;i < 20;i++) {
+            entries.add(mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9])));
+        }
+        long end = System.currentTimeMillis() + 5000;
+        while (jd1.getFile().isOpen() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        File journalFile = jd1.getFile().getFile();
+
+        // half left - not worth compacting
+        mgr.reportTake(entries.subList(0, 10));
+        mgr.compactJournals();
+        assertThat(mgr.getJournalsCompacted(), is(0L));
+
+        // 3 of 20 left
+        List<FpqEntry> survivors = Arrays.asList(entries.get(11), entries.get(15), entries.get(19));
+        List<FpqEntry> taken = new ArrayList<FpqEntry>(entries.subList(10, 20));
+        taken.removeAll(survivors);
+        mgr.reportTake(taken);
+        mgr.compactJournals();
+
+        assertThat(mgr.getJournalsCompacted(), is(1L));
+        assertThat(mgr.getJournalDescriptor(entries.get(0).getJournalSequence()), is(sameInstance(jd1)));
+        assertThat(jd1.getFile().getFile(), is(journalFile));
+        assertThat(jd1.getFile().getNumberOfEntries(), is(3L));
+        assertThat(journalFile.length(), is((long) JournalFile.HEADER_SIZE + 3 * (JournalFile.ENTRY_HEADER_SIZE + 9)));
+        assertThat(mgr.getNumberOfEntries(), is(3L));
+        assertThat(FileUtils.listFiles(theDir, new PrefixFileFilter("compacting-"), TrueFileFilter.INSTANCE), is(empty()));
+
+        // not compacted again, all that is left is live
+        mgr.compactJournals();
+        assertThat(mgr.getJournalsCompacted(), is(1L));
+
+        // queued entries still refer to the same journal
+        mgr.reportTake(survivors);
+        end = System.currentTimeMillis() + 5000;
+        while (0 == mgr.getJournalsRemoved() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertThat(mgr.getJournalDescriptor(jd1.getSequence()), is(nullValue()));
+        assertThat(journalFile.exists(), is(false));
+        assertThat(mgr.getNumberOfEntries(), is(0L));
+    }
+
+    @Test
+    public void testReplayCompactedJournal() throws Exception {
+        mgr.setMaxJournalFileSize(JournalFile.HEADER_SIZE + 20 * (JournalFile.ENTRY_HEADER_SIZE + 9));
+        mgr.setJournalCompactionEnabled(true);
+        mgr.init();
+
+        JournalDescriptor jd1 = mgr.getCurrentJournalDescriptor();
+        List<FpqEntry> entries = new ArrayList<FpqEntry>();
+        for (int i=0;i < 20;i++) {
+            entries.add(mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9])));
+        }
+        long end = System.currentTimeMillis() + 5000;
+        while (jd1.getFile().isOpen() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        mgr.reportTake(entries.subList(1, 20));
+        mgr.compactJournals();
+        assertThat(mgr.getJournalsCompacted(), is(1L));
+        mgr.shutdown();
+
+        // left over from a compaction that never finished
+        FileUtils.write(new File(theDir, "compacting-" + jd1.getId().toString()), "garbage");
+
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.init();
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            for (FpqEntry entry : mgr2.createReplayIterable()) {
+                ids.add(entry.getId());
+            }
+            assertThat(ids, contains(entries.get(0).getId()));
+            assertThat(mgr2.getJournalIdMap(), hasKey(jd1.getId()));
+            assertThat(FileUtils.listFiles(theDir, new PrefixFileFilter("compacting-"), TrueFileFilter.INSTANCE), is(empty()));
+        }
+        finally {
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testReplaySkipsEntriesInConsumptionLog() throws Exception {
+        mgr.setConsumptionLogEnabled(true);
+        mgr.init();
+
+        List<FpqEntry> entries = new ArrayList<FpqEntry>();
+        for (int i=0;i < 10;i++) {
+            entries.add(mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9])));
+        }
+        JournalDescriptor jd1 = mgr.getCurrentJournalDescriptor();
+        mgr.reportTake(entries.subList(0, 4));
+        mgr.reportTake(entries.subList(6, 8));
+        assertThat(FileUtils.listFiles(theDir, new PrefixFileFilter("consumed-"), TrueFileFilter.INSTANCE), hasSize(1));
+        mgr.shutdown();
+
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.setConsumptionLogEnabled(true);
+        mgr2.init();
+        try {
+            List<FpqEntry> replayed = new ArrayList<FpqEntry>();
+            for (FpqEntry entry : mgr2.createReplayIterable()) {
+                replayed.add(entry);
+            }
+            List<Long> ids = new ArrayList<Long>();
+            for (FpqEntry entry : replayed) {
+                ids.add(entry.getId());
+            }
+            assertThat(ids, contains(entries.get(4).getId(), entries.get(5).getId(), entries.get(8).getId(), entries.get(9).getId()));
+
+            JournalDescriptor jd = mgr2.getJournalIdMap().get(jd1.getId());
+            assertThat(jd.getNumberOfUnconsumedEntries(), is(4L));
+
+            // taking the rest removes the journal and its log
+            mgr2.reportTake(replayed);
+            long end = System.currentTimeMillis() + 5000;
+            while (mgr2.getJournalIdMap().containsKey(jd1.getId()) && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertThat(mgr2.getJournalIdMap(), not(hasKey(jd1.getId())));
+            assertThat(FileUtils.listFiles(theDir, new PrefixFileFilter("consumed-"), TrueFileFilter.INSTANCE), is(empty()));
+        }
+        finally {
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testConsumedJournalRemovedAtStartup() throws Exception {
+        mgr.setConsumptionLogEnabled(true);
+        mgr.init();
+
+        List<FpqEntry> entries = new ArrayList<FpqEntry>();
+        for (int i=0;i < 5;i++) {
+            entries.add(mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9])));
+        }
+        JournalDescriptor jd1 = mgr.getCurrentJournalDescriptor();
+        mgr.reportTake(entries);
+        jd1.getFile().forceFlush();
+        waitForSpareJournal(0);
+
+        // no shutdown - the journal is still there, but everything in it was taken
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.setConsumptionLogEnabled(true);
+        mgr2.init();
+        try {
+            assertThat(mgr2.getJournalIdMap(), not(hasKey(jd1.getId())));
+            assertThat(jd1.getFile().getFile().exists(), is(false));
+            assertThat(mgr2.createReplayIterable().hasNext(), is(false));
+        }
+        finally {
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testStaleConsumptionLogIgnoredAtStartup() throws Exception {
+        mgr.setConsumptionLogEnabled(true);
+        mgr.init();
+
+        List<FpqEntry> entries = new ArrayList<FpqEntry>();
+        for (int i=0;i < 5;i++) {
+            entries.add(mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9])));
+        }
+        JournalDescriptor jd1 = mgr.getCurrentJournalDescriptor();
+        mgr.reportTake(entries.subList(0, 1));
+        mgr.shutdown();
+
+        // as if left over from compacting away entries the journal no longer has
+        ConsumptionLog log = new ConsumptionLog(jd1.getFile().getFile(), jd1.getId().toString());
+        log.load();
+        log.append(new long[] {1001, 1002, 1003, 1004, 1005}, 5);
+        log.close();
+
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.setConsumptionLogEnabled(true);
+        mgr2.init();
+        try {
+            assertThat(mgr2.getJournalIdMap(), hasKey(jd1.getId()));
+            assertThat(mgr2.getJournalIdMap().get(jd1.getId()).getNumberOfUnconsumedEntries(), is(4L));
+
+            List<Long> ids = new ArrayList<Long>();
+            for (FpqEntry entry : mgr2.createReplayIterable()) {
+                ids.add(entry.getId());
+            }
+            assertThat(ids, contains(entries.get(1).getId(), entries.get(2).getId(), entries.get(3).getId(), entries.get(4).getId()));
+        }
+        finally {
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testStaleConsumptionLogCorrectedByReplay() throws Exception {
+        mgr.setConsumptionLogEnabled(true);
+        mgr.init();
+
+        List<FpqEntry> entries = new ArrayList<FpqEntry>();
+        for (int i=0;i < 5;i++) {
+            entries.add(mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9])));
+        }
+        JournalDescriptor jd1 = mgr.getCurrentJournalDescriptor();
+        mgr.reportTake(entries.subList(0, 1));
+        mgr.shutdown();
+
+        // doesn't look fully consumed, so nothing is checked until replay reads the journal
+        ConsumptionLog log = new ConsumptionLog(jd1.getFile().getFile(), jd1.getId().toString());
+        log.load();
+        log.append(new long[] {1001}, 1);
+        log.close();
+
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.setConsumptionLogEnabled(true);
+        mgr2.init();
+        try {
+            JournalDescriptor jd = mgr2.getJournalIdMap().get(jd1.getId());
+            assertThat(jd.getNumberOfUnconsumedEntries(), is(3L));
+
+            ParallelJournalReplayer replayer = mgr2.createParallelReplayIterable();
+            List<Long> ids = new ArrayList<Long>();
+            try {
+                for (FpqEntry entry : replayer) {
+                    ids.add(entry.getId());
+                }
+            }
+            finally {
+                replayer.close();
+            }
+            assertThat(ids, contains(entries.get(1).getId(), entries.get(2).getId(), entries.get(3).getId(), entries.get(4).getId()));
+            assertThat(jd.getNumberOfUnconsumedEntries(), is(4L));
+        }
+        finally {
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testConsumptionLogsRemovedWhenDisabled() throws Exception {
+        mgr.setConsumptionLogEnabled(true);
+        mgr.init();
+        FpqEntry entry1 = mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9]));
+        mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[9]));
+        mgr.reportTake(entry1);
+        mgr.shutdown();
+
+        // without the log, every entry is replayed
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.init();
+        try {
+            assertThat(FileUtils.listFiles(theDir, new PrefixFileFilter("consumed-"), TrueFileFilter.INSTANCE), is(empty()));
+            int count = 0;
+            for (FpqEntry entry : mgr2.createReplayIterable()) {
+                count++;
+            }
+            assertThat(count, is(2));
+        }
+        finally {
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownRemovesSpareJournals() throws Exception {
+        mgr.setNumberOfActiveJournals(2);
+        mgr.init();
+        mgr.shutdown();
+
+        assertThat(FileUtils.listFiles(theDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE), is(empty()));
+    }
+
+    @Test
+    public void testReportConsumption() throws Exception {
+        mgr.setMaxJournalFileSize(59);
         mgr.init();
 
         FpqEntry entry1 = mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[] {0, 1, 2, 3}));
         FpqEntry entry2 = mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[] {0, 1, 2, 3}));
         FpqEntry entry3 = mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[] {0, 1, 2, 3}));
         assertThat(mgr.getJournalIdMap().entrySet(), hasSize(2));
-        assertThat(mgr.getJournalIdMap().get(entry1.getJournalId()).getNumberOfUnconsumedEntries(), is(2L));
-        assertThat(mgr.getJournalIdMap().get(entry3.getJournalId()).getNumberOfUnconsumedEntries(), is(1L));
+        assertThat(mgr.getJournalDescriptor(entry1.getJournalSequence()).getNumberOfUnconsumedEntries(), is(2L));
+        assertThat(mgr.getJournalDescriptor(entry3.getJournalSequence()).getNumberOfUnconsumedEntries(), is(1L));
 
         mgr.reportTake(entry1);
-        assertThat(mgr.getJournalIdMap().get(entry1.getJournalId()).getNumberOfUnconsumedEntries(), is(1L));
-        assertThat(mgr.getJournalIdMap().get(entry3.getJournalId()).getNumberOfUnconsumedEntries(), is(1L));
+        assertThat(mgr.getJournalDescriptor(entry1.getJournalSequence()).getNumberOfUnconsumedEntries(), is(1L));
+        assertThat(mgr.getJournalDescriptor(entry3.getJournalSequence()).getNumberOfUnconsumedEntries(), is(1L));
 
         mgr.reportTake(entry2);
-        assertThat(mgr.getJournalIdMap(), not(hasKey(entry1.getJournalId())));
-        assertThat(mgr.getJournalIdMap(), not(hasKey(entry2.getJournalId())));
-        assertThat(mgr.getJournalIdMap().get(entry3.getJournalId()).getNumberOfUnconsumedEntries(), is(1L));
+        // removal happens in the background
+        waitForJournalRemoval(entry1.getJournalSequence());
+        assertThat(mgr.getJournalDescriptor(entry1.getJournalSequence()), is(nullValue()));
+        assertThat(mgr.getJournalDescriptor(entry2.getJournalSequence()), is(nullValue()));
+        assertThat(mgr.getJournalDescriptor(entry3.getJournalSequence()).getNumberOfUnconsumedEntries(), is(1L));
 
         mgr.reportTake(entry3);
-        assertThat(mgr.getJournalIdMap(), not(hasKey(entry1.getJournalId())));
-        assertThat(mgr.getJournalIdMap(), not(hasKey(entry2.getJournalId())));
-        assertThat(mgr.getJournalIdMap().get(entry3.getJournalId()).getNumberOfUnconsumedEntries(), is(0L));
+        assertThat(mgr.getJournalDescriptor(entry1.getJournalSequence()), is(nullValue()));
+        assertThat(mgr.getJournalDescriptor(entry2.getJournalSequence()), is(nullValue()));
+        assertThat(mgr.getJournalDescriptor(entry3.getJournalSequence()).getNumberOfUnconsumedEntries(), is(0L));
     }
 
     @Test
@@ -223,7 +622,7 @@ public class JournalMgrIT {
 
     @Test
     public void testShutdownNoRemainingData() throws IOException {
-        mgr.setMaxJournalFileSize(43);
+        mgr.setMaxJournalFileSize(51);
         mgr.init();
 
         FpqEntry entry1 = mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[] {0, 1}));
@@ -237,14 +636,14 @@ public class JournalMgrIT {
         mgr.shutdown();
 
         assertThat(FileUtils.listFiles(theDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE), is(empty()));
-        assertThat(mgr.getJournalIdMap(), not(hasKey(entry1.getJournalId())));
-        assertThat(mgr.getJournalIdMap(), not(hasKey(entry2.getJournalId())));
-        assertThat(mgr.getJournalIdMap(), not(hasKey(entry3.getJournalId())));
+        assertThat(mgr.getJournalDescriptor(entry1.getJournalSequence()), is(nullValue()));
+        assertThat(mgr.getJournalDescriptor(entry2.getJournalSequence()), is(nullValue()));
+        assertThat(mgr.getJournalDescriptor(entry3.getJournalSequence()), is(nullValue()));
     }
 
     @Test
     public void testShutdownHasRemainingData() throws IOException {
-        mgr.setMaxJournalFileSize(51);
+        mgr.setMaxJournalFileSize(59);
         mgr.init();
 
         FpqEntry entry1 = mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[] {0, 1, 2, 3}));
@@ -258,10 +657,10 @@ public class JournalMgrIT {
 
         Collection<File> remainingFiles = FileUtils.listFiles(theDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
         assertThat(remainingFiles, hasSize(1));
-        assertThat(remainingFiles, contains(mgr.getJournalIdMap().get(entry3.getJournalId()).getFile().getFile().getAbsoluteFile()));
-        assertThat(mgr.getJournalIdMap(), not(hasKey(entry1.getJournalId())));
-        assertThat(mgr.getJournalIdMap(), not(hasKey(entry2.getJournalId())));
-        assertThat(mgr.getJournalIdMap(), hasKey(entry3.getJournalId()));
+        assertThat(remainingFiles, contains(mgr.getJournalDescriptor(entry3.getJournalSequence()).getFile().getFile().getAbsoluteFile()));
+        assertThat(mgr.getJournalDescriptor(entry1.getJournalSequence()), is(nullValue()));
+        assertThat(mgr.getJournalDescriptor(entry2.getJournalSequence()), is(nullValue()));
+        assertThat(mgr.getJournalDescriptor(entry3.getJournalSequence()), is(notNullValue()));
     }
 
     @Test
@@ -360,7 +759,7 @@ public class JournalMgrIT {
     }
 
     @Test
-    public void testThreading() throws IOException, ExecutionException {
+    public void testThreading() throws IOException, ExecutionException, InterruptedException {
         final int numEntries = 10000;
         final int numPushers = 3;
         int numPoppers = 3;
@@ -450,11 +849,386 @@ public class JournalMgrIT {
         assertThat(numPops.get(), is(numEntries*numPushers));
         assertThat(popSum.get(), is(pushSum.get()));
         assertThat(mgr.getJournalIdMap().entrySet(), hasSize(1));
-        assertThat(FileUtils.listFiles(theDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE), hasSize(1));
+        // the current journal and the spare waiting to replace it
+        waitForSpareJournal(0);
+        assertThat(FileUtils.listFiles(theDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE), hasSize(2));
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final int numEntries = 1000;
+        final int numPushers = 8;
+
+        mgr.setGroupCommitEnabled(true);
+        mgr.setMaxJournalFileSize(10000);
+        mgr.init();
+
+        ExecutorService execSrvc = Executors.newFixedThreadPool(numPushers);
+        Set<Future> futures = new HashSet<Future>();
+        for (int i=0;i < numPushers;i++) {
+            futures.add(execSrvc.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < numEntries; i++) {
+                        FpqEntry entry = mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[10]));
+                        assertThat(entry.getJournalSequence(), is(not(FpqEntry.NO_JOURNAL_SEQUENCE)));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future f : futures) {
+            f.get();
+        }
+        execSrvc.shutdown();
+
+        assertThat(mgr.getNumberOfEntries(), is((long) numEntries * numPushers));
+        mgr.shutdown();
+
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.init();
+        try {
+            Set<Long> ids = new HashSet<Long>();
+            for (FpqEntry entry : mgr2.createReplayIterable()) {
+                ids.add(entry.getId());
+            }
+            assertThat(ids, hasSize(numEntries * numPushers));
+            assertThat(mgr2.getNumberOfEntries(), is((long) numEntries * numPushers));
+        }
+        finally {
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testGroupCommitAfterShutdown() throws Exception {
+        mgr.setGroupCommitEnabled(true);
+        mgr.init();
+        mgr.shutdown();
+
+        try {
+            mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[10]));
+            fail("should have thrown FpqException because journal manager is shutdown");
+        }
+        catch (FpqException e) {
+            assertThat(e.getMessage(), containsString("shutdown"));
+        }
+    }
+
+    @Test
+    public void testStripedJournals() throws Exception {
+        final int numEntries = 1000;
+        final int numPushers = 8;
+
+        mgr.setNumberOfActiveJournals(4);
+        mgr.setMaxJournalFileSize(10000);
+        mgr.init();
+        assertThat(mgr.getActiveJournalDescriptors(), hasSize(4));
+        assertThat(mgr.getJournalIdMap().entrySet(), hasSize(4));
+
+        ExecutorService execSrvc = Executors.newFixedThreadPool(numPushers);
+        Set<Future> futures = new HashSet<Future>();
+        for (int i=0;i < numPushers;i++) {
+            futures.add(execSrvc.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < numEntries; i++) {
+                        mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[10]));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future f : futures) {
+            f.get();
+        }
+        execSrvc.shutdown();
+
+        assertThat(mgr.getNumberOfEntries(), is((long) numEntries * numPushers));
+        assertThat(mgr.getActiveJournalDescriptors(), hasSize(4));
+        mgr.shutdown();
+
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.init();
+        try {
+            Set<Long> ids = new HashSet<Long>();
+            for (FpqEntry entry : mgr2.createReplayIterable()) {
+                ids.add(entry.getId());
+            }
+            assertThat(ids, hasSize(numEntries * numPushers));
+        }
+        finally {
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testMultipleDirectoriesRoundRobin() throws Exception {
+        List<File> dirs = Arrays.asList(new File(theDir, "d0"), new File(theDir, "d1"), new File(theDir, "d2"));
+        mgr.setDirectories(dirs);
+        mgr.setMaxJournalFileSize(1000);
+        mgr.init();
+
+        int numEntries = 300;
+        for (int i=0;i < numEntries;i++) {
+            mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        }
+        mgr.shutdown();
+
+        for (File dir : dirs) {
+            assertThat(FileUtils.listFiles(dir, null, false), is(not(empty())));
+        }
+
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectories(dirs);
+        mgr2.init();
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            for (FpqEntry entry : mgr2.createReplayIterable()) {
+                ids.add(entry.getId());
+            }
+            // single pusher, so replay across all directories must come back in push order
+            assertThat(ids, hasSize(numEntries));
+            for (int i=1;i < ids.size();i++) {
+                assertThat(ids.get(i), is(greaterThan(ids.get(i-1))));
+            }
+        }
+        finally {
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testMultipleDirectoriesFreeSpace() throws Exception {
+        List<File> dirs = Arrays.asList(new File(theDir, "d0"), new File(theDir, "d1"));
+        mgr.setDirectories(dirs);
+        mgr.setPlacementPolicy(JournalPlacementPolicy.FREE_SPACE);
+        mgr.init();
+
+        mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        assertThat(mgr.getCurrentJournalDescriptor().getFile().getFile().getParentFile(), isOneOf(dirs.toArray()));
+    }
+
+    @Test
+    public void testParallelReplayMergesInIdOrder() throws Exception {
+        final int numEntries = 500;
+        final int numPushers = 4;
+
+        mgr.setNumberOfActiveJournals(4);
+        mgr.setMaxJournalFileSize(2000);
+        mgr.init();
+
+        ExecutorService execSrvc = Executors.newFixedThreadPool(numPushers);
+        Set<Future> futures = new HashSet<Future>();
+        for (int i=0;i < numPushers;i++) {
+            futures.add(execSrvc.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < numEntries; i++) {
+                        mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[10]));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future f : futures) {
+            f.get();
+        }
+        execSrvc.shutdown();
+        mgr.shutdown();
+
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.setNumberOfReplayWorkers(4);
+        mgr2.init();
+        ParallelJournalReplayer replayer = mgr2.createParallelReplayIterable();
+        try {
+            Set<Long> ids = new HashSet<Long>();
+            long numOutOfOrder = 0;
+            long lastId = 0;
+            for (FpqEntry entry : replayer) {
+                ids.add(entry.getId());
+                if (entry.getId() < lastId) {
+                    numOutOfOrder++;
+                }
+                lastId = entry.getId();
+            }
+            assertThat(ids, hasSize(numEntries * numPushers));
+            assertThat(numOutOfOrder, is(0L));
+        }
+        finally {
+            replayer.close();
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testSyncDurability() throws Exception {
+        final int numEntries = 200;
+        final int numPushers = 4;
+
+        mgr.setDurabilityMode(DurabilityMode.SYNC);
+        mgr.setGroupCommitEnabled(true);
+        mgr.init();
+
+        ExecutorService execSrvc = Executors.newFixedThreadPool(numPushers);
+        Set<Future> futures = new HashSet<Future>();
+        for (int i=0;i < numPushers;i++) {
+            futures.add(execSrvc.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < numEntries; i++) {
+                        mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[10]));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future f : futures) {
+            f.get();
+        }
+        execSrvc.shutdown();
+
+        assertThat(mgr.getNumberOfEntries(), is((long) numEntries * numPushers));
+    }
+
+    @Test
+    public void testGroupDurabilityWaitsForMaxWait() throws Exception {
+        mgr.setDurabilityMode(DurabilityMode.GROUP);
+        mgr.setGroupSyncMaxWaitInMs(300);
+        mgr.setGroupSyncMaxBytes(Long.MAX_VALUE);
+        mgr.init();
+
+        long start = System.currentTimeMillis();
+        mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[10]));
+        assertThat(System.currentTimeMillis() - start, is(greaterThanOrEqualTo(250L)));
+    }
+
+    @Test
+    public void testGroupDurabilityReleasedByMaxBytes() throws Exception {
+        mgr.setDurabilityMode(DurabilityMode.GROUP);
+        mgr.setGroupSyncMaxWaitInMs(60000);
+        mgr.setGroupSyncMaxBytes(100);
+        mgr.init();
+
+        long start = System.currentTimeMillis();
+        mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        assertThat(System.currentTimeMillis() - start, is(lessThan(10000L)));
+        assertThat(mgr.getNumberOfEntries(), is(1L));
+    }
+
+    @Test
+    public void testGroupDurabilityAfterShutdown() throws Exception {
+        mgr.setDurabilityMode(DurabilityMode.GROUP);
+        mgr.init();
+        mgr.shutdown();
+
+        try {
+            mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[10]));
+            fail("should have thrown FpqException because journal manager is shutdown");
+        }
+        catch (FpqException e) {
+            assertThat(e.getMessage(), containsString("shutdown"));
+        }
+    }
+
+    @Test
+    public void testMemoryMappedJournals() throws Exception {
+        int numEntries = 1000;
+        mgr.setMemoryMappedJournalsEnabled(true);
+        mgr.setMaxJournalFileSize(10000);
+        mgr.init();
+
+        for (int i=0;i < numEntries;i++) {
+            mgr.append(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+        }
+        assertThat(mgr.getJournalsCreated(), is(greaterThan(1L)));
+        mgr.shutdown();
+
+        // closed journals are truncated to what was actually written
+        for (File f : FileUtils.listFiles(theDir, null, false)) {
+            assertThat(f.length(), is(lessThan(10000L + JournalFile.ENTRY_HEADER_SIZE + 100)));
+        }
+
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.init();
+        try {
+            Set<Long> ids = new HashSet<Long>();
+            for (FpqEntry entry : mgr2.createReplayIterable()) {
+                ids.add(entry.getId());
+            }
+            assertThat(ids, hasSize(numEntries));
+        }
+        finally {
+            mgr2.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompressedJournals() throws Exception {
+        int numEntries = 1000;
+        mgr.setCompressedJournalsEnabled(true);
+        mgr.setMaxJournalFileSize(5000);
+        mgr.init();
+
+        for (int i=0;i < numEntries / 10;i++) {
+            List<FpqEntry> batch = new ArrayList<FpqEntry>();
+            for (int j=0;j < 10;j++) {
+                batch.add(new FpqEntry(idGen.incrementAndGet(), new byte[100]));
+            }
+            mgr.append(batch);
+        }
+        assertThat(mgr.getJournalsCreated(), is(greaterThan(1L)));
+        mgr.shutdown();
+
+        JournalMgr mgr2 = new JournalMgr();
+        mgr2.setDirectory(theDir);
+        mgr2.init();
+        assertThat(mgr2.getNumberOfEntries(), is((long) numEntries));
+        ParallelJournalReplayer replayer = mgr2.createParallelReplayIterable();
+        try {
+            Set<Long> ids = new HashSet<Long>();
+            for (FpqEntry entry : replayer) {
+                assertThat(entry.getData().length, is(100));
+                ids.add(entry.getId());
+            }
+            assertThat(ids, hasSize(numEntries));
+        }
+        finally {
+            replayer.close();
+            mgr2.shutdown();
+        }
     }
 
     // --------------
 
+    private JournalFile createRecycledFile() throws IOException {
+        com.eaio.uuid.UUID id = new com.eaio.uuid.UUID();
+        JournalFile jf = new JournalFile(new File(theDir, "recycled-" + id.toString()));
+        jf.initForWriting(id);
+        jf.append(new FpqEntry(idGen.incrementAndGet(), new byte[9]));
+        jf.close();
+        return jf;
+    }
+
+    private void waitForJournalRemoval(long journalSequence) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (null != mgr.getJournalDescriptor(journalSequence) && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+    private JournalFile waitForSpareJournal(int stripe) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (null == mgr.getSpareJournal(stripe) && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        return mgr.getSpareJournal(stripe);
+    }
+
     @Before
     public void setup() throws IOException {
         theDir = new File("tmp/junitTmp_"+ UUID.randomUUID().toString()).getCanonicalFile();
@@ -0,0 +1,124 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.eaio.uuid.UUID;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+
+/**
+ *
+ */
+public class JournalRegistryTest {
+    JournalRegistry registry = new JournalRegistry();
+
+    @Test
+    public void testAddThenGet() throws Exception {
+        JournalDescriptor jd1 = createDescriptor();
+        JournalDescriptor jd2 = createDescriptor();
+        registry.add(jd1);
+        registry.add(jd2);
+
+        assertThat(registry.get(jd1.getSequence()), is(sameInstance(jd1)));
+        assertThat(registry.get(jd2.getSequence()), is(sameInstance(jd2)));
+        assertThat(registry.get(jd1.getId()), is(sameInstance(jd1)));
+        assertThat(registry.get(FpqEntry.NO_JOURNAL_SEQUENCE), is(nullValue()));
+        assertThat(registry.size(), is(2));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        JournalDescriptor jd1 = createDescriptor();
+        registry.add(jd1);
+
+        assertThat(registry.remove(jd1), is(true));
+        assertThat(registry.get(jd1.getSequence()), is(nullValue()));
+        assertThat(registry.get(jd1.getId()), is(nullValue()));
+        assertThat(registry.remove(jd1), is(false));
+        assertThat(registry.size(), is(0));
+    }
+
+    @Test
+    public void testSequenceSharingSlotIsNotFound() throws Exception {
+        JournalDescriptor jd1 = createDescriptor();
+        registry.add(jd1);
+
+        assertThat(registry.get(jd1.getSequence() + registry.getCapacity()), is(nullValue()));
+    }
+
+    @Test
+    public void testRingWrapsWithoutGrowing() throws Exception {
+        int capacity = registry.getCapacity();
+        for (int i=0;i < capacity * 4;i++) {
+            JournalDescriptor jd = createDescriptor();
+            registry.add(jd);
+            assertThat(registry.get(jd.getSequence()), is(sameInstance(jd)));
+            registry.remove(jd);
+        }
+        assertThat(registry.getCapacity(), is(capacity));
+    }
+
+    @Test
+    public void testGrowWhenOldJournalStillLive() throws Exception {
+        int capacity = registry.getCapacity();
+
+        // the first journal is never consumed while newer ones come and go
+        JournalDescriptor oldest = createDescriptor();
+        registry.add(oldest);
+        List<JournalDescriptor> live = new ArrayList<JournalDescriptor>();
+        for (int i=0;i < capacity + 10;i++) {
+            JournalDescriptor jd = createDescriptor();
+            registry.add(jd);
+            live.add(jd);
+        }
+
+        assertThat(registry.getCapacity(), is(greaterThan(capacity)));
+        assertThat(registry.get(oldest.getSequence()), is(sameInstance(oldest)));
+        for (JournalDescriptor jd : live) {
+            assertThat(registry.get(jd.getSequence()), is(sameInstance(jd)));
+        }
+        assertThat(registry.getDescriptors().get(0), is(sameInstance(oldest)));
+        assertThat(registry.getDescriptors(), hasSize(capacity + 11));
+    }
+
+    // --------------
+
+    private JournalDescriptor createDescriptor() throws IOException {
+        UUID id = new UUID();
+        JournalFile jf = new JournalFile(new File("journal-" + id.toString()));
+        jf.setSequence(registry.nextSequence());
+        return new JournalDescriptor(id, jf);
+    }
+}
@@ -0,0 +1,97 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.eaio.uuid.UUID;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
+
+/**
+ *
+ */
+public class JournalSyncerTest {
+    File theDir;
+    JournalFile jf;
+    JournalSyncer syncer;
+    ExecutorService exec;
+
+    @Test
+    public void testSingleCommitWaitsAtMostMaxWait() throws Exception {
+        startSyncer(10, 1000000);
+
+        // let the syncer go idle before the first commit arrives
+        Thread.sleep(50);
+
+        for (int i = 0; i < 5; i++) {
+            jf.append(new FpqEntry(i, new byte[100]));
+            long start = System.currentTimeMillis();
+            syncer.sync(jf, JournalFile.ENTRY_HEADER_SIZE + 100);
+
+            assertThat(System.currentTimeMillis() - start, is(lessThan(60L)));
+            assertThat(jf.getUnsyncedBytes(), is(0L));
+            Thread.sleep(30);
+        }
+    }
+
+    // -----------
+
+    private void startSyncer(long maxWaitInMs, long maxBytes) {
+        syncer = new JournalSyncer(maxWaitInMs, maxBytes);
+        exec.submit(syncer);
+    }
+
+    @Before
+    public void setup() throws IOException {
+        theDir = new File("tmp/junitTmp_"+new UUID().toString());
+        FileUtils.forceMkdir(theDir);
+        jf = new JournalFile(new File(theDir, "journal"));
+        jf.initForWriting(new UUID());
+        exec = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        if (null != syncer) {
+            syncer.shutdown();
+        }
+        exec.shutdownNow();
+        jf.close();
+        FileUtils.deleteDirectory(theDir);
+    }
+}
@@ -36,6 +36,7 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -72,12 +73,88 @@ public class MemorySegmentSerializerTest {
 
         MemorySegment seg2 = serializer.loadFromDisk(files.iterator().next().getName());
         assertThat(seg2.getId(), is(seg1.getId()));
-        assertThat(seg2.getQueue().size(), is(seg1.getQueue().size()));
+        assertThat(seg2.getQueueSize(), is(seg1.getQueueSize()));
         assertThat(seg2.getMaxSizeInBytes(), is(1000L));
         assertThat(seg2.getNumberOfOnlineEntries(), is(3L));
         assertThat(seg2.getNumberOfEntries(), is(3L));
     }
 
+    @Test
+    public void testSaveThenLoadOffHeap() throws Exception {
+        Collection<FpqEntry> entries = new LinkedList<FpqEntry>();
+        entries.add(new FpqEntry(idGen.incrementAndGet(), new byte[] {0, 1, 2}));
+        entries.add(new FpqEntry(idGen.incrementAndGet(), new byte[] {3, 4, 5}));
+
+        MemorySegment seg1 = new MemorySegment(MemorySegmentStorage.OFF_HEAP);
+        seg1.setId(new UUID());
+        seg1.setMaxSizeInBytes(1000);
+        seg1.setStatus(MemorySegment.Status.READY);
+        seg1.push(entries, 10);
+        serializer.saveToDisk(seg1);
+
+        // paging files don't depend on the storage
+        for (MemorySegmentStorage storage : MemorySegmentStorage.values()) {
+            serializer.setSegmentStorage(storage);
+            MemorySegment seg2 = serializer.loadFromDisk(seg1.getId().toString());
+            assertThat(seg2.getNumberOfEntries(), is(2L));
+            assertThat(seg2.getMinEntryId(), is(1L));
+            assertThat(seg2.getMaxEntryId(), is(2L));
+            assertThat(seg2.getQueuedEntries().get(1).getData(), is(new byte[] {3, 4, 5}));
+        }
+    }
+
+    @Test
+    public void testHeaderOnlyAnswersIsEntryQueued() throws Exception {
+        Collection<FpqEntry> entries = new LinkedList<FpqEntry>();
+        for (int i=0;i < 100;i++) {
+            entries.add(new FpqEntry(idGen.incrementAndGet(), new byte[] {0, 1, 2}));
+        }
+
+        MemorySegment seg1 = new MemorySegment();
+        seg1.setId(new UUID());
+        seg1.setMaxSizeInBytes(100000);
+        seg1.setStatus(MemorySegment.Status.READY);
+        seg1.push(entries, 10);
+        serializer.saveToDisk(seg1);
+
+        MemorySegment seg2 = serializer.loadHeaderOnly(seg1.getId().toString());
+        seg2.setStatus(MemorySegment.Status.OFFLINE);
+        assertThat(seg2.getMinEntryId(), is(1L));
+        assertThat(seg2.getMaxEntryId(), is(100L));
+
+        // remove the paging file to prove the answer doesn't come from disk
+        serializer.removePagingFile(seg2);
+        for (long id=1;id <= 100;id++) {
+            assertThat(seg2.isEntryQueued(new FpqEntry(id, new byte[0])), is(true));
+        }
+        assertThat(seg2.isEntryQueued(new FpqEntry(0, new byte[0])), is(false));
+        assertThat(seg2.isEntryQueued(new FpqEntry(101, new byte[0])), is(false));
+    }
+
+    @Test
+    public void testJournalSequenceTranslatedThroughJournalId() throws Exception {
+        final UUID journalId = new UUID();
+        FpqEntry entry = new FpqEntry(idGen.incrementAndGet(), new byte[] {0, 1, 2});
+        entry.setJournalSequence(5);
+
+        MemorySegment seg1 = new MemorySegment();
+        seg1.setId(new UUID());
+        seg1.setMaxSizeInBytes(1000);
+        seg1.setStatus(MemorySegment.Status.READY);
+        seg1.push(Collections.singleton(entry), 10);
+        serializer.setJournalIdResolver(createResolver(5, journalId));
+        serializer.saveToDisk(seg1);
+
+        // after a restart the same journal has a different sequence
+        serializer.setJournalIdResolver(createResolver(9, journalId));
+        MemorySegment seg2 = serializer.loadFromDisk(seg1.getId().toString());
+        assertThat(seg2.getQueuedEntries().get(0).getJournalSequence(), is(9L));
+
+        serializer.setJournalIdResolver(JournalIdResolver.NONE);
+        MemorySegment seg3 = serializer.loadFromDisk(seg1.getId().toString());
+        assertThat(seg3.getQueuedEntries().get(0).getJournalSequence(), is(FpqEntry.NO_JOURNAL_SEQUENCE));
+    }
+
     @Test
     public void testSetDirectory() throws Exception {
         assertThat(serializer.getDirectory(), is(theDir.getCanonicalFile()));
@@ -85,6 +162,20 @@ public class MemorySegmentSerializerTest {
 
     // --------------
 
+    private JournalIdResolver createResolver(final long journalSequence, final UUID journalId) {
+        return new JournalIdResolver() {
+            @Override
+            public UUID getJournalId(long sequence) {
+                return journalSequence == sequence ? journalId : FpqEntry.EMPTY_JOURNAL_ID;
+            }
+
+            @Override
+            public long getJournalSequence(UUID id) {
+                return journalId.equals(id) ? journalSequence : FpqEntry.NO_JOURNAL_SEQUENCE;
+            }
+        };
+    }
+
     @Before
     public void setup() throws IOException {
         theDir = new File("tmp/junitTmp_"+new UUID().toString());
@@ -0,0 +1,185 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import com.eaio.uuid.UUID;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.btoddb.fastpersitentqueue.TestUtils.createData;
+import static com.btoddb.fastpersitentqueue.TestUtils.createEntries;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ *
+ */
+public class OffHeapSegmentStoreTest {
+    File theDir;
+    OffHeapSegmentStore store;
+
+    @Test
+    public void testPollInPushOrder() throws Exception {
+        store.add(createEntries(1, 10, 100));
+        store.add(createEntries(11, 5, 100));
+        assertThat(store.size(), is(15));
+        assertThat(store.getMinId(), is(1L));
+        assertThat(store.getMaxId(), is(15L));
+
+        List<FpqEntry> popped = store.poll(12);
+        assertThat(popped.size(), is(12));
+        for (int i=0;i < popped.size();i++) {
+            FpqEntry entry = popped.get(i);
+            assertThat(entry.getId(), is(i+1L));
+            assertThat(entry.getJournalSequence(), is(i+101L));
+            assertThat(entry.getData(), is(createData(i+1, 100)));
+        }
+        assertThat(store.contains(12), is(false));
+        assertThat(store.contains(13), is(true));
+
+        assertThat(store.poll(12).size(), is(3));
+        assertThat(store.isEmpty(), is(true));
+        assertThat(store.poll(12), is(empty()));
+        assertThat(store.getMaxId(), is(-1L));
+    }
+
+    @Test
+    public void testSlabsGrowAndAreReusedWhenEmpty() throws Exception {
+        store.add(createEntries(1, 1, 100));
+        assertThat(store.getSlabBytes(), is((long)OffHeapSegmentStore.MIN_SLAB_SIZE));
+
+        // more than the first slab can hold
+        store.add(createEntries(2, 100, 100));
+        long grownSize = store.getSlabBytes();
+        assertThat(grownSize > OffHeapSegmentStore.MIN_SLAB_SIZE, is(true));
+
+        store.poll(101);
+        long reusedSize = store.getSlabBytes();
+        assertThat(reusedSize < grownSize, is(true));
+
+        store.add(createEntries(102, 1, 100));
+        assertThat(store.getSlabBytes(), is(reusedSize));
+        assertThat(store.poll(1).get(0).getData(), is(createData(102, 100)));
+    }
+
+    @Test
+    public void testEntryLargerThanSlab() throws Exception {
+        int size = OffHeapSegmentStore.MAX_SLAB_SIZE + 1000;
+        store.add(createEntries(1, 1, 10));
+        store.add(createEntries(2, 1, size));
+        store.add(createEntries(3, 1, 10));
+
+        List<FpqEntry> popped = store.poll(3);
+        assertThat(popped.get(0).getData(), is(createData(1, 10)));
+        assertThat(popped.get(1).getData(), is(createData(2, size)));
+        assertThat(popped.get(2).getData(), is(createData(3, 10)));
+    }
+
+    @Test
+    public void testPagingFormatSameAsSkipList() throws Exception {
+        // large payload is written and read around the staging buffer
+        List<FpqEntry> entries = new ArrayList<FpqEntry>();
+        entries.addAll(createEntries(1, 1000, 50));
+        entries.addAll(createEntries(1001, 1, 200000));
+        entries.addAll(createEntries(1002, 10, 50));
+        store.add(entries);
+
+        SkipListSegmentStore skipList = new SkipListSegmentStore();
+        skipList.add(createEntries(1, 1000, 50));
+        skipList.add(createEntries(1001, 1, 200000));
+        skipList.add(createEntries(1002, 10, 50));
+
+        File offHeapFile = new File(theDir, "off-heap");
+        File skipListFile = new File(theDir, "skip-list");
+        write(store, offHeapFile);
+        write(skipList, skipListFile);
+        assertThat(FileUtils.contentEquals(offHeapFile, skipListFile), is(true));
+
+        OffHeapSegmentStore loaded = new OffHeapSegmentStore();
+        RandomAccessFile raFile = new RandomAccessFile(offHeapFile, "r");
+        try {
+            loaded.readFrom(raFile, JournalIdResolver.NONE, entries.size());
+        }
+        finally {
+            raFile.close();
+        }
+
+        List<FpqEntry> popped = loaded.poll(entries.size());
+        assertThat(popped.size(), is(entries.size()));
+        for (int i=0;i < popped.size();i++) {
+            assertThat(popped.get(i).getId(), is(entries.get(i).getId()));
+            assertThat(popped.get(i).getData(), is(entries.get(i).getData()));
+        }
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        store.add(createEntries(1, 10, 100));
+        store.clear();
+        assertThat(store.isEmpty(), is(true));
+        assertThat(store.getSlabBytes(), is(0L));
+        assertThat(store.contains(1), is(false));
+
+        store.add(createEntries(11, 1, 100));
+        assertThat(store.getEntries().get(0).getId(), is(11L));
+    }
+
+    // --------------
+
+    private void write(SegmentStore segmentStore, File theFile) throws IOException {
+        RandomAccessFile raFile = new RandomAccessFile(theFile, "rw");
+        try {
+            segmentStore.writeTo(raFile, JournalIdResolver.NONE);
+        }
+        finally {
+            raFile.close();
+        }
+    }
+
+    @Before
+    public void setup() throws IOException {
+        theDir = new File("tmp/junitTmp_"+new UUID().toString());
+        FileUtils.forceMkdir(theDir);
+        store = new OffHeapSegmentStore();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(theDir);
+    }
+}
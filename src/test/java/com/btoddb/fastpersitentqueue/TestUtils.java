@@ -0,0 +1,72 @@
+package com.btoddb.fastpersitentqueue;
+
+/*
+ * #%L
+ * fast-persistent-queue
+ * %%
+ * Copyright (C) 2014 btoddb.com
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Entry and data builders shared by the tests.
+ */
+public class TestUtils {
+
+    /**
+     * Entries with consecutive IDs starting at firstId.  Each entry's data is {@link #createData(long, int)} of its
+     * ID, and its journal sequence is its ID + 100 so a store that mixes the two up is caught.
+     */
+    public static List<FpqEntry> createEntries(long firstId, int count, int size) {
+        List<FpqEntry> entries = new ArrayList<FpqEntry>(count);
+        for (long id=firstId;id < firstId+count;id++) {
+            FpqEntry entry = new FpqEntry(id, createData(id, size));
+            entry.setJournalSequence(id + 100);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * size bytes, all set to the low byte of id.
+     */
+    public static byte[] createData(long id, int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte)id);
+        return data;
+    }
+
+    /**
+     * size bytes that are never zero and don't repeat for 251 bytes, so a shifted or dropped block shows.
+     */
+    public static byte[] createPatternData(int size) {
+        byte[] data = new byte[size];
+        for (int i=0;i < size;i++) {
+            data[i] = (byte) (i % 251 + 1);
+        }
+        return data;
+    }
+}